@@ -0,0 +1,334 @@
+package me.wiefferink.bagquick;
+
+import me.wiefferink.bagquick.BuildingUpdate.Outcome;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Updates all BAG buildings of an extract without JOSM running, and writes the changes as an osmChange file
+ * - Uses the same rules as clicking the buildings (see BatchUpdate and BuildingUpdate), so the result can be reviewed up front
+ * - Plans the buildings on all cores, then applies them one by one (ordered by ref:bag, so the output is the same every run)
+ * - Buildings with notes are skipped and listed, like the batch update selects them for review
+ *
+ * Arguments:
+ * - --bag <file>: BAG ODS extract (.osm) to update from
+ * - --osm <file>: OSM extract (.osm) to update
+ * - --out <file>: osmChange file to write, defaults to bag-update.osc
+ * - --tiled: stream the extracts and update them tile by tile, for extracts that do not fit in memory (see TiledConflation)
+ * - --compare-tiled: run both, write the tiled changes next to the others (tiled-<out>), and exit with 1 when they differ (see OsmChangeComparison)
+ */
+public final class ConflateTool {
+
+	/** Maximum number of failures and buildings to review to print */
+	static final int MAX_LISTED = 50;
+
+	private ConflateTool() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		File bagFile = null;
+		File osmFile = null;
+		File outFile = new File("bag-update.osc");
+		boolean tiled = false;
+		boolean compareTiled = false;
+		for (int i = 0; i < args.length; i++) {
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			switch (args[i]) {
+				case "--bag":
+					bagFile = new File(value);
+					i++;
+					break;
+				case "--osm":
+					osmFile = new File(value);
+					i++;
+					break;
+				case "--out":
+					outFile = new File(value);
+					i++;
+					break;
+				case "--tiled":
+					tiled = true;
+					break;
+				case "--compare-tiled":
+					compareTiled = true;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+		if (bagFile == null || osmFile == null) {
+			throw new IllegalArgumentException("Provide the extracts to conflate with --bag <file> and --osm <file>");
+		}
+
+		HeadlessJosm.init();
+		if (tiled) {
+			TiledConflation.run(bagFile, osmFile, outFile);
+			System.exit(0);
+		}
+		if (!conflate(bagFile, osmFile, outFile)) {
+			System.exit(1);
+		}
+		if (compareTiled) {
+			File tiledOutFile = new File(outFile.getAbsoluteFile().getParentFile(), "tiled-" + outFile.getName());
+			Set<String> leftOut = TiledConflation.run(bagFile, osmFile, tiledOutFile);
+			List<String> differences = OsmChangeComparison.compare(outFile, tiledOutFile, leftOut);
+			System.out.printf("Compared %s with %s: %d differences%n", tiledOutFile, outFile, differences.size());
+			for (int i = 0; i < Math.min(differences.size(), MAX_LISTED); i++) {
+				System.out.println("    " + differences.get(i));
+			}
+			System.exit(differences.isEmpty() ? 0 : 1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Update all buildings of the extracts in one batch update, and write the changes
+	 * @return false when the batch update failed
+	 */
+	private static boolean conflate(File bagFile, File osmFile, File outFile) throws Exception {
+		long loadStart = System.nanoTime();
+		DataSet bagDataSet = HeadlessJosm.loadLayer(bagFile, BuildingUpdate.BAG_LAYER_NAME);
+		DataSet osmDataSet = HeadlessJosm.loadLayer(osmFile, BuildingUpdate.OSM_LAYER_NAME);
+		System.out.printf("Loaded %s and %s in %d ms%n", bagFile, osmFile, (System.nanoTime() - loadStart) / 1_000_000);
+
+		// Not started: the layers are found by name, and the validator needs a display
+		BagSession session = new BagSession(new SkippedValidationScheduler(), () -> { });
+		List<Way> bagWays = new ArrayList<>();
+		for (Way bagWay : bagDataSet.getWays()) {
+			String bagRef = bagWay.get("ref:bag");
+			if (bagRef != null && !bagRef.isEmpty() && bagWay.isUsable()) {
+				bagWays.add(bagWay);
+			}
+		}
+		bagWays.sort(Comparator.comparing(bagWay -> bagWay.get("ref:bag")));
+
+		// Same steps as a batch update of an area, planning runs on the common ForkJoinPool
+		long runStart = System.nanoTime();
+		BatchUpdate batchUpdate = new BatchUpdate(bagWays, session);
+		// Nothing gets undone, keeping the command would hold the saved state of every building until the end
+		batchUpdate.setUndoable(false);
+		batchUpdate.prepare();
+		batchUpdate.plan();
+		long planNanos = System.nanoTime() - runStart;
+		if (!batchUpdate.executeInternal()) {
+			System.out.printf("Conflation failed: %s%n", batchUpdate.getResultSummary().getFailedMessage());
+			return false;
+		}
+		long runNanos = System.nanoTime() - runStart;
+		System.out.printf("Updated %d buildings in %d ms (planning %d ms on %d cores)%n", bagWays.size(), runNanos / 1_000_000, planNanos / 1_000_000, Runtime.getRuntime().availableProcessors());
+
+		long writeStart = System.nanoTime();
+		int changeCount = writeOsmChange(osmDataSet, outFile);
+		System.out.printf("Wrote %d changed objects to %s in %d ms%n", changeCount, outFile, (System.nanoTime() - writeStart) / 1_000_000);
+
+		// Report what needs attention
+		Map<Outcome, Integer> outcomeCounts = new EnumMap<>(Outcome.class);
+		List<String> listed = new ArrayList<>();
+		for (BuildingUpdate update : batchUpdate.getBuildingUpdates()) {
+			Outcome outcome = update.getOutcome();
+			outcomeCounts.merge(outcome, 1, Integer::sum);
+			String problem = describeProblem(update);
+			if (problem != null && listed.size() < MAX_LISTED) {
+				listed.add(problem);
+			}
+		}
+		for (Map.Entry<Outcome, Integer> entry : outcomeCounts.entrySet()) {
+			System.out.printf("    %s: %d%n", entry.getKey(), entry.getValue());
+		}
+		for (String line : listed) {
+			System.out.println("    " + line);
+		}
+
+		session.getUpToDateCache().unbind();
+		session.getBagBuildingIndex().unbind();
+		session.getOsmRefIndex().unbind();
+		return true;
+	}
+
+	/**
+	 * Problem of an update to list in the report
+	 * @return Description starting with the ref:bag, null when there is nothing to report
+	 */
+	static String describeProblem(BuildingUpdate update) {
+		String bagRef = update.getBagWay() == null ? "?" : update.getBagWay().get("ref:bag");
+		if (update.getOutcome() == Outcome.FAILED) {
+			return bagRef + ": failed: " + update.getResultSummary().getFailedMessage();
+		}
+		if (update.getOutcome() == Outcome.NEEDS_REVIEW) {
+			return bagRef + ": has notes, review before updating";
+		}
+		return null;
+	}
+
+	/**
+	 * Write the changes of a DataSet as an osmChange file
+	 * @return Number of created, modified and deleted objects
+	 */
+	static int writeOsmChange(DataSet dataSet, File file) throws IOException, XMLStreamException {
+		Changes changes = collectChanges(dataSet.allPrimitives());
+		try (OutputStream output = Files.newOutputStream(file.toPath())) {
+			XMLStreamWriter writer = startOsmChange(output);
+			writeChanges(writer, changes);
+			finishOsmChange(writer);
+		}
+		return changes.size();
+	}
+
+	/**
+	 * Collect the created, modified and deleted objects
+	 * - Objects are sorted by type and id, so runs on the same input can be compared
+	 */
+	static Changes collectChanges(Collection<OsmPrimitive> primitives) {
+		Changes result = new Changes();
+		for (OsmPrimitive primitive : primitives) {
+			if (primitive.isNew()) {
+				if (!primitive.isDeleted()) {
+					result.created.add(primitive);
+				}
+			} else if (primitive.isDeleted()) {
+				result.deleted.add(primitive);
+			} else if (primitive.isModified()) {
+				result.modified.add(primitive);
+			}
+		}
+
+		// Nodes before the ways that use them, ids of new objects are negative and count down
+		Comparator<OsmPrimitive> byType = Comparator.comparing(OsmPrimitive::getType);
+		result.created.sort(byType.thenComparing(primitive -> -primitive.getUniqueId()));
+		result.modified.sort(byType.thenComparingLong(OsmPrimitive::getUniqueId));
+		// Ways before the nodes they used
+		result.deleted.sort(byType.reversed().thenComparingLong(OsmPrimitive::getUniqueId));
+		return result;
+	}
+
+	/** Start an osmChange document, the writer is positioned inside the root element */
+	static XMLStreamWriter startOsmChange(OutputStream output) throws XMLStreamException {
+		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(output, "UTF-8");
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeCharacters("\n");
+		writer.writeStartElement("osmChange");
+		writer.writeAttribute("version", "0.6");
+		writer.writeAttribute("generator", "bag-quick");
+		writer.writeCharacters("\n");
+		return writer;
+	}
+
+	/**
+	 * Write the create, modify and delete blocks of some changes
+	 * - Can also be used on a writer without a document, to write a part of the file separately
+	 */
+	static void writeChanges(XMLStreamWriter writer, Changes changes) throws XMLStreamException {
+		writeAction(writer, "create", changes.created, true);
+		writeAction(writer, "modify", changes.modified, true);
+		writeAction(writer, "delete", changes.deleted, false);
+	}
+
+	/** Close the root element and the document */
+	static void finishOsmChange(XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+		writer.writeEndDocument();
+		writer.close();
+	}
+
+	/**
+	 * Write one action block of an osmChange file
+	 * @param withContent Write the location, tags and members, deletes only need the id and version
+	 */
+	private static void writeAction(XMLStreamWriter writer, String action, Collection<OsmPrimitive> primitives, boolean withContent) throws XMLStreamException {
+		if (primitives.isEmpty()) {
+			return;
+		}
+
+		writer.writeStartElement(action);
+		writer.writeCharacters("\n");
+		for (OsmPrimitive primitive : primitives) {
+			writer.writeCharacters("  ");
+			writer.writeStartElement(primitive.getType().getAPIName());
+			writer.writeAttribute("id", Long.toString(primitive.getUniqueId()));
+			writer.writeAttribute("version", Integer.toString(primitive.getVersion()));
+			if (withContent && primitive instanceof Node) {
+				writer.writeAttribute("lat", BigDecimal.valueOf(((Node) primitive).lat()).toPlainString());
+				writer.writeAttribute("lon", BigDecimal.valueOf(((Node) primitive).lon()).toPlainString());
+			}
+			if (withContent) {
+				writeContent(writer, primitive);
+			}
+			writer.writeEndElement();
+			writer.writeCharacters("\n");
+		}
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+	}
+
+	/** Write the way nodes, relation members and tags of an object */
+	private static void writeContent(XMLStreamWriter writer, OsmPrimitive primitive) throws XMLStreamException {
+		if (primitive instanceof Way) {
+			for (Node node : ((Way) primitive).getNodes()) {
+				writer.writeCharacters("\n    ");
+				writer.writeEmptyElement("nd");
+				writer.writeAttribute("ref", Long.toString(node.getUniqueId()));
+			}
+		} else if (primitive instanceof Relation) {
+			for (RelationMember member : ((Relation) primitive).getMembers()) {
+				writer.writeCharacters("\n    ");
+				writer.writeEmptyElement("member");
+				writer.writeAttribute("type", member.getType().getAPIName());
+				writer.writeAttribute("ref", Long.toString(member.getMember().getUniqueId()));
+				writer.writeAttribute("role", member.getRole());
+			}
+		}
+		boolean hasChildren = primitive instanceof Way || primitive instanceof Relation;
+		for (Map.Entry<String, String> tag : new TreeMap<>(primitive.getKeys()).entrySet()) {
+			writer.writeCharacters("\n    ");
+			writer.writeEmptyElement("tag");
+			writer.writeAttribute("k", tag.getKey());
+			writer.writeAttribute("v", tag.getValue());
+			hasChildren = true;
+		}
+		if (hasChildren) {
+			writer.writeCharacters("\n  ");
+		}
+	}
+
+	/** Created, modified and deleted objects, in the order to write them */
+	static final class Changes {
+		private final List<OsmPrimitive> created = new ArrayList<>();
+		private final List<OsmPrimitive> modified = new ArrayList<>();
+		private final List<OsmPrimitive> deleted = new ArrayList<>();
+
+		int size() {
+			return created.size() + modified.size() + deleted.size();
+		}
+	}
+
+	/** Does not run the validator (it needs a display), the osmChange file gets reviewed instead */
+	static final class SkippedValidationScheduler extends ValidationScheduler {
+		@Override
+		public void schedule(Collection<Way> osmWays) {
+			// Nothing to do
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.preferences.JosmBaseDirectories;
+import org.openstreetmap.josm.data.preferences.JosmUrls;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.IllegalDataException;
+import org.openstreetmap.josm.io.OsmReader;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * Minimal JOSM setup to run BAG updates without a display
+ * - Uses a temporary JOSM home directory, so the preferences of the user are not touched
+ */
+final class HeadlessJosm {
+
+	private HeadlessJosm() {
+	}
+
+	/** Set up preferences and projection, call once before anything else */
+	static void init() throws IOException {
+		System.setProperty("java.awt.headless", "true");
+		System.setProperty("josm.home", Files.createTempDirectory("bag-quick-headless").toString());
+
+		Preferences preferences = Preferences.main();
+		Config.setPreferencesInstance(preferences);
+		Config.setBaseDirectoriesProvider(JosmBaseDirectories.getInstance());
+		Config.setUrlsProvider(JosmUrls.getInstance());
+		preferences.enableSaveOnPut(false);
+
+		// Same projection as the test session
+		ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+	}
+
+	/**
+	 * Load an .osm file as a layer, like opening it in JOSM
+	 * @param file File to load
+	 * @param layerName Name of the layer, use the names the ODS plugin uses to make BuildingUpdate find them
+	 * @return DataSet of the layer
+	 */
+	static DataSet loadLayer(File file, String layerName) throws IOException, IllegalDataException {
+		DataSet dataSet;
+		try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+			dataSet = OsmReader.parseDataSet(inputStream, NullProgressMonitor.INSTANCE);
+		}
+		MainApplication.getLayerManager().addLayer(new OsmDataLayer(dataSet, layerName, file));
+		return dataSet;
+	}
+
+}
@@ -0,0 +1,241 @@
+package me.wiefferink.bagquick;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates a large BAG ODS and BAG OSM file pair for the ReplayHarness
+ * - Buildings are placed on a grid, with all the situations an update can run into:
+ *   new buildings, up-to-date buildings, shifted nodes, extra and missing nodes, outdated tags and notes
+ * - Pairs of new terraced houses share a wall, some of them on both sides of a tile edge of the tiled conflation
+ * - The OSM file looks like a download, with positive ids and versions, so it can also be used for a tiled conflation
+ * - The same arguments always generate the same files
+ *
+ * Arguments: <output directory> [building count, default 20000] [seed, default 1]
+ */
+public final class NeighbourhoodGenerator {
+
+	/** Somewhere in the east of The Netherlands, same area as the test fixtures */
+	private static final double ORIGIN_LAT = 52.40;
+	private static final double ORIGIN_LON = 6.90;
+
+	/** Distance between the centers of buildings */
+	private static final double GRID_SPACING_METERS = 25;
+
+	/** Kind of difference between the BAG and OSM version of a building, picked by building index */
+	private enum Variant {
+		/** Not in OSM yet */
+		NEW,
+		/** Same geometry and tags */
+		UP_TO_DATE,
+		/** Some nodes are a bit off */
+		SHIFTED,
+		/** OSM has an additional node */
+		EXTRA_NODE,
+		/** OSM misses a node */
+		MISSING_NODE,
+		/** Outdated source:date */
+		OUTDATED_TAGS,
+		/** Has a note that should be reviewed first */
+		NOTE,
+		/** Not in OSM yet, as wide as the grid spacing so it shares its corners with the next building */
+		TERRACED
+	}
+
+	private static final Variant[] VARIANT_MIX = {
+		Variant.NEW, Variant.NEW,
+		Variant.UP_TO_DATE, Variant.UP_TO_DATE, Variant.UP_TO_DATE, Variant.UP_TO_DATE,
+		Variant.SHIFTED, Variant.SHIFTED,
+		Variant.EXTRA_NODE,
+		Variant.MISSING_NODE,
+		Variant.OUTDATED_TAGS,
+		Variant.NOTE,
+		Variant.TERRACED, Variant.TERRACED
+	};
+
+	private final Random random;
+	private final int buildingCount;
+	private final int columns;
+
+	private long nextBagId = -1;
+	private long nextOsmId = 1;
+
+	private NeighbourhoodGenerator(int buildingCount, long seed) {
+		this.random = new Random(seed);
+		this.buildingCount = buildingCount;
+		this.columns = (int) Math.ceil(Math.sqrt(buildingCount));
+	}
+
+	public static void main(String[] args) throws IOException, XMLStreamException {
+		if (args.length < 1) {
+			System.out.println("Usage: NeighbourhoodGenerator <output directory> [building count] [seed]");
+			System.exit(1);
+		}
+		File directory = new File(args[0]);
+		int buildingCount = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+		Files.createDirectories(directory.toPath());
+		File bagFile = new File(directory, "BAG ODS.osm");
+		File osmFile = new File(directory, "BAG OSM.osm");
+		new NeighbourhoodGenerator(buildingCount, seed).generate(bagFile, osmFile);
+		System.out.printf("Generated %d buildings in %s and %s%n", buildingCount, bagFile, osmFile);
+	}
+
+	private void generate(File bagFile, File osmFile) throws IOException, XMLStreamException {
+		XMLOutputFactory factory = XMLOutputFactory.newInstance();
+		try (OutputStream bagStream = new BufferedOutputStream(Files.newOutputStream(bagFile.toPath()));
+			 OutputStream osmStream = new BufferedOutputStream(Files.newOutputStream(osmFile.toPath()))) {
+			XMLStreamWriter bagWriter = factory.createXMLStreamWriter(bagStream, "UTF-8");
+			XMLStreamWriter osmWriter = factory.createXMLStreamWriter(osmStream, "UTF-8");
+			startDocument(bagWriter);
+			startDocument(osmWriter);
+
+			for (int index = 0; index < buildingCount; index++) {
+				writeBuilding(index, bagWriter, osmWriter);
+			}
+
+			endDocument(bagWriter);
+			endDocument(osmWriter);
+		}
+	}
+
+	/** Write the BAG version and (depending on the variant) the OSM version of a building */
+	private void writeBuilding(int index, XMLStreamWriter bagWriter, XMLStreamWriter osmWriter) throws XMLStreamException {
+		Variant variant = VARIANT_MIX[index % VARIANT_MIX.length];
+		String bagRef = String.format(Locale.ROOT, "%016d", 1000000000000000L + index);
+
+		// Rectangle with some additional nodes on the long sides, between 4 and 12 nodes
+		double centerX = (index % columns) * GRID_SPACING_METERS;
+		double centerY = (index / columns) * GRID_SPACING_METERS;
+		double width = 6 + random.nextDouble() * 8;
+		double depth = 8 + random.nextDouble() * 6;
+		int extraPerSide = random.nextInt(5);
+		if (variant == Variant.TERRACED) {
+			width = GRID_SPACING_METERS;
+			depth = 10;
+			extraPerSide = 0;
+		}
+		int nodeCount = 4 + 2 * extraPerSide;
+		double[] xs = new double[nodeCount];
+		double[] ys = new double[nodeCount];
+		int node = 0;
+		for (int side = 0; side < 2; side++) {
+			double y = centerY + (side == 0 ? -depth : depth) / 2;
+			for (int i = 0; i <= extraPerSide + 1; i++) {
+				double fraction = (double) i / (extraPerSide + 1);
+				xs[node] = centerX + (side == 0 ? fraction - 0.5 : 0.5 - fraction) * width;
+				ys[node] = y;
+				node++;
+			}
+		}
+
+		long bagWayId = nextBagId--;
+		writeWay(bagWriter, bagWayId, xs, ys, true);
+		writeTags(bagWriter, bagRef, "2022-01-01", null);
+		bagWriter.writeEndElement();
+
+		if (variant == Variant.NEW || variant == Variant.TERRACED) {
+			return;
+		}
+
+		// OSM version
+		double[] osmXs = xs;
+		double[] osmYs = ys;
+		if (variant == Variant.SHIFTED) {
+			osmXs = xs.clone();
+			osmYs = ys.clone();
+			for (int i = 0; i < nodeCount; i += 2) {
+				osmXs[i] += random.nextDouble() - 0.5;
+				osmYs[i] += random.nextDouble() - 0.5;
+			}
+		} else if (variant == Variant.EXTRA_NODE) {
+			osmXs = new double[nodeCount + 1];
+			osmYs = new double[nodeCount + 1];
+			System.arraycopy(xs, 0, osmXs, 0, nodeCount);
+			System.arraycopy(ys, 0, osmYs, 0, nodeCount);
+			osmXs[nodeCount] = (xs[nodeCount - 1] + xs[0]) / 2;
+			osmYs[nodeCount] = (ys[nodeCount - 1] + ys[0]) / 2;
+		} else if (variant == Variant.MISSING_NODE) {
+			osmXs = new double[nodeCount - 1];
+			osmYs = new double[nodeCount - 1];
+			System.arraycopy(xs, 1, osmXs, 0, nodeCount - 1);
+			System.arraycopy(ys, 1, osmYs, 0, nodeCount - 1);
+		}
+		writeWay(osmWriter, nextOsmId++, osmXs, osmYs, false);
+		writeTags(osmWriter, bagRef, variant == Variant.OUTDATED_TAGS ? "2015-01-01" : "2022-01-01", variant == Variant.NOTE ? "Check the shape on location" : null);
+		osmWriter.writeEndElement();
+	}
+
+	/**
+	 * Write the nodes of a closed way, and start the way element
+	 * - The caller writes the tags and ends the way element
+	 */
+	private void writeWay(XMLStreamWriter writer, long wayId, double[] xs, double[] ys, boolean bag) throws XMLStreamException {
+		long[] nodeIds = new long[xs.length];
+		for (int i = 0; i < xs.length; i++) {
+			nodeIds[i] = bag ? nextBagId-- : nextOsmId++;
+			writer.writeEmptyElement("node");
+			writer.writeAttribute("id", Long.toString(nodeIds[i]));
+			if (!bag) {
+				writer.writeAttribute("version", "1");
+			}
+			writer.writeAttribute("lat", formatCoordinate(ORIGIN_LAT + PlanarProjection.metersToDegreesLat(ys[i])));
+			writer.writeAttribute("lon", formatCoordinate(ORIGIN_LON + PlanarProjection.metersToDegreesLon(xs[i], ORIGIN_LAT)));
+		}
+
+		writer.writeStartElement("way");
+		writer.writeAttribute("id", Long.toString(wayId));
+		if (!bag) {
+			writer.writeAttribute("version", "1");
+		}
+		for (int i = 0; i <= xs.length; i++) {
+			writer.writeEmptyElement("nd");
+			writer.writeAttribute("ref", Long.toString(nodeIds[i % xs.length]));
+		}
+	}
+
+	private static void writeTags(XMLStreamWriter writer, String bagRef, String sourceDate, String note) throws XMLStreamException {
+		writeTag(writer, "building", "house");
+		writeTag(writer, "ref:bag", bagRef);
+		writeTag(writer, "source", "BAG");
+		writeTag(writer, "source:date", sourceDate);
+		writeTag(writer, "start_date", "1975");
+		if (note != null) {
+			writeTag(writer, "note", note);
+		}
+	}
+
+	private static void writeTag(XMLStreamWriter writer, String key, String value) throws XMLStreamException {
+		writer.writeEmptyElement("tag");
+		writer.writeAttribute("k", key);
+		writer.writeAttribute("v", value);
+	}
+
+	private static String formatCoordinate(double value) {
+		return String.format(Locale.ROOT, "%.11f", value);
+	}
+
+	private static void startDocument(XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeStartElement("osm");
+		writer.writeAttribute("version", "0.6");
+		writer.writeAttribute("upload", "false");
+		writer.writeAttribute("generator", "bag-quick NeighbourhoodGenerator");
+	}
+
+	private static void endDocument(XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		writer.close();
+	}
+
+}
@@ -0,0 +1,165 @@
+package me.wiefferink.bagquick;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compares the osmChange files of a tiled and a normal conflation of the same extracts, used by ConflateTool with --compare-tiled
+ * - Buildings are compared by ref:bag, with their tags and nodes (existing nodes by id, new nodes by location)
+ * - Buildings left out by the tiled conflation are skipped, the rest should be the same
+ * - The tiled file should not have more nodes at the same location than the other, those are nodes that should have been merged
+ */
+final class OsmChangeComparison {
+
+	private OsmChangeComparison() {
+	}
+
+	/**
+	 * Compare the result of a tiled conflation with the result of a normal one
+	 * @param leftOut ref:bag of the buildings the tiled conflation left out
+	 * @return Description of each difference, empty when they are the same
+	 */
+	static List<String> compare(File expectedFile, File tiledFile, Set<String> leftOut) throws IOException, XMLStreamException {
+		OsmChange expected = OsmChange.read(expectedFile);
+		OsmChange tiled = OsmChange.read(tiledFile);
+		List<String> result = new ArrayList<>();
+
+		Map<String, String> expectedBuildings = expected.getBuildings();
+		Map<String, String> tiledBuildings = tiled.getBuildings();
+		Set<String> refs = new TreeSet<>(expectedBuildings.keySet());
+		refs.addAll(tiledBuildings.keySet());
+		for (String ref : refs) {
+			if (leftOut.contains(ref)) {
+				continue;
+			}
+			String expectedBuilding = expectedBuildings.get(ref);
+			String tiledBuilding = tiledBuildings.get(ref);
+			if (expectedBuilding == null) {
+				result.add(ref + ": only changed by the tiled conflation: " + tiledBuilding);
+			} else if (tiledBuilding == null) {
+				result.add(ref + ": not changed by the tiled conflation, expected " + expectedBuilding);
+			} else if (!expectedBuilding.equals(tiledBuilding)) {
+				result.add(ref + ": tiled " + tiledBuilding + ", expected " + expectedBuilding);
+			}
+		}
+
+		int expectedDuplicates = expected.countDuplicateLocations();
+		int tiledDuplicates = tiled.countDuplicateLocations();
+		if (tiledDuplicates > expectedDuplicates) {
+			result.add(String.format("%d created or moved nodes share a location with another one, expected %d", tiledDuplicates, expectedDuplicates));
+		}
+		return result;
+	}
+
+	/** Created and modified objects of an osmChange file, deletes are not compared */
+	private static final class OsmChange {
+		/** Location of the created and modified nodes by id */
+		private final Map<Long, String> nodeLocations = new HashMap<>();
+		/** Nodes and tags of the created and modified ways with a ref:bag */
+		private final List<List<Long>> wayNodes = new ArrayList<>();
+		private final List<Map<String, String>> wayTags = new ArrayList<>();
+
+		private static OsmChange read(File file) throws IOException, XMLStreamException {
+			OsmChange result = new OsmChange();
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+				XMLStreamReader reader = factory.createXMLStreamReader(input);
+				boolean deleting = false;
+				List<Long> nodes = null;
+				Map<String, String> tags = null;
+				while (reader.hasNext()) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						switch (reader.getLocalName()) {
+							case "delete":
+								deleting = true;
+								break;
+							case "node":
+								if (!deleting) {
+									long id = Long.parseLong(reader.getAttributeValue(null, "id"));
+									result.nodeLocations.put(id, reader.getAttributeValue(null, "lat") + "," + reader.getAttributeValue(null, "lon"));
+								}
+								break;
+							case "way":
+								if (!deleting) {
+									nodes = new ArrayList<>();
+									tags = new TreeMap<>();
+								}
+								break;
+							case "nd":
+								if (nodes != null) {
+									nodes.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
+								}
+								break;
+							case "tag":
+								if (tags != null) {
+									tags.put(reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+								}
+								break;
+							default:
+								break;
+						}
+					} else if (event == XMLStreamConstants.END_ELEMENT) {
+						if (reader.getLocalName().equals("delete")) {
+							deleting = false;
+						} else if (reader.getLocalName().equals("way") && nodes != null) {
+							if (tags.containsKey("ref:bag")) {
+								result.wayNodes.add(nodes);
+								result.wayTags.add(tags);
+							}
+							nodes = null;
+							tags = null;
+						}
+					}
+				}
+				reader.close();
+			}
+			return result;
+		}
+
+		/** Description of each changed building by ref:bag, the same in both files when the buildings are the same */
+		private Map<String, String> getBuildings() {
+			Map<String, String> result = new HashMap<>();
+			for (int way = 0; way < wayNodes.size(); way++) {
+				List<String> nodes = new ArrayList<>();
+				for (long id : wayNodes.get(way)) {
+					// Ids of new nodes depend on the order of the changes, only their location matters
+					String location = nodeLocations.get(id);
+					String node = id > 0 ? "#" + id : "new";
+					nodes.add(location == null ? node : node + "@" + location);
+				}
+				result.put(wayTags.get(way).get("ref:bag"), wayTags.get(way) + " " + nodes);
+			}
+			return result;
+		}
+
+		/** Number of created and modified nodes at the location of another one */
+		private int countDuplicateLocations() {
+			Map<String, Integer> counts = new HashMap<>();
+			for (String location : nodeLocations.values()) {
+				counts.merge(location, 1, Integer::sum);
+			}
+			int result = 0;
+			for (int count : counts.values()) {
+				result += count - 1;
+			}
+			return result;
+		}
+	}
+
+}
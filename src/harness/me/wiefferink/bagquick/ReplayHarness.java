@@ -0,0 +1,239 @@
+package me.wiefferink.bagquick;
+
+import me.wiefferink.bagquick.BuildingUpdate.Outcome;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays BAG updates without a display, and checks the results
+ * - Loads a BAG ODS and BAG OSM file as layers, and updates buildings like a click would
+ * - Checks that each resulting building has the BAG geometry and tags
+ * - Reports the outcomes, throughput and memory use, exits with 1 when a check failed (for use in CI)
+ *
+ * Arguments:
+ * - --bag <file> and --osm <file>: files to load, defaults to the fixtures in src/test/resources
+ * - --ref <ref:bag>: update the building with this ref:bag, can be repeated
+ * - --at <lat>,<lon>: update the building at this location, can be repeated
+ * - Without --ref and --at, all BAG buildings with a ref:bag are updated
+ */
+public final class ReplayHarness {
+
+	/** Maximum distance between a resulting node and its BAG node, a bit more than the precision updates aim for */
+	private static final double MAX_NODE_ERROR_METERS = 0.015;
+
+	/** Maximum number of check failures to print */
+	private static final int MAX_FAILURES_SHOWN = 20;
+
+	private ReplayHarness() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		File bagFile = new File("src/test/resources/BAG ODS.osm");
+		File osmFile = new File("src/test/resources/BAG OSM.osm");
+		List<String> refs = new ArrayList<>();
+		List<LatLon> locations = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			switch (args[i]) {
+				case "--bag":
+					bagFile = new File(value);
+					i++;
+					break;
+				case "--osm":
+					osmFile = new File(value);
+					i++;
+					break;
+				case "--ref":
+					refs.add(value);
+					i++;
+					break;
+				case "--at":
+					String[] parts = value.split(",");
+					locations.add(new LatLon(Double.parseDouble(parts[0]), Double.parseDouble(parts[1])));
+					i++;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+
+		HeadlessJosm.init();
+		long memoryBefore = usedMemory();
+		long loadStart = System.nanoTime();
+		DataSet bagDataSet = HeadlessJosm.loadLayer(bagFile, BuildingUpdate.BAG_LAYER_NAME);
+		HeadlessJosm.loadLayer(osmFile, BuildingUpdate.OSM_LAYER_NAME);
+		System.out.printf("Loaded %s and %s in %d ms%n", bagFile, osmFile, (System.nanoTime() - loadStart) / 1_000_000);
+
+		// Not started: no warm-up in the background that would skew the timings, the layers are found by name
+		CollectingValidationScheduler validationScheduler = new CollectingValidationScheduler();
+		BagSession session = new BagSession(validationScheduler, () -> { });
+		BagRefIndex osmRefIndex = session.getOsmRefIndex();
+
+		// Collect the updates to do
+		Map<String, Way> bagWaysByRef = new HashMap<>();
+		for (Way bagWay : bagDataSet.getWays()) {
+			String bagRef = bagWay.get("ref:bag");
+			if (bagRef != null && !bagRef.isEmpty() && bagWay.isUsable()) {
+				bagWaysByRef.put(bagRef, bagWay);
+			}
+		}
+		List<BuildingUpdate> updates = new ArrayList<>();
+		if (refs.isEmpty() && locations.isEmpty()) {
+			refs.addAll(bagWaysByRef.keySet());
+		}
+		for (String ref : refs) {
+			Way bagWay = bagWaysByRef.get(ref);
+			if (bagWay == null) {
+				System.out.printf("No BAG building with ref:bag %s%n", ref);
+				continue;
+			}
+			updates.add(new BuildingUpdate(bagWay, session));
+		}
+		for (LatLon location : locations) {
+			updates.add(new BuildingUpdate(location, session));
+		}
+
+		// Run the updates
+		Map<Outcome, Integer> outcomeCounts = new EnumMap<>(Outcome.class);
+		List<String> failures = new ArrayList<>();
+		int checkFailures = 0;
+		long[] durations = new long[updates.size()];
+		long[][] phaseDurations = new long[UpdateTimings.Phase.values().length][updates.size()];
+		int[] phaseCounts = new int[UpdateTimings.Phase.values().length];
+		long runStart = System.nanoTime();
+		for (int i = 0; i < updates.size(); i++) {
+			BuildingUpdate update = updates.get(i);
+			long start = System.nanoTime();
+			update.executeInternal();
+			durations[i] = System.nanoTime() - start;
+			for (UpdateTimings.Phase phase : UpdateTimings.Phase.values()) {
+				if (update.getTimings().hasRun(phase)) {
+					phaseDurations[phase.ordinal()][phaseCounts[phase.ordinal()]++] = update.getTimings().getNanos(phase);
+				}
+			}
+
+			Outcome outcome = update.getOutcome();
+			outcomeCounts.merge(outcome, 1, Integer::sum);
+			String problem = outcome == Outcome.FAILED ? null : check(update, osmRefIndex);
+			if (problem != null) {
+				checkFailures++;
+			}
+			if (outcome == Outcome.FAILED) {
+				problem = "failed: " + update.getResultSummary().getFailedMessage();
+			}
+			if (problem != null && failures.size() < MAX_FAILURES_SHOWN) {
+				Way bagWay = update.getBagWay();
+				failures.add((bagWay == null ? "?" : bagWay.get("ref:bag")) + ": " + problem);
+			}
+		}
+		long runNanos = System.nanoTime() - runStart;
+
+		// Report
+		System.out.printf("Updated %d buildings in %d ms (%.0f buildings per minute)%n", updates.size(), runNanos / 1_000_000, updates.size() * 60e9 / Math.max(runNanos, 1));
+		Arrays.sort(durations);
+		System.out.printf("Per building: p50 %.2f ms, p95 %.2f ms, max %.2f ms%n", percentile(durations, 0.5), percentile(durations, 0.95), percentile(durations, 1));
+		for (UpdateTimings.Phase phase : UpdateTimings.Phase.values()) {
+			long[] phaseNanos = Arrays.copyOf(phaseDurations[phase.ordinal()], phaseCounts[phase.ordinal()]);
+			Arrays.sort(phaseNanos);
+			System.out.printf("    %s: p50 %.2f ms, p95 %.2f ms, max %.2f ms%n", phase, percentile(phaseNanos, 0.5), percentile(phaseNanos, 0.95), percentile(phaseNanos, 1));
+		}
+		for (Map.Entry<Outcome, Integer> entry : outcomeCounts.entrySet()) {
+			System.out.printf("    %s: %d%n", entry.getKey(), entry.getValue());
+		}
+		System.out.printf("Ways scheduled for validation: %d%n", validationScheduler.scheduledWays);
+		System.out.printf("Memory used: %d MB (%d MB before loading)%n", usedMemory() / (1024 * 1024), memoryBefore / (1024 * 1024));
+		for (String failure : failures) {
+			System.out.println("    " + failure);
+		}
+		System.out.printf("Check failures: %d%n", checkFailures);
+
+		session.getUpToDateCache().unbind();
+		session.getBagBuildingIndex().unbind();
+		osmRefIndex.unbind();
+		System.exit(checkFailures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Check the result of an update
+	 * @return Description of the problem, or null when the result is correct
+	 */
+	private static String check(BuildingUpdate update, BagRefIndex osmRefIndex) {
+		Way bagWay = update.getBagWay();
+		Way osmWay = update.getOsmWay();
+		if (bagWay == null || osmWay == null) {
+			return "no resulting way";
+		}
+
+		// Notes have to be reviewed first, nothing has changed
+		if (update.getOutcome() == Outcome.NEEDS_REVIEW) {
+			return null;
+		}
+
+		// Should be the only building with the ref:bag
+		if (osmRefIndex.getWays(bagWay.get("ref:bag")).size() != 1) {
+			return "multiple OSM ways with the same ref:bag";
+		}
+
+		// Geometry should match the BAG, node by node
+		if (osmWay.getNodesCount() != bagWay.getNodesCount()) {
+			return "node count " + osmWay.getNodesCount() + ", BAG has " + bagWay.getNodesCount();
+		}
+		if (!osmWay.isClosed()) {
+			return "way is not closed";
+		}
+		PlanarProjection projection = new PlanarProjection(bagWay.firstNode().lat(), bagWay.firstNode().lon());
+		for (int position = 0; position < bagWay.getNodesCount(); position++) {
+			Node bagNode = bagWay.getNode(position);
+			Node osmNode = osmWay.getNode(position);
+			double dx = projection.x(bagNode.lon()) - projection.x(osmNode.lon());
+			double dy = projection.y(bagNode.lat()) - projection.y(osmNode.lat());
+			double distance = Math.sqrt(dx * dx + dy * dy);
+			if (distance > MAX_NODE_ERROR_METERS) {
+				return String.format("node %d is %.3f m away from the BAG node", position, distance);
+			}
+		}
+
+		// Tags should be up-to-date
+		Map<String, String> tagChanges = UpdatePlan.computeTagChanges(bagWay.getKeys(), osmWay.getKeys());
+		if (!tagChanges.isEmpty()) {
+			return "tags not up-to-date: " + tagChanges;
+		}
+		return null;
+	}
+
+	private static double percentile(long[] sortedNanos, double fraction) {
+		if (sortedNanos.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(fraction * sortedNanos.length) - 1;
+		return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1e6;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/** Does not run the validator (it needs a display), only counts the ways */
+	private static final class CollectingValidationScheduler extends ValidationScheduler {
+		private int scheduledWays = 0;
+
+		@Override
+		public void schedule(Collection<Way> osmWays) {
+			scheduledWays += osmWays.size();
+		}
+	}
+
+}
@@ -0,0 +1,773 @@
+package me.wiefferink.bagquick;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An .osm extract streamed into spool files, with its ways grouped by tile
+ * - Reads the extract once with StAX, none of it is turned into JOSM primitives here
+ * - Nodes end up in a memory-mapped file sorted by id, ways and tags in files that are read back a tile at a time
+ * - Nodes, ways and relations can be listed in any order, ways are spooled once more when all nodes are known
+ * - The heap holds the position of each way for each tile it is in, a bit per node and the ref:bag and tile of each BAG building,
+ *   not the tags and coordinates themselves (so it still grows with the extract: roughly 10 bytes per way and 35 bytes per BAG building)
+ * - BAG extracts: the ways with a ref:bag, each in the tile of its center
+ * - OSM extracts: all ways and lone nodes within the halo of a tile with BAG buildings, and the ways with the ref:bag of a building of the tile
+ * - Relations are skipped, building updates do not use them
+ */
+final class TileSpool implements Closeable {
+
+	/** Size of a tile in degrees (roughly 2200 by 1400 meters in The Netherlands) */
+	static final double TILE_SIZE_DEGREES = 0.02;
+	/** Distance around a tile that is loaded with it, so buildings near the edge have their neighbours (roughly 110 by 70 meters) */
+	static final double HALO_DEGREES = 0.001;
+	/** Key of no tile */
+	static final long NO_TILE = Long.MIN_VALUE;
+
+	/** Node record: id, lat, lon, version and the position of the tags (-1 for none) */
+	private static final int NODE_BYTES = 8 + 8 + 8 + 4 + 8;
+	/** Node records per mapping, a single mapping is limited to 2 GB */
+	private static final int NODES_PER_CHUNK = Integer.MAX_VALUE / NODE_BYTES;
+
+	/** True for a BAG extract, false for an OSM extract */
+	private final boolean bagExtract;
+	/** Spool of the BAG extract, to find the tiles that matter (null for the BAG extract itself) */
+	private final TileSpool bagSpool;
+
+	private final File nodesFile;
+	/** Ways as read from the extract, removed once they are in waysFile */
+	private final File rawWaysFile;
+	private final File waysFile;
+	private final File tagsFile;
+	private FileChannel waysChannel;
+	private FileChannel tagsChannel;
+	/** Node records sorted by id, split in mappings of at most NODES_PER_CHUNK records */
+	private MappedByteBuffer[] nodeChunks;
+	private int nodeCount = 0;
+	private int rawWayCount = 0;
+	private int wayCount = 0;
+	/** Ways that have been skipped because nodes are missing from the extract */
+	private int incompleteWayCount = 0;
+
+	/** Positions of the ways (and indexes of the lone nodes) by tile key */
+	private final Map<Long, Tile> tiles = new HashMap<>();
+
+	// BAG extracts: tile of each building by ref:bag, sorted by ref:bag once read
+	/** UTF-8 bytes of all ref:bag values after each other */
+	private byte[] refBytes = new byte[16 * 1024];
+	private int refBytesSize = 0;
+	/** Position in refBytes of the ref:bag of each building (high int) and its length (low int) */
+	private long[] buildingRefs = new long[1024];
+	private long[] buildingTiles = new long[1024];
+	private int buildingCount = 0;
+
+	private TileSpool(File directory, String name, boolean bagExtract, TileSpool bagSpool) {
+		this.bagExtract = bagExtract;
+		this.bagSpool = bagSpool;
+		this.nodesFile = new File(directory, name + ".nodes");
+		this.rawWaysFile = new File(directory, name + ".rawways");
+		this.waysFile = new File(directory, name + ".ways");
+		this.tagsFile = new File(directory, name + ".tags");
+	}
+
+	/**
+	 * Stream a BAG extract into spool files
+	 * @param directory Directory for the spool files, removed again by close()
+	 */
+	static TileSpool readBag(File osmFile, File directory) throws IOException, XMLStreamException {
+		TileSpool result = new TileSpool(directory, "bag", true, null);
+		result.read(osmFile);
+		return result;
+	}
+
+	/**
+	 * Stream an OSM extract into spool files, only keeps what is needed for the tiles of the BAG extract
+	 * - The extract should be a download of the OSM data (with ids and versions), the changes are meant for upload
+	 * @param directory Directory for the spool files, removed again by close()
+	 */
+	static TileSpool readOsm(File osmFile, File directory, TileSpool bagSpool) throws IOException, XMLStreamException {
+		TileSpool result = new TileSpool(directory, "osm", false, bagSpool);
+		result.read(osmFile);
+		return result;
+	}
+
+	/** Keys of the tiles that have ways or nodes, sorted */
+	List<Long> getTileKeys() {
+		List<Long> result = new ArrayList<>(tiles.keySet());
+		Collections.sort(result);
+		return result;
+	}
+
+	/** Check if a tile has ways or nodes */
+	boolean hasTile(long tileKey) {
+		return tiles.containsKey(tileKey);
+	}
+
+	/**
+	 * Read the ways of a tile back from the spool
+	 * - Can be called from multiple threads at the same time
+	 */
+	List<SpooledWay> readWays(long tileKey) throws IOException {
+		Tile tile = tiles.get(tileKey);
+		if (tile == null) {
+			return Collections.emptyList();
+		}
+
+		List<SpooledWay> result = new ArrayList<>(tile.wayCount);
+		for (int way = 0; way < tile.wayCount; way++) {
+			ByteBuffer buffer = readRecord(waysChannel, tile.ways[way]);
+			long id = buffer.getLong();
+			int version = buffer.getInt();
+			int[] nodes = new int[buffer.getInt()];
+			for (int node = 0; node < nodes.length; node++) {
+				nodes[node] = buffer.getInt();
+			}
+			result.add(new SpooledWay(id, version, nodes, readTags(buffer)));
+		}
+		return result;
+	}
+
+	/** Indexes of the nodes within the halo of a tile that are not part of any way */
+	int[] getLoneNodes(long tileKey) {
+		Tile tile = tiles.get(tileKey);
+		return tile == null ? new int[0] : Arrays.copyOf(tile.loneNodes, tile.loneNodeCount);
+	}
+
+	long getNodeId(int index) {
+		return nodeChunk(index).getLong(nodeOffset(index));
+	}
+
+	double getNodeLat(int index) {
+		return nodeChunk(index).getDouble(nodeOffset(index) + 8);
+	}
+
+	double getNodeLon(int index) {
+		return nodeChunk(index).getDouble(nodeOffset(index) + 16);
+	}
+
+	int getNodeVersion(int index) {
+		return nodeChunk(index).getInt(nodeOffset(index) + 24);
+	}
+
+	/** Tags of a node, can be called from multiple threads at the same time */
+	Map<String, String> getNodeTags(int index) throws IOException {
+		long position = nodeChunk(index).getLong(nodeOffset(index) + 28);
+		return position < 0 ? new LinkedHashMap<>() : readTags(readRecord(tagsChannel, position));
+	}
+
+	/**
+	 * Tile of the BAG building with a ref:bag (BAG extracts only)
+	 * - Compares the exact value, "0123" and "123" are different buildings
+	 * @return Key of the tile, NO_TILE when there is no such building
+	 */
+	long getBuildingTile(String bagRef) {
+		byte[] ref = bagRef.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = buildingCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleRef = buildingRefs[middle];
+			int compared = compareRefs(refBytes, (int) (middleRef >>> 32), (int) middleRef, ref, 0, ref.length);
+			if (compared < 0) {
+				low = middle + 1;
+			} else if (compared > 0) {
+				high = middle - 1;
+			} else {
+				return buildingTiles[middle];
+			}
+		}
+		return NO_TILE;
+	}
+
+	int getNodeCount() {
+		return nodeCount;
+	}
+
+	int getWayCount() {
+		return wayCount;
+	}
+
+	int getIncompleteWayCount() {
+		return incompleteWayCount;
+	}
+
+	/** Close the spool files and remove them */
+	@Override
+	public void close() throws IOException {
+		if (waysChannel != null) {
+			waysChannel.close();
+		}
+		if (tagsChannel != null) {
+			tagsChannel.close();
+		}
+		// Mapped files cannot be removed on every platform while still mapped, try again on exit
+		for (File file : Arrays.asList(nodesFile, waysFile, tagsFile)) {
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/** Tile index of a coordinate */
+	static long tileIndex(double coordinate) {
+		return (long) Math.floor(coordinate / TILE_SIZE_DEGREES);
+	}
+
+	static long tileKey(long latTile, long lonTile) {
+		return (latTile << 32) | (lonTile & 0xFFFFFFFFL);
+	}
+
+	/** Key of the tile a location is in */
+	static long tileOf(double lat, double lon) {
+		return tileKey(tileIndex(lat), tileIndex(lon));
+	}
+
+	/** Lowest latitude of a tile */
+	static double getMinLat(long tileKey) {
+		return (tileKey >> 32) * TILE_SIZE_DEGREES;
+	}
+
+	/** Lowest longitude of a tile */
+	static double getMinLon(long tileKey) {
+		return ((int) tileKey) * TILE_SIZE_DEGREES;
+	}
+
+	private void read(File osmFile) throws IOException, XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		try (InputStream input = new BufferedInputStream(new FileInputStream(osmFile), 1 << 16);
+				SpoolOutput nodeOutput = new SpoolOutput(nodesFile);
+				SpoolOutput rawWayOutput = new SpoolOutput(rawWaysFile);
+				SpoolOutput tagOutput = new SpoolOutput(tagsFile)) {
+			XMLStreamReader reader = factory.createXMLStreamReader(input);
+			NodeWriter nodeWriter = new NodeWriter(nodeOutput, tagOutput);
+			String element = null;
+			long id = 0;
+			int version = 0;
+			double lat = 0;
+			double lon = 0;
+			List<Long> wayNodes = new ArrayList<>();
+			Map<String, String> tags = new LinkedHashMap<>();
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					switch (name) {
+						case "node":
+						case "way":
+						case "relation":
+							element = name;
+							id = Long.parseLong(reader.getAttributeValue(null, "id"));
+							String versionValue = reader.getAttributeValue(null, "version");
+							version = versionValue == null ? 0 : Integer.parseInt(versionValue);
+							wayNodes.clear();
+							tags.clear();
+							if (name.equals("node")) {
+								lat = Double.parseDouble(reader.getAttributeValue(null, "lat"));
+								lon = Double.parseDouble(reader.getAttributeValue(null, "lon"));
+							}
+							break;
+						case "nd":
+							if ("way".equals(element)) {
+								wayNodes.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
+							}
+							break;
+						case "tag":
+							if (element != null) {
+								tags.put(reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+							}
+							break;
+						default:
+							break;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(element)) {
+					if (element.equals("node")) {
+						checkUploaded("node", id, version);
+						nodeWriter.write(id, lat, lon, version, tags);
+					} else if (element.equals("way")) {
+						checkUploaded("way", id, version);
+						writeRawWay(id, version, wayNodes, tags, rawWayOutput);
+					}
+					element = null;
+				}
+			}
+			reader.close();
+			nodeOutput.flush();
+			finishNodes(nodeWriter);
+		}
+
+		// Ways can be listed before their nodes, only now all node locations are known
+		BitSet usedNodes = new BitSet(nodeCount);
+		try (DataInputStream rawWays = new DataInputStream(new BufferedInputStream(new FileInputStream(rawWaysFile), 1 << 16));
+				SpoolOutput wayOutput = new SpoolOutput(waysFile)) {
+			for (int way = 0; way < rawWayCount; way++) {
+				byte[] bytes = new byte[rawWays.readInt()];
+				rawWays.readFully(bytes);
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				long id = buffer.getLong();
+				int version = buffer.getInt();
+				long[] nodeIds = new long[buffer.getInt()];
+				for (int node = 0; node < nodeIds.length; node++) {
+					nodeIds[node] = buffer.getLong();
+				}
+				addWay(id, version, nodeIds, readTags(buffer), wayOutput, usedNodes);
+			}
+		}
+		if (!rawWaysFile.delete()) {
+			rawWaysFile.deleteOnExit();
+		}
+		if (!bagExtract) {
+			addLoneNodes(usedNodes);
+		}
+
+		if (bagExtract) {
+			sortBuildings();
+		}
+		waysChannel = FileChannel.open(waysFile.toPath(), StandardOpenOption.READ);
+		tagsChannel = FileChannel.open(tagsFile.toPath(), StandardOpenOption.READ);
+	}
+
+	/** OSM extracts should have ids and versions of the OSM database, otherwise the changes cannot be uploaded */
+	private void checkUploaded(String type, long id, int version) throws IOException {
+		if (!bagExtract && (id <= 0 || version <= 0)) {
+			throw new IOException(String.format("The OSM extract should be a download with versions, %s %d is not", type, id));
+		}
+	}
+
+	/** Map the node records, and sort them by id when the extract did not list them in order */
+	private void finishNodes(NodeWriter nodeWriter) throws IOException {
+		nodeCount = nodeWriter.count;
+		int chunkCount = nodeCount == 0 ? 1 : (nodeCount - 1) / NODES_PER_CHUNK + 1;
+		nodeChunks = new MappedByteBuffer[chunkCount];
+		try (FileChannel channel = FileChannel.open(nodesFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			for (int chunk = 0; chunk < chunkCount; chunk++) {
+				long start = (long) chunk * NODES_PER_CHUNK * NODE_BYTES;
+				long size = Math.min((long) NODES_PER_CHUNK * NODE_BYTES, (long) nodeCount * NODE_BYTES - start);
+				nodeChunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			}
+		}
+
+		if (!nodeWriter.sorted) {
+			byte[] first = new byte[NODE_BYTES];
+			byte[] second = new byte[NODE_BYTES];
+			heapSort(nodeCount, new Sortable() {
+				@Override
+				public int compare(int a, int b) {
+					return Long.compare(getNodeId(a), getNodeId(b));
+				}
+
+				@Override
+				public void swap(int a, int b) {
+					ByteBuffer bufferA = nodeChunk(a).duplicate();
+					ByteBuffer bufferB = nodeChunk(b).duplicate();
+					bufferA.position(nodeOffset(a));
+					bufferA.get(first);
+					bufferB.position(nodeOffset(b));
+					bufferB.get(second);
+					bufferA.position(nodeOffset(a));
+					bufferA.put(second);
+					bufferB.position(nodeOffset(b));
+					bufferB.put(first);
+				}
+			});
+		}
+	}
+
+	/** Write a way as read from the extract, the locations of its nodes might not be known yet */
+	private void writeRawWay(long id, int version, List<Long> nodeIds, Map<String, String> tags, SpoolOutput rawWayOutput) throws IOException {
+		String bagRef = tags.get("ref:bag");
+		if (bagExtract && (bagRef == null || bagRef.isEmpty())) {
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + nodeIds.size() * 8 + tags.size() * 32);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeLong(id);
+		record.writeInt(version);
+		record.writeInt(nodeIds.size());
+		for (long nodeId : nodeIds) {
+			record.writeLong(nodeId);
+		}
+		writeTags(record, tags);
+		rawWayOutput.writeInt(bytes.size());
+		bytes.writeTo(rawWayOutput);
+		rawWayCount++;
+	}
+
+	/** Write a way to the spool with the indexes of its nodes, and add it to the tiles it is needed in */
+	private void addWay(long id, int version, long[] nodeIds, Map<String, String> tags, SpoolOutput wayOutput, BitSet usedNodes) throws IOException {
+		String bagRef = tags.get("ref:bag");
+		int[] nodes = new int[nodeIds.length];
+		double minLat = Double.POSITIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		for (int node = 0; node < nodes.length; node++) {
+			nodes[node] = findNode(nodeIds[node]);
+			if (nodes[node] < 0) {
+				// Incomplete extract
+				incompleteWayCount++;
+				return;
+			}
+			minLat = Math.min(minLat, getNodeLat(nodes[node]));
+			minLon = Math.min(minLon, getNodeLon(nodes[node]));
+			maxLat = Math.max(maxLat, getNodeLat(nodes[node]));
+			maxLon = Math.max(maxLon, getNodeLon(nodes[node]));
+		}
+		if (nodes.length == 0) {
+			return;
+		}
+
+		// Tiles the way is needed in
+		List<Long> wayTiles = new ArrayList<>();
+		if (bagExtract) {
+			long tileKey = tileOf((minLat + maxLat) / 2, (minLon + maxLon) / 2);
+			wayTiles.add(tileKey);
+			addBuilding(bagRef, tileKey);
+		} else {
+			addTilesInHalo(minLat, minLon, maxLat, maxLon, wayTiles);
+			// Same ref:bag as a building of a tile: needed to find it there, also when it is far away
+			long buildingTile = bagRef == null ? NO_TILE : bagSpool.getBuildingTile(bagRef);
+			if (buildingTile != NO_TILE && !wayTiles.contains(buildingTile)) {
+				wayTiles.add(buildingTile);
+			}
+			if (wayTiles.isEmpty()) {
+				return;
+			}
+			for (int node : nodes) {
+				usedNodes.set(node);
+			}
+		}
+
+		long position = wayOutput.getPosition();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + nodes.length * 4 + tags.size() * 32);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeLong(id);
+		record.writeInt(version);
+		record.writeInt(nodes.length);
+		for (int node : nodes) {
+			record.writeInt(node);
+		}
+		writeTags(record, tags);
+		wayOutput.writeInt(bytes.size());
+		bytes.writeTo(wayOutput);
+		wayCount++;
+
+		for (long tileKey : wayTiles) {
+			tiles.computeIfAbsent(tileKey, key -> new Tile()).addWay(position);
+		}
+	}
+
+	/** Add the nodes that are not part of a way to the tiles they are within the halo of */
+	private void addLoneNodes(BitSet usedNodes) {
+		List<Long> nodeTiles = new ArrayList<>();
+		for (int node = usedNodes.nextClearBit(0); node < nodeCount; node = usedNodes.nextClearBit(node + 1)) {
+			nodeTiles.clear();
+			addTilesInHalo(getNodeLat(node), getNodeLon(node), getNodeLat(node), getNodeLon(node), nodeTiles);
+			for (long tileKey : nodeTiles) {
+				tiles.computeIfAbsent(tileKey, key -> new Tile()).addLoneNode(node);
+			}
+		}
+	}
+
+	/** Collect the tiles with BAG buildings that have an area within their halo */
+	private void addTilesInHalo(double minLat, double minLon, double maxLat, double maxLon, List<Long> result) {
+		for (long latTile = tileIndex(minLat - HALO_DEGREES); latTile <= tileIndex(maxLat + HALO_DEGREES); latTile++) {
+			for (long lonTile = tileIndex(minLon - HALO_DEGREES); lonTile <= tileIndex(maxLon + HALO_DEGREES); lonTile++) {
+				long tileKey = tileKey(latTile, lonTile);
+				if (bagSpool.hasTile(tileKey)) {
+					result.add(tileKey);
+				}
+			}
+		}
+	}
+
+	private void addBuilding(String bagRef, long tileKey) {
+		byte[] ref = bagRef.getBytes(StandardCharsets.UTF_8);
+		if (refBytesSize + ref.length > refBytes.length) {
+			refBytes = Arrays.copyOf(refBytes, Math.max(refBytes.length * 2, refBytesSize + ref.length));
+		}
+		System.arraycopy(ref, 0, refBytes, refBytesSize, ref.length);
+		if (buildingCount == buildingRefs.length) {
+			buildingRefs = Arrays.copyOf(buildingRefs, buildingCount * 2);
+			buildingTiles = Arrays.copyOf(buildingTiles, buildingCount * 2);
+		}
+		buildingRefs[buildingCount] = ((long) refBytesSize << 32) | ref.length;
+		refBytesSize += ref.length;
+		buildingTiles[buildingCount] = tileKey;
+		buildingCount++;
+	}
+
+	private void sortBuildings() {
+		heapSort(buildingCount, new Sortable() {
+			@Override
+			public int compare(int a, int b) {
+				long refA = buildingRefs[a];
+				long refB = buildingRefs[b];
+				return compareRefs(refBytes, (int) (refA >>> 32), (int) refA, refBytes, (int) (refB >>> 32), (int) refB);
+			}
+
+			@Override
+			public void swap(int a, int b) {
+				long ref = buildingRefs[a];
+				buildingRefs[a] = buildingRefs[b];
+				buildingRefs[b] = ref;
+				long tile = buildingTiles[a];
+				buildingTiles[a] = buildingTiles[b];
+				buildingTiles[b] = tile;
+			}
+		});
+	}
+
+	/** Compare two ref:bag values by their UTF-8 bytes */
+	private static int compareRefs(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+		for (int index = 0; index < Math.min(aLength, bLength); index++) {
+			int compared = Integer.compare(a[aStart + index] & 0xFF, b[bStart + index] & 0xFF);
+			if (compared != 0) {
+				return compared;
+			}
+		}
+		return Integer.compare(aLength, bLength);
+	}
+
+	/** Index of the node record with an id, -1 when the extract does not have it */
+	private int findNode(long id) {
+		int low = 0;
+		int high = nodeCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleId = getNodeId(middle);
+			if (middleId < id) {
+				low = middle + 1;
+			} else if (middleId > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	private ByteBuffer nodeChunk(int index) {
+		return nodeChunks[index / NODES_PER_CHUNK];
+	}
+
+	private static int nodeOffset(int index) {
+		return (index % NODES_PER_CHUNK) * NODE_BYTES;
+	}
+
+	/** Read a record that starts with its length */
+	private static ByteBuffer readRecord(FileChannel channel, long position) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		readFully(channel, length, position);
+		ByteBuffer result = ByteBuffer.allocate(length.getInt(0));
+		readFully(channel, result, position + 4);
+		result.flip();
+		return result;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException("Spool file ended early");
+			}
+		}
+	}
+
+	private static void writeTags(DataOutputStream output, Map<String, String> tags) throws IOException {
+		output.writeShort(tags.size());
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			writeString(output, tag.getKey());
+			writeString(output, tag.getValue());
+		}
+	}
+
+	private static Map<String, String> readTags(ByteBuffer buffer) {
+		int tagCount = buffer.getShort() & 0xFFFF;
+		Map<String, String> result = new LinkedHashMap<>(tagCount * 2);
+		for (int tag = 0; tag < tagCount; tag++) {
+			result.put(readString(buffer), readString(buffer));
+		}
+		return result;
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeShort(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Sort in place without extra memory, also works on the mapped node records */
+	private static void heapSort(int size, Sortable sortable) {
+		for (int root = size / 2 - 1; root >= 0; root--) {
+			siftDown(sortable, root, size);
+		}
+		for (int end = size - 1; end > 0; end--) {
+			sortable.swap(0, end);
+			siftDown(sortable, 0, end);
+		}
+	}
+
+	private static void siftDown(Sortable sortable, int root, int size) {
+		while (true) {
+			int child = 2 * root + 1;
+			if (child >= size) {
+				return;
+			}
+			if (child + 1 < size && sortable.compare(child, child + 1) < 0) {
+				child++;
+			}
+			if (sortable.compare(root, child) >= 0) {
+				return;
+			}
+			sortable.swap(root, child);
+			root = child;
+		}
+	}
+
+	private interface Sortable {
+		int compare(int a, int b);
+
+		void swap(int a, int b);
+	}
+
+	/** Way read back from the spool, nodes are indexes of node records */
+	static final class SpooledWay {
+		final long id;
+		final int version;
+		final int[] nodes;
+		final Map<String, String> tags;
+
+		private SpooledWay(long id, int version, int[] nodes, Map<String, String> tags) {
+			this.id = id;
+			this.version = version;
+			this.nodes = nodes;
+			this.tags = tags;
+		}
+	}
+
+	/** Contents of a tile, as positions in the spool files */
+	private static final class Tile {
+		private long[] ways = new long[16];
+		private int wayCount = 0;
+		private int[] loneNodes = new int[0];
+		private int loneNodeCount = 0;
+
+		private void addWay(long position) {
+			if (wayCount == ways.length) {
+				ways = Arrays.copyOf(ways, wayCount * 2);
+			}
+			ways[wayCount++] = position;
+		}
+
+		private void addLoneNode(int index) {
+			if (loneNodeCount == loneNodes.length) {
+				loneNodes = Arrays.copyOf(loneNodes, Math.max(16, loneNodeCount * 2));
+			}
+			loneNodes[loneNodeCount++] = index;
+		}
+	}
+
+	/** Writes the node records, and keeps track of them being ordered by id */
+	private static final class NodeWriter {
+		private final SpoolOutput nodeOutput;
+		private final SpoolOutput tagOutput;
+		private int count = 0;
+		private long lastId = Long.MIN_VALUE;
+		private boolean sorted = true;
+
+		private NodeWriter(SpoolOutput nodeOutput, SpoolOutput tagOutput) {
+			this.nodeOutput = nodeOutput;
+			this.tagOutput = tagOutput;
+		}
+
+		private void write(long id, double lat, double lon, int version, Map<String, String> tags) throws IOException {
+			long tagsPosition = -1;
+			if (!tags.isEmpty()) {
+				tagsPosition = tagOutput.getPosition();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				writeTags(new DataOutputStream(bytes), tags);
+				tagOutput.writeInt(bytes.size());
+				bytes.writeTo(tagOutput);
+			}
+
+			nodeOutput.writeLong(id);
+			nodeOutput.writeDouble(lat);
+			nodeOutput.writeDouble(lon);
+			nodeOutput.writeInt(version);
+			nodeOutput.writeLong(tagsPosition);
+			if (id <= lastId) {
+				sorted = false;
+			}
+			lastId = id;
+			count++;
+		}
+	}
+
+	/** Buffered output to a spool file that knows its position (beyond 2 GB) */
+	private static final class SpoolOutput extends DataOutputStream {
+		private SpoolOutput(File file) throws IOException {
+			super(new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16)));
+		}
+
+		private long getPosition() {
+			return ((CountingOutputStream) out).count;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		private CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+}
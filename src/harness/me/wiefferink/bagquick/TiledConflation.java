@@ -0,0 +1,461 @@
+package me.wiefferink.bagquick;
+
+import me.wiefferink.bagquick.BuildingUpdate.Outcome;
+import me.wiefferink.bagquick.TileSpool.SpooledWay;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Conflation of extracts that are too large to load at once, used by ConflateTool with --tiled
+ * - Streams both extracts into spool files first (see TileSpool), then updates the buildings tile by tile
+ * - A tile gets its own DataSets with its BAG buildings and the OSM data within its halo, and runs a BatchUpdate on those
+ * - Tiles run in parallel, their changes are written as soon as the tiles before them are done
+ * - The DataSets of a tile depend on the tile size, the tile lists of TileSpool still grow with the extract (tens of bytes per way)
+ *
+ * Objects within a halo are loaded by multiple tiles, but belong to one of them:
+ * - Ways with the ref:bag of a BAG building belong to the tile of that building, other ways to the tile of their center
+ * - Nodes belong to the lowest id way they are part of, lone nodes to the tile they are in
+ * - A building that would change (or connect to) objects of another tile is left out and listed, to update it in JOSM
+ * - New buildings of two tiles cannot see each other, a building that creates or moves nodes onto the nodes of a BAG building
+ *   of another tile is left out as well (both sides leave out their building, so shared corners are not created twice)
+ * - The other buildings get the same result as a batch update of the whole extract
+ */
+final class TiledConflation {
+
+	/** Part of the halo in which the tile knows all ways of a node, buildings should stay within it */
+	private static final double KNOWN_MARGIN_DEGREES = TileSpool.HALO_DEGREES / 2;
+	/**
+	 * Distance at which a created or moved node counts as on a node of a BAG building of another tile (roughly 1 meter)
+	 * - Duplicate nodes are merged when they are at the exact same location, this only has to cover rounding differences
+	 */
+	private static final double EDGE_NODE_DEGREES = 0.00001;
+
+	private final TileSpool bagSpool;
+	private final TileSpool osmSpool;
+
+	private TiledConflation(TileSpool bagSpool, TileSpool osmSpool) {
+		this.bagSpool = bagSpool;
+		this.osmSpool = osmSpool;
+	}
+
+	/**
+	 * Update the buildings of the extracts tile by tile, and write the changes to an osmChange file
+	 * @return ref:bag of the buildings that have been left out
+	 */
+	static Set<String> run(File bagFile, File osmFile, File outFile) throws Exception {
+		File spoolDirectory = Files.createTempDirectory("bag-quick-spool").toFile();
+		long spoolStart = System.nanoTime();
+		try (TileSpool bagSpool = TileSpool.readBag(bagFile, spoolDirectory);
+				TileSpool osmSpool = TileSpool.readOsm(osmFile, spoolDirectory, bagSpool)) {
+			System.out.printf("Spooled %s (%d buildings) and %s (%d nodes, %d ways) in %d ms%n", bagFile, bagSpool.getWayCount(), osmFile, osmSpool.getNodeCount(), osmSpool.getWayCount(), (System.nanoTime() - spoolStart) / 1_000_000);
+			if (bagSpool.getIncompleteWayCount() + osmSpool.getIncompleteWayCount() > 0) {
+				System.out.printf("Skipped %d BAG and %d OSM ways with nodes missing from the extract%n", bagSpool.getIncompleteWayCount(), osmSpool.getIncompleteWayCount());
+			}
+			return new TiledConflation(bagSpool, osmSpool).conflate(outFile);
+		} finally {
+			if (!spoolDirectory.delete()) {
+				spoolDirectory.deleteOnExit();
+			}
+		}
+	}
+
+	/** Process the tiles in parallel, and write their results in tile order */
+	private Set<String> conflate(File outFile) throws Exception {
+		List<Long> tileKeys = bagSpool.getTileKeys();
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Map<Outcome, Integer> outcomeCounts = new EnumMap<>(Outcome.class);
+		List<String> listed = new ArrayList<>();
+		int changeCount = 0;
+		Set<String> leftOut = new HashSet<>();
+		long runStart = System.nanoTime();
+		try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(outFile.toPath()))) {
+			XMLStreamWriter writer = ConflateTool.startOsmChange(output);
+			// Only a few tiles ahead of the one being written, so finished tiles do not pile up
+			Deque<Future<TileResult>> pending = new ArrayDeque<>();
+			int next = 0;
+			while (next < tileKeys.size() || !pending.isEmpty()) {
+				while (next < tileKeys.size() && pending.size() < threads * 2) {
+					long tileKey = tileKeys.get(next++);
+					pending.add(executor.submit(() -> processTile(tileKey)));
+				}
+
+				TileResult result = pending.removeFirst().get();
+				writer.flush();
+				output.write(result.changes);
+				changeCount += result.changeCount;
+				leftOut.addAll(result.leftOut);
+				for (Map.Entry<Outcome, Integer> entry : result.outcomeCounts.entrySet()) {
+					outcomeCounts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+				}
+				for (String problem : result.problems) {
+					if (listed.size() < ConflateTool.MAX_LISTED) {
+						listed.add(problem);
+					}
+				}
+			}
+			ConflateTool.finishOsmChange(writer);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		System.out.printf("Updated %d tiles in %d ms on %d threads, wrote %d changed objects to %s%n", tileKeys.size(), (System.nanoTime() - runStart) / 1_000_000, threads, changeCount, outFile);
+		for (Map.Entry<Outcome, Integer> entry : outcomeCounts.entrySet()) {
+			System.out.printf("    %s: %d%n", entry.getKey(), entry.getValue());
+		}
+		System.out.printf("    Left out at tile edges: %d%n", leftOut.size());
+		for (String line : listed) {
+			System.out.println("    " + line);
+		}
+		return leftOut;
+	}
+
+	/**
+	 * Update the buildings of a tile
+	 * - Runs again without the buildings that change objects of other tiles, until there are none left
+	 */
+	private TileResult processTile(long tileKey) throws Exception {
+		TileResult result = new TileResult();
+		List<SpooledWay> bagWays = bagSpool.readWays(tileKey);
+		bagWays.sort(Comparator.comparing(bagWay -> bagWay.tags.get("ref:bag")));
+		List<SpooledWay> osmWays = osmSpool.readWays(tileKey);
+		osmWays.sort(Comparator.comparingLong(osmWay -> osmWay.id));
+		int[] loneNodes = osmSpool.getLoneNodes(tileKey);
+
+		Set<Long> otherTileBagNodes = readOtherTileBagNodes(tileKey);
+
+		// Neighbours of buildings sticking out of the known part of the halo are not all there
+		Set<Integer> leftOut = new HashSet<>();
+		for (int index = 0; index < bagWays.size(); index++) {
+			if (!isKnown(bagSpool, bagWays.get(index).nodes, tileKey)) {
+				leftOut.add(index);
+				result.leftOut(bagWays.get(index), "too large for a tile, update it in JOSM");
+			}
+		}
+
+		while (true) {
+			TileData data = new TileData(tileKey);
+			data.loadBag(bagWays);
+			data.loadOsm(osmWays, loneNodes);
+			List<Way> toUpdate = new ArrayList<>();
+			for (int index = 0; index < bagWays.size(); index++) {
+				if (!leftOut.contains(index)) {
+					toUpdate.add(data.bagWays.get(index));
+				}
+			}
+			if (toUpdate.isEmpty()) {
+				break;
+			}
+
+			BagSession session = new BagSession(data.bagDataSet, data.osmDataSet, new ConflateTool.SkippedValidationScheduler());
+			BatchUpdate batchUpdate = new BatchUpdate(toUpdate, session);
+			batchUpdate.setUndoable(false);
+			try {
+				batchUpdate.prepare();
+				batchUpdate.plan();
+				batchUpdate.executeInternal();
+			} finally {
+				session.getUpToDateCache().unbind();
+				session.getBagBuildingIndex().unbind();
+				session.getOsmRefIndex().unbind();
+			}
+
+			boolean changesOtherTiles = false;
+			for (BuildingUpdate update : batchUpdate.getBuildingUpdates()) {
+				String reason = null;
+				if (data.changesOtherTiles(update)) {
+					reason = "connects to buildings of another tile, update it in JOSM";
+				} else if (data.placesNodesOn(update, otherTileBagNodes)) {
+					reason = "shares nodes with a building of another tile, update it in JOSM";
+				}
+				if (reason != null) {
+					int index = data.bagWays.indexOf(update.getBagWay());
+					leftOut.add(index);
+					result.leftOut(bagWays.get(index), reason);
+					changesOtherTiles = true;
+				}
+			}
+			if (changesOtherTiles) {
+				continue;
+			}
+
+			for (BuildingUpdate update : batchUpdate.getBuildingUpdates()) {
+				result.outcomeCounts.merge(update.getOutcome(), 1, Integer::sum);
+				String problem = ConflateTool.describeProblem(update);
+				if (problem != null) {
+					result.problems.add(problem);
+				}
+			}
+			result.write(ConflateTool.collectChanges(data.osmDataSet.allPrimitives()));
+			break;
+		}
+		return result;
+	}
+
+	/**
+	 * Cells of the nodes of the BAG buildings of the surrounding tiles that are within the halo of a tile
+	 * - Those buildings can be created by the other tile, and are not in the OSM data of this tile
+	 */
+	private Set<Long> readOtherTileBagNodes(long tileKey) throws IOException {
+		double minLat = TileSpool.getMinLat(tileKey) - TileSpool.HALO_DEGREES;
+		double minLon = TileSpool.getMinLon(tileKey) - TileSpool.HALO_DEGREES;
+		double size = TileSpool.TILE_SIZE_DEGREES + 2 * TileSpool.HALO_DEGREES;
+		Set<Long> result = new HashSet<>();
+		for (long latTile = (tileKey >> 32) - 1; latTile <= (tileKey >> 32) + 1; latTile++) {
+			for (long lonTile = (int) tileKey - 1; lonTile <= (int) tileKey + 1; lonTile++) {
+				long otherTileKey = TileSpool.tileKey(latTile, lonTile);
+				if (otherTileKey == tileKey || !bagSpool.hasTile(otherTileKey)) {
+					continue;
+				}
+				for (SpooledWay bagWay : bagSpool.readWays(otherTileKey)) {
+					for (int node : bagWay.nodes) {
+						double lat = bagSpool.getNodeLat(node);
+						double lon = bagSpool.getNodeLon(node);
+						if (lat >= minLat && lat < minLat + size && lon >= minLon && lon < minLon + size) {
+							result.add(edgeNodeCell(lat, lon));
+						}
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private static long edgeNodeCell(double lat, double lon) {
+		return TileSpool.tileKey((long) Math.floor(lat / EDGE_NODE_DEGREES), (long) Math.floor(lon / EDGE_NODE_DEGREES));
+	}
+
+	/** Check if the nodes of a way are all in the part of the halo where the tile knows all ways of a node */
+	private static boolean isKnown(TileSpool spool, int[] nodes, long tileKey) {
+		for (int node : nodes) {
+			if (!isKnown(spool.getNodeLat(node), spool.getNodeLon(node), tileKey)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isKnown(double lat, double lon, long tileKey) {
+		double minLat = TileSpool.getMinLat(tileKey) - KNOWN_MARGIN_DEGREES;
+		double minLon = TileSpool.getMinLon(tileKey) - KNOWN_MARGIN_DEGREES;
+		double size = TileSpool.TILE_SIZE_DEGREES + 2 * KNOWN_MARGIN_DEGREES;
+		return lat >= minLat && lat < minLat + size && lon >= minLon && lon < minLon + size;
+	}
+
+	/** DataSets of a tile, built from the spool for each run */
+	private final class TileData {
+		private final long tileKey;
+		private final DataSet bagDataSet = new DataSet();
+		private final DataSet osmDataSet = new DataSet();
+		/** BAG ways, in the same order as the spooled ones */
+		private final List<Way> bagWays = new ArrayList<>();
+		/** Tile the loaded OSM objects belong to, missing for nodes of which not all ways are loaded */
+		private final Map<OsmPrimitive, Long> homes = new HashMap<>();
+
+		private TileData(long tileKey) {
+			this.tileKey = tileKey;
+		}
+
+		/** Create the BAG buildings, new objects like the ones of the BAG ODS layer */
+		private void loadBag(List<SpooledWay> spooledWays) throws IOException {
+			Map<Integer, Node> nodes = new HashMap<>();
+			for (SpooledWay spooledWay : spooledWays) {
+				List<Node> wayNodes = new ArrayList<>(spooledWay.nodes.length);
+				for (int index : spooledWay.nodes) {
+					Node node = nodes.get(index);
+					if (node == null) {
+						node = new Node(new LatLon(bagSpool.getNodeLat(index), bagSpool.getNodeLon(index)));
+						node.setKeys(bagSpool.getNodeTags(index));
+						bagDataSet.addPrimitive(node);
+						nodes.put(index, node);
+					}
+					wayNodes.add(node);
+				}
+				Way way = new Way();
+				way.setNodes(wayNodes);
+				way.setKeys(spooledWay.tags);
+				bagDataSet.addPrimitive(way);
+				bagWays.add(way);
+			}
+		}
+
+		/**
+		 * Create the OSM objects with their ids and versions, and find the tile they belong to
+		 * @param spooledWays Ways sorted by id, so nodes get the tile of their lowest id way
+		 */
+		private void loadOsm(List<SpooledWay> spooledWays, int[] loneNodes) throws IOException {
+			Map<Integer, Node> nodes = new HashMap<>();
+			for (SpooledWay spooledWay : spooledWays) {
+				List<Node> wayNodes = new ArrayList<>(spooledWay.nodes.length);
+				double minLat = Double.POSITIVE_INFINITY;
+				double minLon = Double.POSITIVE_INFINITY;
+				double maxLat = Double.NEGATIVE_INFINITY;
+				double maxLon = Double.NEGATIVE_INFINITY;
+				for (int index : spooledWay.nodes) {
+					Node node = loadOsmNode(index, nodes);
+					wayNodes.add(node);
+					minLat = Math.min(minLat, node.lat());
+					minLon = Math.min(minLon, node.lon());
+					maxLat = Math.max(maxLat, node.lat());
+					maxLon = Math.max(maxLon, node.lon());
+				}
+				Way way = new Way(spooledWay.id, spooledWay.version);
+				way.setNodes(wayNodes);
+				way.setKeys(spooledWay.tags);
+				osmDataSet.addPrimitive(way);
+
+				String bagRef = spooledWay.tags.get("ref:bag");
+				long home = bagRef == null ? TileSpool.NO_TILE : bagSpool.getBuildingTile(bagRef);
+				if (home == TileSpool.NO_TILE) {
+					home = TileSpool.tileOf((minLat + maxLat) / 2, (minLon + maxLon) / 2);
+				}
+				homes.put(way, home);
+				for (Node node : wayNodes) {
+					homes.putIfAbsent(node, home);
+				}
+			}
+			for (int index : loneNodes) {
+				Node node = loadOsmNode(index, nodes);
+				homes.put(node, TileSpool.tileOf(node.lat(), node.lon()));
+			}
+
+			// Other ways of nodes far into the halo might not be loaded, another tile could think they belong to it
+			for (Node node : nodes.values()) {
+				if (!isKnown(node.lat(), node.lon(), tileKey)) {
+					homes.remove(node);
+				}
+			}
+		}
+
+		private Node loadOsmNode(int index, Map<Integer, Node> nodes) throws IOException {
+			Node node = nodes.get(index);
+			if (node == null) {
+				node = new Node(osmSpool.getNodeId(index), osmSpool.getNodeVersion(index));
+				node.setCoor(new LatLon(osmSpool.getNodeLat(index), osmSpool.getNodeLon(index)));
+				node.setKeys(osmSpool.getNodeTags(index));
+				osmDataSet.addPrimitive(node);
+				nodes.put(index, node);
+			}
+			return node;
+		}
+
+		/** Check if an update changes objects that belong to another tile, or connects ways to their nodes */
+		private boolean changesOtherTiles(BuildingUpdate update) {
+			BagUpdateCommand command = update.getCommand();
+			if (command == null || command.isEmpty()) {
+				return false;
+			}
+
+			Set<OsmPrimitive> modified = new HashSet<>();
+			Set<OsmPrimitive> deleted = new HashSet<>();
+			Set<OsmPrimitive> added = new HashSet<>();
+			command.fillModifiedData(modified, deleted, added);
+			Set<OsmPrimitive> changed = new HashSet<>(modified);
+			changed.addAll(deleted);
+			for (OsmPrimitive primitive : changed) {
+				if (!primitive.isNew() && !belongsHere(primitive)) {
+					return true;
+				}
+			}
+
+			changed.addAll(added);
+			for (OsmPrimitive primitive : changed) {
+				if (primitive instanceof Way && !primitive.isDeleted()) {
+					for (Node node : ((Way) primitive).getNodes()) {
+						if (!node.isNew() && !belongsHere(node)) {
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Check if an update creates or moves nodes onto (or next to) the nodes of BAG buildings of other tiles
+		 * @param otherTileBagNodes Cells of those nodes, see readOtherTileBagNodes()
+		 */
+		private boolean placesNodesOn(BuildingUpdate update, Set<Long> otherTileBagNodes) {
+			BagUpdateCommand command = update.getCommand();
+			if (command == null || command.isEmpty() || otherTileBagNodes.isEmpty()) {
+				return false;
+			}
+
+			Set<OsmPrimitive> modified = new HashSet<>();
+			Set<OsmPrimitive> added = new HashSet<>();
+			command.fillModifiedData(modified, new HashSet<>(), added);
+			modified.addAll(added);
+			for (OsmPrimitive primitive : modified) {
+				if (!(primitive instanceof Node) || primitive.isDeleted()) {
+					continue;
+				}
+				long cell = edgeNodeCell(((Node) primitive).lat(), ((Node) primitive).lon());
+				for (long latCell = (cell >> 32) - 1; latCell <= (cell >> 32) + 1; latCell++) {
+					for (long lonCell = (int) cell - 1; lonCell <= (int) cell + 1; lonCell++) {
+						if (otherTileBagNodes.contains(TileSpool.tileKey(latCell, lonCell))) {
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+
+		private boolean belongsHere(OsmPrimitive primitive) {
+			Long home = homes.get(primitive);
+			return home != null && home == tileKey;
+		}
+	}
+
+	/** Changes and summary of a tile */
+	private static final class TileResult {
+		/** Create, modify and delete blocks of the osmChange file */
+		private byte[] changes = new byte[0];
+		private int changeCount = 0;
+		/** ref:bag of the buildings that have been left out */
+		private final List<String> leftOut = new ArrayList<>();
+		private final Map<Outcome, Integer> outcomeCounts = new EnumMap<>(Outcome.class);
+		private final List<String> problems = new ArrayList<>();
+
+		private void leftOut(SpooledWay bagWay, String reason) {
+			leftOut.add(bagWay.tags.get("ref:bag"));
+			problems.add(bagWay.tags.get("ref:bag") + ": " + reason);
+		}
+
+		private void write(ConflateTool.Changes tileChanges) throws Exception {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(bytes, "UTF-8");
+			ConflateTool.writeChanges(writer, tileChanges);
+			writer.flush();
+			writer.close();
+			changes = bytes.toByteArray();
+			changeCount = tileChanges.size();
+		}
+	}
+
+}
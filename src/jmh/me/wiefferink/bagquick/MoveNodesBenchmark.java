@@ -0,0 +1,77 @@
+package me.wiefferink.bagquick;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.MoveCommand;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of creating the command that moves the nodes of a building, a MoveNodesCommand versus a MoveCommand per node
+ * - The created commands are what the undo history keeps, run with -prof gc and compare gc.alloc.rate.norm for their size
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoveNodesBenchmark {
+
+	/** Number of moved nodes of the building */
+	@Param({"4", "16", "64"})
+	public int nodeCount;
+
+	private DataSet dataSet;
+	private List<Node> nodes;
+	private List<LatLon> targets;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// MoveCommand works on projected coordinates
+		ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+
+		dataSet = new DataSet();
+		nodes = new ArrayList<>(nodeCount);
+		targets = new ArrayList<>(nodeCount);
+		for (int i = 0; i < nodeCount; i++) {
+			Node node = new Node(new LatLon(52.37 + i * 1e-5, 4.89));
+			dataSet.addPrimitive(node);
+			nodes.add(node);
+			targets.add(new LatLon(node.lat() + 2e-6, node.lon() + 3e-6));
+		}
+	}
+
+	@Benchmark
+	public Command moveNodesCommand() {
+		return new MoveNodesCommand(dataSet, nodes, targets);
+	}
+
+	@Benchmark
+	public List<Command> moveCommandPerNode() {
+		List<Command> result = new ArrayList<>(nodeCount);
+		for (int i = 0; i < nodeCount; i++) {
+			result.add(new MoveCommand(nodes.get(i), targets.get(i)));
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,111 @@
+package me.wiefferink.bagquick;
+
+import edu.princeton.cs.algs4.AssignmentProblem;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of matching the nodes of a BAG building to an OSM building
+ * - sparseAssignment: the optimal matching as used for every update
+ * - greedyNearest: the simple method used when the optimal matching runs out of time
+ * - denseAssignment: the full cost matrix AssignmentProblem that was used before, as a baseline
+ * - snapshot: taking the NodeMatcher.Input, which happens on planning
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeMatcherBenchmark {
+
+	/** Number of distinct nodes of the BAG building */
+	@Param({"4", "16", "64", "200", "500"})
+	public int nodeCount;
+
+	/** How the OSM building differs from the BAG building */
+	@Param({"JITTER", "SHIFTED", "EXTRA_NODES", "MISSING_NODES"})
+	public SyntheticBuildings.Scenario scenario;
+
+	private Way bagWay;
+	private Way osmWay;
+	private NodeMatcher.Input input;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Way[] pair = SyntheticBuildings.createPair(nodeCount, scenario, 42);
+		bagWay = pair[0];
+		osmWay = pair[1];
+		input = NodeMatcher.Input.of(bagWay, osmWay);
+	}
+
+	@Benchmark
+	public NodeMatcher.Input snapshot() {
+		return NodeMatcher.Input.of(bagWay, osmWay);
+	}
+
+	@Benchmark
+	public NodeMatcher.Result sparseAssignment() {
+		return NodeMatcher.match(input);
+	}
+
+	@Benchmark
+	public NodeMatcher.Result greedyNearest() {
+		return NodeMatcher.match(input, 0);
+	}
+
+	/**
+	 * Matching with a dense cost matrix and great circle distances, like before the sparse solver
+	 * - Gives up the same way as before when the solver fails on the 'infinite' costs
+	 */
+	@Benchmark
+	public int[] denseAssignment() {
+		List<Node> bagNodes = bagWay.getNodes();
+		List<Node> osmNodes = osmWay.getNodes();
+		int size = Math.max(bagNodes.size(), osmNodes.size());
+		double[][] cost = new double[size][size];
+		for (int bagIndex = 0; bagIndex < size; bagIndex++) {
+			for (int osmIndex = 0; osmIndex < size; osmIndex++) {
+				cost[bagIndex][osmIndex] = Double.MAX_VALUE;
+				if (bagIndex >= bagNodes.size() || osmIndex >= osmNodes.size()) {
+					continue;
+				}
+
+				Node osmNode = osmNodes.get(osmIndex);
+				double maxDistance = (osmNode.isTagged() || osmNode.getParentWays().size() > 1) ? NodeMatcher.MAX_NODE_MOVE_METERS_TAGGED : NodeMatcher.MAX_NODE_MOVE_METERS_UNTAGGED;
+				double distance = bagNodes.get(bagIndex).getCoor().greatCircleDistance(osmNode.getCoor());
+				if (distance < maxDistance) {
+					cost[bagIndex][osmIndex] = distance;
+				}
+			}
+		}
+
+		AssignmentProblem assignment;
+		try {
+			assignment = new AssignmentProblem(cost);
+		} catch (Exception e) {
+			return null;
+		}
+		int[] result = new int[size];
+		for (int bagIndex = 0; bagIndex < size; bagIndex++) {
+			result[bagIndex] = assignment.sol(bagIndex);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,118 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic pairs of a BAG building and the OSM version of it, used as benchmark input
+ * - Buildings are roughly round, with about 2 meters between the nodes
+ * - The OSM version differs from the BAG version in a controlled way, see Scenario
+ */
+final class SyntheticBuildings {
+
+	/** Somewhere in Amsterdam */
+	private static final double ORIGIN_LAT = 52.37;
+	private static final double ORIGIN_LON = 4.89;
+
+	/** Distance between the nodes of a building */
+	private static final double NODE_SPACING_METERS = 2;
+
+	/** Standard deviation of the noise on all OSM nodes, well below the desired precision most of the time */
+	private static final double JITTER_METERS = 0.003;
+
+	/** Every how many nodes a node is shifted/added/removed */
+	private static final int CHANGE_INTERVAL = 4;
+
+	/** How the OSM version differs from the BAG version */
+	enum Scenario {
+		/** Only small noise on the coordinates */
+		JITTER,
+		/** Some nodes are shifted by 0.3 to 2 meters */
+		SHIFTED,
+		/** OSM has extra nodes halfway between BAG nodes */
+		EXTRA_NODES,
+		/** OSM is missing some of the BAG nodes */
+		MISSING_NODES
+	}
+
+	private SyntheticBuildings() {
+	}
+
+	/**
+	 * Create a BAG and OSM building
+	 * @param nodeCount Number of distinct nodes of the BAG building
+	 * @param scenario How the OSM building differs
+	 * @param seed Seed for the random differences, the same seed gives the same buildings
+	 * @return BAG way and OSM way
+	 */
+	static Way[] createPair(int nodeCount, Scenario scenario, long seed) {
+		Random random = new Random(seed);
+		double radius = nodeCount * NODE_SPACING_METERS / (2 * Math.PI);
+
+		// BAG building: points on a slightly irregular circle
+		double[] xs = new double[nodeCount];
+		double[] ys = new double[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			double angle = 2 * Math.PI * i / nodeCount;
+			double nodeRadius = radius * (1 + 0.05 * random.nextDouble());
+			xs[i] = Math.cos(angle) * nodeRadius;
+			ys[i] = Math.sin(angle) * nodeRadius;
+		}
+		Way bagWay = createWay(xs, ys);
+
+		// OSM building: same points, with the differences of the scenario
+		List<double[]> osmPoints = new ArrayList<>();
+		for (int i = 0; i < nodeCount; i++) {
+			boolean change = i % CHANGE_INTERVAL == 1;
+			double x = xs[i] + random.nextGaussian() * JITTER_METERS;
+			double y = ys[i] + random.nextGaussian() * JITTER_METERS;
+
+			if (change && scenario == Scenario.MISSING_NODES) {
+				continue;
+			}
+			if (change && scenario == Scenario.SHIFTED) {
+				double distance = 0.3 + random.nextDouble() * 1.7;
+				double angle = random.nextDouble() * 2 * Math.PI;
+				x += Math.cos(angle) * distance;
+				y += Math.sin(angle) * distance;
+			}
+			osmPoints.add(new double[]{x, y});
+
+			if (change && scenario == Scenario.EXTRA_NODES) {
+				int next = (i + 1) % nodeCount;
+				osmPoints.add(new double[]{(xs[i] + xs[next]) / 2, (ys[i] + ys[next]) / 2});
+			}
+		}
+		double[] osmXs = new double[osmPoints.size()];
+		double[] osmYs = new double[osmPoints.size()];
+		for (int i = 0; i < osmPoints.size(); i++) {
+			osmXs[i] = osmPoints.get(i)[0];
+			osmYs[i] = osmPoints.get(i)[1];
+		}
+		Way osmWay = createWay(osmXs, osmYs);
+
+		return new Way[]{bagWay, osmWay};
+	}
+
+	/** Create a closed way through points in meters around the origin */
+	private static Way createWay(double[] xs, double[] ys) {
+		List<Node> nodes = new ArrayList<>(xs.length + 1);
+		for (int i = 0; i < xs.length; i++) {
+			double lat = ORIGIN_LAT + PlanarProjection.metersToDegreesLat(ys[i]);
+			double lon = ORIGIN_LON + PlanarProjection.metersToDegreesLon(xs[i], ORIGIN_LAT);
+			nodes.add(new Node(new LatLon(lat, lon)));
+		}
+		nodes.add(nodes.get(0));
+
+		Way way = new Way();
+		way.setNodes(nodes);
+		way.put("building", "yes");
+		return way;
+	}
+
+}
@@ -0,0 +1,72 @@
+package me.wiefferink.bagquick;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of computing the tag changes of a building (see UpdatePlan.computeTagChanges())
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagDiffBenchmark {
+
+	/** State of the OSM building compared to the BAG building */
+	@Param({"NEW", "UP_TO_DATE", "CHANGED"})
+	public String osmState;
+
+	private Map<String, String> bagTags;
+	private Map<String, String> osmTags;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// Tags as provided by the ODS BAG layer
+		bagTags = new HashMap<>();
+		bagTags.put("building", "house");
+		bagTags.put("ref:bag", "0363100012345678");
+		bagTags.put("source", "BAG");
+		bagTags.put("source:date", "2022-01-01");
+		bagTags.put("start_date", "1930");
+		bagTags.put("|ODS:status", "Pand in gebruik");
+		bagTags.put("|ODS:gebruiksdoel", "woonfunctie");
+
+		osmTags = new HashMap<>();
+		if (osmState.equals("NEW")) {
+			return;
+		}
+
+		osmTags.put("building", "detached");
+		osmTags.put("ref:bag", "0363100012345678");
+		osmTags.put("source", "BAG");
+		osmTags.put("source:date", "2022-01-01");
+		osmTags.put("start_date", "1930");
+		osmTags.put("addr:housenumber", "12");
+		if (osmState.equals("CHANGED")) {
+			osmTags.put("source:date", "2019-06-01");
+			osmTags.remove("start_date");
+		}
+	}
+
+	@Benchmark
+	public Map<String, String> computeTagChanges() {
+		return UpdatePlan.computeTagChanges(bagTags, osmTags);
+	}
+
+}
@@ -0,0 +1,72 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+/**
+ * Command that adds new nodes to a DataSet in bulk
+ * - Same result as an AddCommand for each node, but in a single DataSet update (one event for all listeners)
+ */
+public class AddNodesCommand extends Command {
+
+	/** Nodes to add, not part of any DataSet yet */
+	private final List<Node> nodes;
+
+	public AddNodesCommand(DataSet dataSet, Collection<Node> nodes) {
+		super(dataSet);
+		this.nodes = new ArrayList<>(nodes);
+	}
+
+	@Override
+	public boolean executeCommand() {
+		DataSet dataSet = getAffectedDataSet();
+		dataSet.beginUpdate();
+		try {
+			for (Node node : nodes) {
+				dataSet.addPrimitive(node);
+				node.setModified(true);
+			}
+		} finally {
+			dataSet.endUpdate();
+		}
+		return true;
+	}
+
+	@Override
+	public void undoCommand() {
+		DataSet dataSet = getAffectedDataSet();
+		dataSet.beginUpdate();
+		try {
+			for (int i = nodes.size() - 1; i >= 0; i--) {
+				dataSet.removePrimitive(nodes.get(i));
+			}
+		} finally {
+			dataSet.endUpdate();
+		}
+	}
+
+	@Override
+	public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted, Collection<OsmPrimitive> added) {
+		added.addAll(nodes);
+	}
+
+	@Override
+	public Collection<? extends OsmPrimitive> getParticipatingPrimitives() {
+		return Collections.unmodifiableList(nodes);
+	}
+
+	@Override
+	public String getDescriptionText() {
+		return trn("Add {0} node", "Add {0} nodes", nodes.size(), nodes.size());
+	}
+
+}
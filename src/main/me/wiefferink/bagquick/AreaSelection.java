@@ -0,0 +1,80 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.layer.MapViewPaintable;
+
+import java.awt.*;
+
+/**
+ * Rectangle or lasso that is being dragged on the map to select an area
+ * - Paints itself on the MapView while dragging
+ */
+public class AreaSelection implements MapViewPaintable {
+
+    /** Number of pixels the mouse should move before a press becomes a drag (prevents accidental batch updates) */
+    private static final int MIN_DRAG_PIXELS = 5;
+
+    private static final Color OUTLINE_COLOR = Color.WHITE;
+    private static final Color FILL_COLOR = new Color(255, 255, 255, 40);
+
+    /** Point where the mouse has been pressed */
+    private final Point start;
+    /** True to select a free-form area, false to select a rectangle */
+    private final boolean lasso;
+    /** Points of the lasso */
+    private final Polygon lassoPolygon = new Polygon();
+    /** Last point the mouse has been dragged to */
+    private Point end;
+    /** True when the mouse has moved far enough to be a drag */
+    private boolean dragging = false;
+
+    public AreaSelection(Point start, boolean lasso) {
+        this.start = start;
+        this.end = start;
+        this.lasso = lasso;
+        this.lassoPolygon.addPoint(start.x, start.y);
+    }
+
+    /** Update the selection with the current mouse location */
+    public void dragTo(Point point) {
+        this.end = point;
+        this.lassoPolygon.addPoint(point.x, point.y);
+        if (start.distance(point) >= MIN_DRAG_PIXELS) {
+            dragging = true;
+        }
+    }
+
+    /** Check if the mouse has moved far enough to consider this an area selection */
+    public boolean isDragging() {
+        return dragging;
+    }
+
+    /** Get the selected area in screen coordinates */
+    public Shape getShape() {
+        if (lasso) {
+            return lassoPolygon;
+        }
+
+        return new Rectangle(
+            Math.min(start.x, end.x),
+            Math.min(start.y, end.y),
+            Math.abs(start.x - end.x),
+            Math.abs(start.y - end.y)
+        );
+    }
+
+    @Override
+    public void paint(Graphics2D g, MapView mapView, Bounds bounds) {
+        if (!dragging) {
+            return;
+        }
+
+        Shape shape = getShape();
+        g.setColor(FILL_COLOR);
+        g.fill(shape);
+        g.setColor(OUTLINE_COLOR);
+        g.draw(shape);
+    }
+
+}
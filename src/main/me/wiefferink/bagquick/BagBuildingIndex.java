@@ -0,0 +1,365 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * Spatial index of the building=* areas in a DataSet, for quick point-in-polygon hit tests
+ * - Uniform grid of cells, each building is registered in the cells its bounding box overlaps
+ * - Building rings are projected to meters once when indexed, so hit tests do not allocate anything
+ * - Kept up-to-date with DataSet events, so new downloads are picked up directly
+ */
+public class BagBuildingIndex {
+
+	/** Size of a grid cell in degrees (roughly 100 by 70 meters in The Netherlands) */
+	private static final double CELL_SIZE_DEGREES = 0.001;
+
+	/** DataSet this index is currently built for, null when not bound */
+	private DataSet dataSet;
+
+	/** Indexed buildings by grid cell key */
+	private final Map<Long, List<IndexedBuilding>> cells = new HashMap<>();
+	/** Indexed buildings by their way */
+	private final Map<Way, IndexedBuilding> buildings = new HashMap<>();
+
+	private final WayChangeListener listener = new WayChangeListener(this, new WayChangeListener.Handler() {
+		@Override
+		public void reset() {
+			rebuild();
+		}
+
+		@Override
+		public void wayAdded(Way way) {
+			add(way);
+		}
+
+		@Override
+		public void wayRemoved(Way way) {
+			remove(way);
+		}
+
+		@Override
+		public void wayTagsChanged(Way way, Map<String, String> originalKeys) {
+			update(way);
+		}
+
+		@Override
+		public void wayGeometryChanged(Way way) {
+			update(way);
+		}
+	});
+
+	/**
+	 * Bind the index to a DataSet
+	 * - Does nothing when already bound to the same DataSet
+	 * - Rebuilds the index when bound to another DataSet before
+	 */
+	public synchronized void bind(DataSet dataSet) {
+		if (this.dataSet == dataSet) {
+			return;
+		}
+
+		unbind();
+		this.dataSet = dataSet;
+		rebuild();
+		listener.bind(dataSet);
+	}
+
+	/** Stop listening to the DataSet and clear the index */
+	public synchronized void unbind() {
+		if (this.dataSet == null) {
+			return;
+		}
+
+		listener.unbind();
+		this.dataSet = null;
+		clear();
+	}
+
+	/**
+	 * Find the buildings that contain a point
+	 * @return Buildings containing the point, usually 0 or 1
+	 */
+	public synchronized List<Way> findContaining(double lat, double lon) {
+		List<Way> result = new ArrayList<>(1);
+		List<IndexedBuilding> cellBuildings = cells.get(cellKey(cellIndex(lat), cellIndex(lon)));
+		if (cellBuildings == null) {
+			return result;
+		}
+
+		for (IndexedBuilding building : cellBuildings) {
+			if (building.contains(lat, lon)) {
+				result.add(building.way);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find the building closest to a point
+	 * @param radiusMeters Maximum distance between the point and the outline of the building
+	 * @return The building containing the point, otherwise the building with the closest outline within the radius, or null when there is none
+	 */
+	public synchronized Way findNearest(double lat, double lon, double radiusMeters) {
+		Way nearest = null;
+		double nearestDistance = radiusMeters;
+		for (IndexedBuilding building : findCandidates(
+				lat - PlanarProjection.metersToDegreesLat(radiusMeters),
+				lon - PlanarProjection.metersToDegreesLon(radiusMeters, lat),
+				lat + PlanarProjection.metersToDegreesLat(radiusMeters),
+				lon + PlanarProjection.metersToDegreesLon(radiusMeters, lat))) {
+			double distance = building.distance(lat, lon);
+			if (distance <= nearestDistance) {
+				nearest = building.way;
+				nearestDistance = distance;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Find the buildings at a clicked point
+	 * @param radiusMeters Maximum distance to a building outline when the point is not inside any building
+	 * @return Buildings containing the point, otherwise the closest building within the radius, empty when there is none
+	 */
+	public synchronized List<Way> findAt(double lat, double lon, double radiusMeters) {
+		List<Way> result = findContaining(lat, lon);
+		if (result.isEmpty()) {
+			Way nearest = findNearest(lat, lon, radiusMeters);
+			if (nearest != null) {
+				result.add(nearest);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find the buildings that have their bounding box overlapping an area
+	 * @return Buildings overlapping the area
+	 */
+	public synchronized List<Way> findIntersecting(double minLat, double minLon, double maxLat, double maxLon) {
+		List<Way> result = new ArrayList<>();
+		for (IndexedBuilding building : findCandidates(minLat, minLon, maxLat, maxLon)) {
+			result.add(building.way);
+		}
+		return result;
+	}
+
+	/** Number of indexed buildings */
+	public synchronized int size() {
+		return buildings.size();
+	}
+
+	/** Get the buildings with a bounding box overlapping the area */
+	private Collection<IndexedBuilding> findCandidates(double minLat, double minLon, double maxLat, double maxLon) {
+		Set<IndexedBuilding> result = new LinkedHashSet<>();
+		long minLatCell = cellIndex(minLat);
+		long maxLatCell = cellIndex(maxLat);
+		long minLonCell = cellIndex(minLon);
+		long maxLonCell = cellIndex(maxLon);
+
+		// Large area: going through all buildings is cheaper than going through all cells
+		if ((maxLatCell - minLatCell + 1) * (maxLonCell - minLonCell + 1) > buildings.size()) {
+			for (IndexedBuilding building : buildings.values()) {
+				if (building.intersects(minLat, minLon, maxLat, maxLon)) {
+					result.add(building);
+				}
+			}
+			return result;
+		}
+
+		for (long latCell = minLatCell; latCell <= maxLatCell; latCell++) {
+			for (long lonCell = minLonCell; lonCell <= maxLonCell; lonCell++) {
+				List<IndexedBuilding> cellBuildings = cells.get(cellKey(latCell, lonCell));
+				if (cellBuildings == null) {
+					continue;
+				}
+
+				for (IndexedBuilding building : cellBuildings) {
+					if (building.intersects(minLat, minLon, maxLat, maxLon)) {
+						result.add(building);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Index all buildings of the bound DataSet from scratch */
+	private void rebuild() {
+		clear();
+		if (dataSet == null) {
+			return;
+		}
+
+		for (Way way : dataSet.getWays()) {
+			add(way);
+		}
+		trace("BagBuildingIndex rebuilt with {0} buildings", buildings.size());
+	}
+
+	private void clear() {
+		cells.clear();
+		buildings.clear();
+	}
+
+	/** Add a primitive to the index (ignored when not a building area) */
+	private void add(OsmPrimitive primitive) {
+		if (!(primitive instanceof Way) || primitive.isDeleted() || primitive.isIncomplete()) {
+			return;
+		}
+
+		Way way = (Way) primitive;
+		if (!way.isArea() || !way.hasTag("building") || buildings.containsKey(way)) {
+			return;
+		}
+		for (Node node : way.getNodes()) {
+			if (!node.isLatLonKnown()) {
+				return;
+			}
+		}
+
+		IndexedBuilding building = new IndexedBuilding(way);
+		buildings.put(way, building);
+		for (long latCell = cellIndex(building.minLat); latCell <= cellIndex(building.maxLat); latCell++) {
+			for (long lonCell = cellIndex(building.minLon); lonCell <= cellIndex(building.maxLon); lonCell++) {
+				cells.computeIfAbsent(cellKey(latCell, lonCell), key -> new ArrayList<>()).add(building);
+			}
+		}
+	}
+
+	/** Remove a primitive from the index (ignored when not indexed) */
+	private void remove(OsmPrimitive primitive) {
+		IndexedBuilding building = buildings.remove(primitive);
+		if (building == null) {
+			return;
+		}
+
+		for (long latCell = cellIndex(building.minLat); latCell <= cellIndex(building.maxLat); latCell++) {
+			for (long lonCell = cellIndex(building.minLon); lonCell <= cellIndex(building.maxLon); lonCell++) {
+				long key = cellKey(latCell, lonCell);
+				List<IndexedBuilding> cellBuildings = cells.get(key);
+				if (cellBuildings == null) {
+					continue;
+				}
+				cellBuildings.remove(building);
+				if (cellBuildings.isEmpty()) {
+					cells.remove(key);
+				}
+			}
+		}
+	}
+
+	/** Re-index a primitive, picks up changed tags and geometry */
+	private void update(OsmPrimitive primitive) {
+		remove(primitive);
+		add(primitive);
+	}
+
+	private static long cellIndex(double degrees) {
+		return (long) Math.floor(degrees / CELL_SIZE_DEGREES);
+	}
+
+	private static long cellKey(long latCell, long lonCell) {
+		return (latCell << 32) ^ (lonCell & 0xffffffffL);
+	}
+
+	/** Building with its outline projected to meters */
+	private static class IndexedBuilding {
+		private final Way way;
+		private final PlanarProjection projection;
+		/** Projected outline, closed (last point equals the first) */
+		private final double[] xs;
+		private final double[] ys;
+		// Bounding box in degrees
+		private final double minLat;
+		private final double minLon;
+		private final double maxLat;
+		private final double maxLon;
+
+		IndexedBuilding(Way way) {
+			this.way = way;
+			List<Node> nodes = way.getNodes();
+			Node first = nodes.get(0);
+			this.projection = new PlanarProjection(first.lat(), first.lon());
+			this.xs = new double[nodes.size()];
+			this.ys = new double[nodes.size()];
+			double minLat = Double.MAX_VALUE;
+			double minLon = Double.MAX_VALUE;
+			double maxLat = -Double.MAX_VALUE;
+			double maxLon = -Double.MAX_VALUE;
+			for (int i = 0; i < nodes.size(); i++) {
+				Node node = nodes.get(i);
+				xs[i] = projection.x(node.lon());
+				ys[i] = projection.y(node.lat());
+				minLat = Math.min(minLat, node.lat());
+				minLon = Math.min(minLon, node.lon());
+				maxLat = Math.max(maxLat, node.lat());
+				maxLon = Math.max(maxLon, node.lon());
+			}
+			this.minLat = minLat;
+			this.minLon = minLon;
+			this.maxLat = maxLat;
+			this.maxLon = maxLon;
+		}
+
+		boolean intersects(double minLat, double minLon, double maxLat, double maxLon) {
+			return this.minLat <= maxLat && this.maxLat >= minLat && this.minLon <= maxLon && this.maxLon >= minLon;
+		}
+
+		/** Check if the outline contains a point (even-odd rule) */
+		boolean contains(double lat, double lon) {
+			if (lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+				return false;
+			}
+
+			double x = projection.x(lon);
+			double y = projection.y(lat);
+			boolean inside = false;
+			for (int i = 0, j = xs.length - 1; i < xs.length; j = i++) {
+				if ((ys[i] > y) != (ys[j] > y) && x < (xs[j] - xs[i]) * (y - ys[i]) / (ys[j] - ys[i]) + xs[i]) {
+					inside = !inside;
+				}
+			}
+			return inside;
+		}
+
+		/** Distance in meters from a point to the outline, 0 when inside */
+		double distance(double lat, double lon) {
+			if (contains(lat, lon)) {
+				return 0;
+			}
+
+			double x = projection.x(lon);
+			double y = projection.y(lat);
+			double nearestSq = Double.MAX_VALUE;
+			for (int i = 1; i < xs.length; i++) {
+				nearestSq = Math.min(nearestSq, segmentDistanceSq(x, y, xs[i - 1], ys[i - 1], xs[i], ys[i]));
+			}
+			return Math.sqrt(nearestSq);
+		}
+
+		private static double segmentDistanceSq(double x, double y, double ax, double ay, double bx, double by) {
+			double dx = bx - ax;
+			double dy = by - ay;
+			double lengthSq = dx * dx + dy * dy;
+			double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / lengthSq));
+			double px = ax + t * dx - x;
+			double py = ay + t * dy - y;
+			return px * px + py * py;
+		}
+	}
+
+}
@@ -1,19 +1,19 @@
 package me.wiefferink.bagquick;
 
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapFrame;
 import org.openstreetmap.josm.gui.MainMenu;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
 import org.openstreetmap.josm.tools.Logging;
 
+import javax.swing.*;
+
 /**
  * This is the main class for the AreaSelector plugin.
  */
 public class BagQuickPlugin extends Plugin {
 
-	/** Enables debug logging */
-	public static final boolean DEBUG = true;
-
 	BagUpdateAction bagUpdateAction;
 
 	public BagQuickPlugin(PluginInformation info) {
@@ -23,12 +23,20 @@ public class BagQuickPlugin extends Plugin {
 
 		bagUpdateAction = new BagUpdateAction();
 		MainMenu.add(MainApplication.getMenu().toolsMenu, bagUpdateAction);
+
+		// Trace for bug reports, disabled unless turned on
+		BagTrace.init();
+		MainApplication.getMenu().toolsMenu.add(new JCheckBoxMenuItem(TraceAction.createToggle()));
+		MainMenu.add(MainApplication.getMenu().toolsMenu, TraceAction.createCopy());
+
+		// Tag rules, configurable in the advanced preferences
+		TagPolicy.init();
 	}
 
-	/** Print debug logging, only when enabled */
-	public static void debug(String pattern, Object... args) {
-		if (DEBUG) {
-			Logging.info(pattern, args);
+	@Override
+	public void mapFrameInitialized(MapFrame oldFrame, MapFrame newFrame) {
+		if (newFrame != null) {
+			newFrame.addToggleDialog(new UpdateStatsDialog());
 		}
 	}
 
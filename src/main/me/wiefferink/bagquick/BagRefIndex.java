@@ -0,0 +1,152 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * Index from ref:bag values to the ways that have them in a DataSet
+ * - Built once when bound to a DataSet, then kept up-to-date with DataSet events (also covers undo/redo)
+ * - Makes finding the OSM way of a BAG building independent of the zoom level and the size of the layer
+ */
+public class BagRefIndex {
+
+	/** DataSet this index is currently built for, null when not bound */
+	private DataSet dataSet;
+
+	/** Ways by their ref:bag value */
+	private final Map<String, List<Way>> waysByRef = new HashMap<>();
+	/** The ref:bag value a way has been indexed with (tags might have changed already when receiving events) */
+	private final Map<Way, String> refByWay = new HashMap<>();
+
+	private final WayChangeListener listener = new WayChangeListener(this, new WayChangeListener.Handler() {
+		@Override
+		public void reset() {
+			rebuild();
+		}
+
+		@Override
+		public void wayAdded(Way way) {
+			add(way);
+		}
+
+		@Override
+		public void wayRemoved(Way way) {
+			remove(way);
+		}
+
+		@Override
+		public void wayTagsChanged(Way way, Map<String, String> originalKeys) {
+			// Re-add to pick up a changed ref:bag value
+			remove(way);
+			add(way);
+		}
+	});
+
+	/**
+	 * Bind the index to a DataSet
+	 * - Does nothing when already bound to the same DataSet
+	 * - Rebuilds the index when bound to another DataSet before
+	 */
+	public synchronized void bind(DataSet dataSet) {
+		if (this.dataSet == dataSet) {
+			return;
+		}
+
+		unbind();
+		this.dataSet = dataSet;
+		rebuild();
+		listener.bind(dataSet);
+	}
+
+	/** Stop listening to the DataSet and clear the index */
+	public synchronized void unbind() {
+		if (this.dataSet == null) {
+			return;
+		}
+
+		listener.unbind();
+		this.dataSet = null;
+		clear();
+	}
+
+	/**
+	 * Get the ways that have a certain ref:bag value
+	 * @return Usable ways with the ref:bag value, empty list when there are none
+	 */
+	public synchronized List<Way> getWays(String bagRef) {
+		List<Way> ways = waysByRef.get(bagRef);
+		if (ways == null) {
+			return Collections.emptyList();
+		}
+
+		List<Way> result = new ArrayList<>(ways.size());
+		for (Way way : ways) {
+			if (way.isUsable()) {
+				result.add(way);
+			}
+		}
+		return result;
+	}
+
+	/** Index all ways of the bound DataSet from scratch */
+	private void rebuild() {
+		clear();
+		if (dataSet == null) {
+			return;
+		}
+
+		for (Way way : dataSet.getWays()) {
+			add(way);
+		}
+		trace("BagRefIndex rebuilt with {0} ref:bag values", waysByRef.size());
+	}
+
+	private void clear() {
+		waysByRef.clear();
+		refByWay.clear();
+	}
+
+	/** Add a primitive to the index (ignored when not a way with a ref:bag value) */
+	private void add(OsmPrimitive primitive) {
+		if (!(primitive instanceof Way) || primitive.isDeleted()) {
+			return;
+		}
+
+		Way way = (Way) primitive;
+		String bagRef = way.get("ref:bag");
+		if (bagRef == null || bagRef.isEmpty() || refByWay.containsKey(way)) {
+			return;
+		}
+
+		refByWay.put(way, bagRef);
+		waysByRef.computeIfAbsent(bagRef, key -> new ArrayList<>(1)).add(way);
+	}
+
+	/** Remove a primitive from the index (ignored when not indexed) */
+	private void remove(OsmPrimitive primitive) {
+		if (!(primitive instanceof Way)) {
+			return;
+		}
+
+		String bagRef = refByWay.remove(primitive);
+		if (bagRef == null) {
+			return;
+		}
+
+		List<Way> ways = waysByRef.get(bagRef);
+		ways.remove(primitive);
+		if (ways.isEmpty()) {
+			waysByRef.remove(bagRef);
+		}
+	}
+
+}
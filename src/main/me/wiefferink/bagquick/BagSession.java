@@ -0,0 +1,298 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerAddEvent;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerChangeListener;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerOrderChangeEvent;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerRemoveEvent;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * State shared by the updates while the BAG update tool is active
+ * - Knows the BAG ODS and BAG OSM data sets, follows layers being added and removed instead of searching them for every update
+ * - Keeps the indexes, the up-to-date cache and the validation scheduler bound to those data sets
+ * - Warms up the validator tests and the node matching when started, so the first click is as fast as the rest (skipped when already warm)
+ * - Should be started and stopped on the EDT
+ */
+public class BagSession implements LayerChangeListener {
+
+	/** Number of times to run the node matching on made up buildings while warming up */
+	private static final int WARM_UP_MATCHES = 2000;
+	/** True once the node matching has been warmed up, compiled code stays for the rest of the JVM */
+	private static volatile boolean matchingWarmedUp = false;
+
+	/** Index of ref:bag values in the BAG OSM layer */
+	private final BagRefIndex osmRefIndex = new BagRefIndex();
+	/** Index of the buildings in the BAG ODS layer (or the offline BAG file) */
+	private final BagBuildingIndex bagBuildingIndex = new BagBuildingIndex();
+	/** Buildings that are known to be up-to-date */
+	private final UpToDateCache upToDateCache = new UpToDateCache();
+	/** Validates the updated ways */
+	private final ValidationScheduler validationScheduler;
+	/** Called on the EDT after the BAG ODS or BAG OSM layer has been added or removed */
+	private final Runnable layersChanged;
+
+	/** DataSet of the BAG ODS layer, null when there is none */
+	private volatile DataSet bagLayerDataSet;
+	/** DataSet of the BAG OSM layer, null when there is none */
+	private volatile DataSet osmDataSet;
+	/** True between start() and stop() */
+	private volatile boolean started = false;
+	/** True when the data sets are given instead of found in the layers */
+	private final boolean fixedDataSets;
+
+	/**
+	 * @param layersChanged Called on the EDT after the BAG ODS or BAG OSM layer has been added or removed
+	 */
+	public BagSession(Runnable layersChanged) {
+		this(new ValidationScheduler(), layersChanged);
+	}
+
+	/**
+	 * @param validationScheduler Validates the updated ways
+	 * @param layersChanged Called on the EDT after the BAG ODS or BAG OSM layer has been added or removed
+	 */
+	public BagSession(ValidationScheduler validationScheduler, Runnable layersChanged) {
+		this.validationScheduler = validationScheduler;
+		this.layersChanged = layersChanged;
+		this.fixedDataSets = false;
+	}
+
+	/**
+	 * Session on data sets that are not layers, for updates without a display
+	 * - Does not follow layer changes, start() and stop() only affect the validation scheduler
+	 * @param bagDataSet DataSet with the BAG buildings
+	 * @param osmDataSet DataSet with the OSM data to update
+	 * @param validationScheduler Validates the updated ways
+	 */
+	public BagSession(DataSet bagDataSet, DataSet osmDataSet, ValidationScheduler validationScheduler) {
+		this.validationScheduler = validationScheduler;
+		this.layersChanged = () -> { };
+		this.fixedDataSets = true;
+		this.bagLayerDataSet = bagDataSet;
+		this.osmDataSet = osmDataSet;
+	}
+
+	/** Find the layers, start following layer changes and warm up */
+	public void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+
+		if (!fixedDataSets) {
+			MainApplication.getLayerManager().addLayerChangeListener(this);
+			resolveLayers(null);
+		}
+		bindIndexes();
+		validationScheduler.start();
+		// After entering the mode, the validator tests are set up on the EDT
+		SwingUtilities.invokeLater(this::warmUpValidator);
+		if (!matchingWarmedUp) {
+			ForkJoinPool.commonPool().execute(this::warmUpMatching);
+		}
+	}
+
+	/** Stop following layer changes, and release the indexes */
+	public void stop() {
+		if (!started) {
+			return;
+		}
+		started = false;
+
+		upToDateCache.unbind();
+		bagBuildingIndex.unbind();
+		osmRefIndex.unbind();
+		validationScheduler.stop();
+		if (!fixedDataSets) {
+			MainApplication.getLayerManager().removeLayerChangeListener(this);
+			bagLayerDataSet = null;
+			osmDataSet = null;
+		}
+	}
+
+	/**
+	 * DataSet with the BAG buildings
+	 * @return DataSet of the offline BAG file when configured (and indexed), otherwise the one of the BAG ODS layer, null when not available
+	 */
+	public DataSet getBagDataSet() {
+		if (fixedDataSets) {
+			return bagLayerDataSet;
+		}
+		OfflineBagSource offlineSource = OfflineBagSource.getConfigured();
+		if (offlineSource != null) {
+			return offlineSource.isReady() ? offlineSource.getDataSet() : null;
+		}
+		return started ? bagLayerDataSet : BuildingUpdate.getLayerDataSetByName(BuildingUpdate.BAG_LAYER_NAME);
+	}
+
+	/** DataSet of the BAG OSM layer, null when there is none */
+	public DataSet getOsmDataSet() {
+		if (fixedDataSets) {
+			return osmDataSet;
+		}
+		return started ? osmDataSet : BuildingUpdate.getLayerDataSetByName(BuildingUpdate.OSM_LAYER_NAME);
+	}
+
+	/**
+	 * Bind the indexes to the data sets that are present (no-op when already done)
+	 * - Should be called on the EDT
+	 */
+	public void bindIndexes() {
+		DataSet bagDataSet = getBagDataSet();
+		DataSet osmDataSet = getOsmDataSet();
+		if (bagDataSet != null) {
+			bagBuildingIndex.bind(bagDataSet);
+		} else {
+			bagBuildingIndex.unbind();
+		}
+		if (osmDataSet != null) {
+			osmRefIndex.bind(osmDataSet);
+		} else {
+			osmRefIndex.unbind();
+		}
+		if (bagDataSet != null && osmDataSet != null) {
+			upToDateCache.bind(bagDataSet, osmDataSet);
+		} else {
+			upToDateCache.unbind();
+		}
+	}
+
+	public BagRefIndex getOsmRefIndex() {
+		return osmRefIndex;
+	}
+
+	public BagBuildingIndex getBagBuildingIndex() {
+		return bagBuildingIndex;
+	}
+
+	public UpToDateCache getUpToDateCache() {
+		return upToDateCache;
+	}
+
+	public ValidationScheduler getValidationScheduler() {
+		return validationScheduler;
+	}
+
+	/**
+	 * Find the data sets of the layers
+	 * @param removedLayer Layer that is being removed, ignored, null for none
+	 */
+	private void resolveLayers(Layer removedLayer) {
+		DataSet bagResult = null;
+		DataSet osmResult = null;
+		for (Layer layer : MainApplication.getLayerManager().getLayers()) {
+			if (layer == removedLayer || !(layer instanceof OsmDataLayer)) {
+				continue;
+			}
+			// Last one wins, like BuildingUpdate.getLayerDataSetByName()
+			if (layer.getName().equals(BuildingUpdate.BAG_LAYER_NAME)) {
+				bagResult = ((OsmDataLayer) layer).getDataSet();
+			} else if (layer.getName().equals(BuildingUpdate.OSM_LAYER_NAME)) {
+				osmResult = ((OsmDataLayer) layer).getDataSet();
+			}
+		}
+
+		boolean changed = bagResult != bagLayerDataSet || osmResult != osmDataSet;
+		bagLayerDataSet = bagResult;
+		osmDataSet = osmResult;
+		if (changed) {
+			trace("BagSession layers changed, BAG ODS found: {0}, BAG OSM found: {1}", bagResult != null, osmResult != null);
+		}
+	}
+
+	/** Find the layers again, and update what depends on them */
+	private void layersChanged(Layer removedLayer) {
+		DataSet previousBag = bagLayerDataSet;
+		DataSet previousOsm = osmDataSet;
+		resolveLayers(removedLayer);
+		if (previousBag == bagLayerDataSet && previousOsm == osmDataSet) {
+			return;
+		}
+
+		bindIndexes();
+		layersChanged.run();
+	}
+
+	@Override
+	public void layerAdded(LayerAddEvent e) {
+		layersChanged(null);
+	}
+
+	@Override
+	public void layerRemoving(LayerRemoveEvent e) {
+		layersChanged(e.getRemovedLayer());
+	}
+
+	@Override
+	public void layerOrderChanged(LayerOrderChangeEvent e) {
+		// Order does not matter
+	}
+
+	/**
+	 * Set up the validator tests (loads the MapCSS rules) before the first click, on the EDT
+	 * - No-op when they are set up already
+	 */
+	private void warmUpValidator() {
+		if (!started) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			validationScheduler.warmUp();
+		} catch (RuntimeException e) {
+			// Set up again on the first validation, which reports the problem when it happens again
+			Logging.warn("Failed to set up the validator tests in advance");
+			Logging.warn(e);
+		}
+		trace("BagSession validator warmed up in {0} ms", (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/** Run the node matching on made up buildings of different sizes in the background, so it is compiled before the first click */
+	private void warmUpMatching() {
+		long start = System.nanoTime();
+		try {
+			int match = 0;
+			for (; match < WARM_UP_MATCHES && started; match++) {
+				int nodeCount = 4 + match % 60;
+				Way bagWay = createWarmUpWay(nodeCount, 0);
+				Way osmWay = createWarmUpWay(nodeCount + match % 3, 0.000002);
+				UpdatePlan.update(bagWay, osmWay, NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay)));
+			}
+			matchingWarmedUp = match == WARM_UP_MATCHES;
+		} catch (RuntimeException e) {
+			// Only makes the first click slower
+			Logging.warn("Failed to warm up the BAG node matching");
+			Logging.warn(e);
+		}
+		trace("BagSession node matching warmed up in {0} ms", (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/** Closed way that is not part of any data set, roughly the size of a house */
+	private static Way createWarmUpWay(int nodeCount, double offsetDegrees) {
+		List<Node> nodes = new ArrayList<>(nodeCount + 1);
+		for (int index = 0; index < nodeCount; index++) {
+			double angle = 2 * Math.PI * index / nodeCount;
+			nodes.add(new Node(new LatLon(52 + 0.0001 * Math.sin(angle) + offsetDegrees, 5 + 0.00015 * Math.cos(angle))));
+		}
+		nodes.add(nodes.get(0));
+		Way way = new Way();
+		way.setNodes(nodes);
+		return way;
+	}
+
+}
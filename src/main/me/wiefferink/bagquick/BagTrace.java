@@ -0,0 +1,223 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.IPreferences;
+import org.openstreetmap.josm.spi.preferences.PreferenceChangedListener;
+
+import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Trace of what the plugin did, to find out what went wrong after the fact
+ * - Disabled by default, enable with the bag-quick.trace preference (or Tools > BAG update trace)
+ * - When disabled, tracing only checks a flag: nothing is formatted, logged or stored
+ * - When enabled, events are kept in a bounded ring buffer in memory instead of being logged
+ * - Values are captured when tracing (primitives as type, id and a short summary), so the dump shows the state at the time of the event
+ *   and does not keep primitives (or their DataSets) alive
+ * - Can be used from any thread
+ */
+public final class BagTrace {
+
+	/** Preference to enable the trace */
+	public static final String ENABLED_PREFERENCE = "bag-quick.trace";
+	/** Preference with the number of events to keep */
+	public static final String CAPACITY_PREFERENCE = "bag-quick.trace.capacity";
+
+	private static final int DEFAULT_CAPACITY = 2000;
+
+	/** Fast path check, everything else only happens when enabled */
+	private static volatile boolean enabled = false;
+
+	/** Ring buffer of events, null when disabled */
+	private static Event[] events;
+	/** Number of events recorded since enabling */
+	private static long recorded = 0;
+
+	private static final PreferenceChangedListener PREFERENCE_LISTENER = event -> configure();
+
+	private BagTrace() {
+	}
+
+	/** Read the preferences and follow changes to them, call once when the plugin loads */
+	public static void init() {
+		IPreferences preferences = Config.getPref();
+		preferences.addKeyPreferenceChangeListener(ENABLED_PREFERENCE, PREFERENCE_LISTENER);
+		preferences.addKeyPreferenceChangeListener(CAPACITY_PREFERENCE, PREFERENCE_LISTENER);
+		configure();
+	}
+
+	private static synchronized void configure() {
+		IPreferences preferences = Config.getPref();
+		boolean enable = preferences.getBoolean(ENABLED_PREFERENCE, false);
+		int capacity = Math.max(1, preferences.getInt(CAPACITY_PREFERENCE, DEFAULT_CAPACITY));
+		if (!enable) {
+			enabled = false;
+			events = null;
+			recorded = 0;
+			return;
+		}
+
+		if (events == null || events.length != capacity) {
+			events = new Event[capacity];
+			recorded = 0;
+		}
+		enabled = true;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Enable or disable the trace, stored in the preferences */
+	public static void setEnabled(boolean enable) {
+		Config.getPref().putBoolean(ENABLED_PREFERENCE, enable);
+	}
+
+	/**
+	 * Record an event
+	 * @param pattern Description of the event, in MessageFormat syntax
+	 */
+	public static void trace(String pattern) {
+		if (enabled) {
+			record(pattern, null);
+		}
+	}
+
+	/** Record an event with a value, see trace(String) */
+	public static void trace(String pattern, Object value) {
+		if (enabled) {
+			record(pattern, new Object[]{value});
+		}
+	}
+
+	/** Record an event with values, see trace(String) */
+	public static void trace(String pattern, Object value1, Object value2) {
+		if (enabled) {
+			record(pattern, new Object[]{value1, value2});
+		}
+	}
+
+	/** Record an event with values, see trace(String) */
+	public static void trace(String pattern, Object value1, Object value2, Object value3) {
+		if (enabled) {
+			record(pattern, new Object[]{value1, value2, value3});
+		}
+	}
+
+	private static void record(String pattern, Object[] values) {
+		if (values != null) {
+			for (int index = 0; index < values.length; index++) {
+				values[index] = capture(values[index]);
+			}
+		}
+		synchronized (BagTrace.class) {
+			// Might have been disabled in the meantime
+			if (events == null) {
+				return;
+			}
+			events[(int) (recorded % events.length)] = new Event(System.currentTimeMillis(), Thread.currentThread().getName(), pattern, values);
+			recorded++;
+		}
+	}
+
+	/**
+	 * Value to keep for an event
+	 * - Numbers, strings, booleans and enums are kept as they are (immutable), MessageFormat formats numbers itself
+	 * - Primitives become their type and id, with the location of a node or the number of nodes of a way
+	 * - Anything else becomes its description at the time of the event
+	 */
+	private static Object capture(Object value) {
+		if (value == null || value instanceof Number || value instanceof String || value instanceof Boolean || value instanceof Enum) {
+			return value;
+		}
+		if (value instanceof Node) {
+			Node node = (Node) value;
+			LatLon coor = node.getCoor();
+			return "node " + node.getUniqueId() + (coor == null ? "" : " (" + coor.lat() + ", " + coor.lon() + ")");
+		}
+		if (value instanceof Way) {
+			Way way = (Way) value;
+			return "way " + way.getUniqueId() + " (" + way.getNodesCount() + " nodes)";
+		}
+		if (value instanceof OsmPrimitive) {
+			OsmPrimitive primitive = (OsmPrimitive) value;
+			return primitive.getType().getAPIName() + " " + primitive.getUniqueId();
+		}
+		if (value instanceof LatLon) {
+			return ((LatLon) value).lat() + ", " + ((LatLon) value).lon();
+		}
+		return String.valueOf(value);
+	}
+
+	/**
+	 * Format the recorded events, oldest first
+	 * @param maxEvents Maximum number of (most recent) events to include
+	 * @return One line per event, empty when disabled or nothing has been recorded
+	 */
+	public static synchronized String dump(int maxEvents) {
+		if (events == null || recorded == 0) {
+			return "";
+		}
+
+		int count = (int) Math.min(Math.min(recorded, events.length), maxEvents);
+		SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.ROOT);
+		StringBuilder result = new StringBuilder();
+		if (recorded > count) {
+			result.append("(").append(recorded - count).append(" older events left out)\n");
+		}
+		for (long i = recorded - count; i < recorded; i++) {
+			Event event = events[(int) (i % events.length)];
+			result.append(timeFormat.format(new Date(event.timeMillis)))
+				.append(" [").append(event.thread).append("] ")
+				.append(event.format())
+				.append('\n');
+		}
+		return result.toString();
+	}
+
+	/** Format all recorded events, see dump(int) */
+	public static String dump() {
+		return dump(Integer.MAX_VALUE);
+	}
+
+	/** Forget the recorded events */
+	public static synchronized void clear() {
+		if (events != null) {
+			events = new Event[events.length];
+		}
+		recorded = 0;
+	}
+
+	private static final class Event {
+		private final long timeMillis;
+		private final String thread;
+		private final String pattern;
+		private final Object[] values;
+
+		private Event(long timeMillis, String thread, String pattern, Object[] values) {
+			this.timeMillis = timeMillis;
+			this.thread = thread;
+			this.pattern = pattern;
+			this.values = values;
+		}
+
+		private String format() {
+			if (values == null) {
+				return pattern;
+			}
+			try {
+				return MessageFormat.format(pattern, values);
+			} catch (IllegalArgumentException e) {
+				return pattern + " " + Arrays.toString(values);
+			}
+		}
+	}
+
+}
@@ -1,16 +1,28 @@
 package me.wiefferink.bagquick;
 
 import org.openstreetmap.josm.actions.mapmode.MapMode;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapFrame;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.Notification;
 import org.openstreetmap.josm.tools.ImageProvider;
 import org.openstreetmap.josm.tools.Logging;
 import org.openstreetmap.josm.tools.Shortcut;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
@@ -18,8 +30,46 @@ import static org.openstreetmap.josm.tools.I18n.tr;
  * Action to quickly perform BAG updates
  * - one-click updates
  * - one-click imports
+ * - batch updates of all buildings in a dragged rectangle (or lasso while holding ALT)
+ * - going through the buildings that need an update with a hotkey, see WorkQueue
  */
-public class BagUpdateAction extends MapMode implements MouseListener {
+public class BagUpdateAction extends MapMode implements MouseListener, MouseMotionListener {
+
+    /** Milliseconds the mouse should rest on a building before its update is planned */
+    private static final int HOVER_DELAY_MILLIS = 150;
+
+    /** Layers, indexes and caches shared by the updates, started while the mode is active */
+    private final BagSession session = new BagSession(this::bindIndexes);
+    /** Tracks which buildings still need an update while the mode is active */
+    private final BuildingStatusTracker statusTracker = new BuildingStatusTracker(session.getOsmRefIndex(), BagUpdateAction::repaintLater);
+    /** Shows the statuses of statusTracker on the map */
+    private final BuildingStatusOverlay statusOverlay = new BuildingStatusOverlay(statusTracker, session.getBagBuildingIndex());
+    /** Buildings that still need an update, in the order to go through them with the hotkey */
+    private final WorkQueue workQueue = new WorkQueue(session, statusTracker);
+
+    /** Hotkey to apply the current building of the work queue and go to the next one, only active while the mode is */
+    private final Shortcut nextBuildingShortcut;
+    private final Action nextBuildingAction = new AbstractAction(tr("Next BAG building")) {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            nextBuilding();
+        }
+    };
+
+    /** Updates of the buildings the mouse hovered over, planned before they are clicked */
+    private final HoverPlanCache hoverPlans = new HoverPlanCache(session);
+    /** Plans the building under the mouse once it rests for a moment */
+    private final Timer hoverTimer = new Timer(HOVER_DELAY_MILLIS, event -> hovered());
+    /** Last location of the mouse on the map, null when not on the map */
+    private Point hoverPoint;
+
+    /** Area that is currently being dragged, null when not dragging */
+    private AreaSelection areaSelection;
+
+    /** Single update that is being planned in the background, null when none */
+    private BuildingUpdate pendingUpdate;
+    /** Batch update that is being planned in the background, null when none */
+    private BatchUpdate pendingBatchUpdate;
 
     public BagUpdateAction() {
         super(
@@ -34,6 +84,13 @@ public class BagUpdateAction extends MapMode implements MouseListener {
             ),
             getCursor()
         );
+        hoverTimer.setRepeats(false);
+        nextBuildingShortcut = Shortcut.registerShortcut(
+            "tools:bagquick:next",
+            tr("Tools: {0}", tr("Next BAG building")),
+            KeyEvent.VK_N,
+            Shortcut.DIRECT
+        );
     }
 
     private static Cursor getCursor() {
@@ -52,6 +109,40 @@ public class BagUpdateAction extends MapMode implements MouseListener {
         MainApplication.getMap().mapView.setCursor(getCursor());
         // Listen to mouse events
         MainApplication.getMap().mapView.addMouseListener(this);
+        MainApplication.getMap().mapView.addMouseMotionListener(this);
+        // Show which buildings still need an update
+        MainApplication.getMap().mapView.addTemporaryLayer(statusOverlay);
+        MainApplication.registerActionShortcut(nextBuildingAction, nextBuildingShortcut);
+
+        // Find the layers and build the indexes once, they keep themselves up-to-date afterwards
+        // - layers that are added later are picked up by the session
+        session.start();
+        bindIndexes();
+    }
+
+    /** Bind the indexes and status tracking to the layers that are present (no-op when already done) */
+    private void bindIndexes() {
+        session.bindIndexes();
+        DataSet bagDataSet = session.getBagDataSet();
+        DataSet osmDataSet = session.getOsmDataSet();
+        if (bagDataSet != null && osmDataSet != null) {
+            statusTracker.bind(bagDataSet, osmDataSet);
+            hoverPlans.bind(bagDataSet, osmDataSet);
+        } else {
+            statusTracker.unbind();
+            hoverPlans.unbind();
+            workQueue.clear();
+        }
+    }
+
+    /** Repaint the map on the EDT, can be called from any thread */
+    private static void repaintLater() {
+        SwingUtilities.invokeLater(() -> {
+            MapFrame map = MainApplication.getMap();
+            if (map != null) {
+                map.mapView.repaint();
+            }
+        });
     }
 
     @Override
@@ -60,6 +151,19 @@ public class BagUpdateAction extends MapMode implements MouseListener {
 
         // Stop listening to mouse events
         MainApplication.getMap().mapView.removeMouseListener(this);
+        MainApplication.getMap().mapView.removeMouseMotionListener(this);
+        MainApplication.getMap().mapView.removeTemporaryLayer(statusOverlay);
+        MainApplication.unregisterActionShortcut(nextBuildingAction, nextBuildingShortcut);
+        clearAreaSelection();
+        cancelPendingUpdates();
+        workQueue.clear();
+        hoverTimer.stop();
+        hoverPoint = null;
+
+        // Stop keeping the indexes up-to-date
+        statusTracker.unbind();
+        hoverPlans.unbind();
+        session.stop();
     }
 
     /**
@@ -67,9 +171,6 @@ public class BagUpdateAction extends MapMode implements MouseListener {
      */
     @Override
     public void mouseClicked(MouseEvent e) {
-
-        Logging.info("mouse clicked " + e);
-
         requestFocusInMapView();
         updateKeyModifiers(e);
         if (e.getButton() != MouseEvent.BUTTON1) {
@@ -77,19 +178,272 @@ public class BagUpdateAction extends MapMode implements MouseListener {
             return;
         }
 
-        Point clickedPoint = e.getPoint();
+        // Only the result of the last click is interesting
+        cancelPendingUpdates();
+        hoverTimer.stop();
 
-        // Run an async task to do the work
-        SwingUtilities.invokeLater(() -> {
+        PlannedUpdate plannedUpdate;
+        try {
+            // Hovered buildings are planned already
+            MapView mapView = MainApplication.getMap().mapView;
+            plannedUpdate = hoverPlans.take(mapView.getLatLon(e.getX(), e.getY()));
+            if (plannedUpdate == null) {
+                // Check the layers on the EDT, then plan the update in the background
+                BuildingUpdate buildingUpdate = new BuildingUpdate(e.getPoint(), session);
+                if (!buildingUpdate.prepare()) {
+                    buildingUpdate.getResultSummary().sendNotification();
+                    return;
+                }
+                bindIndexes();
+                plannedUpdate = PlannedUpdate.start(buildingUpdate);
+            }
+        } catch (Exception exception) {
+            handleException(exception);
+            return;
+        }
+        pendingUpdate = plannedUpdate.getUpdate();
+
+        // Apply the update on the EDT, directly when planning is done already
+        plannedUpdate.whenPlanned(buildingUpdate -> {
+            if (pendingUpdate == buildingUpdate) {
+                pendingUpdate = null;
+            }
+            applyUpdate(buildingUpdate);
+        });
+    }
+
+    /**
+     * Plan the update of the building under the mouse, so clicking it can apply it directly
+     */
+    private void hovered() {
+        MapFrame map = MainApplication.getMap();
+        if (hoverPoint == null || areaSelection != null || map == null) {
+            return;
+        }
+
+        try {
+            LatLon latLon = map.mapView.getLatLon(hoverPoint.x, hoverPoint.y);
+            OfflineBagSource.loadConfigured(latLon.lat(), latLon.lon(), latLon.lat(), latLon.lon());
+            bindIndexes();
+            hoverPlans.hovered(latLon);
+        } catch (Exception exception) {
+            // Not important enough to bother the user, clicking reports the problem when it happens again
+            Logging.warn("Failed to plan the BAG update of a hovered building");
+            Logging.warn(exception);
+        }
+    }
+
+    /**
+     * Apply the current building of the work queue, and go to the next building that needs an update
+     * - The first time it only goes to the building closest to the center of the view
+     */
+    private void nextBuilding() {
+        MapView mapView = MainApplication.getMap().mapView;
+        Bounds view = mapView.getRealBounds();
+        OfflineBagSource.loadConfigured(view.getMinLat(), view.getMinLon(), view.getMaxLat(), view.getMaxLon());
+        DataSet bagDataSet = session.getBagDataSet();
+        if (bagDataSet == null) {
+            new Notification(tr("BAG ODS layer not found! Make sure to use ODS > Enable > BAG first"))
+                    .setIcon(JOptionPane.WARNING_MESSAGE)
+                    .show();
+            return;
+        }
+        bindIndexes();
+
+        // Apply the current building, directly when planning is done already (usually the case)
+        PlannedUpdate currentUpdate = workQueue.takeCurrentUpdate();
+        if (currentUpdate != null) {
+            currentUpdate.whenPlanned(BagUpdateAction::applyUpdate);
+        }
+
+        // Go to the next building, the view keeps its zoom level
+        Way next = workQueue.next(bagDataSet, view.getCenter());
+        if (next == null) {
+            new Notification(tr("All BAG buildings are up-to-date"))
+                    .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                    .show();
+            return;
+        }
+        bagDataSet.setSelected(next);
+        mapView.zoomTo(next.getBBox().getCenter());
+    }
+
+    /** Apply a planned update and show the result, should be called on the EDT */
+    private static void applyUpdate(BuildingUpdate update) {
+        try {
+            update.apply();
+            update.getResultSummary().sendNotification();
+        } catch (Exception exception) {
+            handleException(exception);
+        }
+    }
+
+    /**
+     * Invoked when the mouse moved without a button pressed, plans the building under it after a short delay
+     */
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        hoverPoint = e.getPoint();
+        hoverTimer.restart();
+    }
+
+    /**
+     * Invoked when the mouse left the map
+     */
+    @Override
+    public void mouseExited(MouseEvent e) {
+        hoverPoint = null;
+        hoverTimer.stop();
+    }
+
+    /**
+     * Invoked when a mouse button has been pressed, might be the start of an area selection
+     */
+    @Override
+    public void mousePressed(MouseEvent e) {
+        updateKeyModifiers(e);
+        if (e.getButton() != MouseEvent.BUTTON1) {
+            return;
+        }
+
+        clearAreaSelection();
+        areaSelection = new AreaSelection(e.getPoint(), alt);
+        MainApplication.getMap().mapView.addTemporaryLayer(areaSelection);
+    }
+
+    /**
+     * Invoked when the mouse is moved with a button pressed, extends the area selection
+     */
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        if (areaSelection == null) {
+            return;
+        }
+
+        areaSelection.dragTo(e.getPoint());
+        MainApplication.getMap().mapView.repaint();
+    }
+
+    /**
+     * Invoked when a mouse button has been released, finishes the area selection
+     */
+    @Override
+    public void mouseReleased(MouseEvent e) {
+        if (areaSelection == null || e.getButton() != MouseEvent.BUTTON1) {
+            return;
+        }
+
+        AreaSelection finishedSelection = areaSelection;
+        clearAreaSelection();
+        if (!finishedSelection.isDragging()) {
+            // Regular click, handled by mouseClicked()
+            return;
+        }
+
+        // Only the result of the last selection is interesting
+        cancelPendingUpdates();
+
+        // Find the buildings and check the layers on the EDT
+        BatchUpdate batchUpdate;
+        try {
+            List<Way> bagWays = findBagWays(finishedSelection.getShape());
+            batchUpdate = new BatchUpdate(bagWays, session);
+            batchUpdate.prepare();
+        } catch (Exception exception) {
+            handleException(exception);
+            return;
+        }
+        pendingBatchUpdate = batchUpdate;
+
+        // Plan the updates of all buildings on all cores, then apply the results on the EDT again
+        ForkJoinPool.commonPool().execute(() -> {
             try {
-                BuildingUpdate buildingUpdate = new BuildingUpdate(clickedPoint);
-                buildingUpdate.execute();
+                batchUpdate.plan();
             } catch (Exception exception) {
-                Logging.error("Failed to do a BAG update");
-                Logging.error(exception);
-                new BugReportDialog(exception);
+                // Buildings without a plan get planned while applying
+                Logging.warn("Failed to plan a BAG batch update in the background");
+                Logging.warn(exception);
             }
+
+            SwingUtilities.invokeLater(() -> {
+                if (batchUpdate.isCanceled()) {
+                    return;
+                }
+                if (pendingBatchUpdate == batchUpdate) {
+                    pendingBatchUpdate = null;
+                }
+
+                try {
+                    batchUpdate.execute();
+                } catch (Exception exception) {
+                    handleException(exception);
+                }
+            });
         });
     }
 
+    private static void handleException(Exception exception) {
+        Logging.error("Failed to do a BAG update");
+        Logging.error(exception);
+        new BugReportDialog(exception);
+    }
+
+    /** Cancel the updates that are still being planned, their results are not wanted anymore */
+    private void cancelPendingUpdates() {
+        if (pendingUpdate != null) {
+            pendingUpdate.cancel();
+            pendingUpdate = null;
+        }
+        if (pendingBatchUpdate != null) {
+            pendingBatchUpdate.cancel();
+            pendingBatchUpdate = null;
+        }
+    }
+
+    /** Stop showing the area selection */
+    private void clearAreaSelection() {
+        if (areaSelection == null) {
+            return;
+        }
+
+        MapView mapView = MainApplication.getMap().mapView;
+        mapView.removeTemporaryLayer(areaSelection);
+        mapView.repaint();
+        areaSelection = null;
+    }
+
+    /**
+     * Find the BAG buildings inside an area of the map
+     * - A building is inside when the center of its bounding box is
+     * @param shape Area in screen coordinates
+     * @return BAG ways with a ref:bag inside the area
+     */
+    private List<Way> findBagWays(Shape shape) {
+        List<Way> result = new ArrayList<>();
+        DataSet bagDataSet = session.getBagDataSet();
+        if (bagDataSet == null) {
+            return result;
+        }
+        session.bindIndexes();
+
+        // Get the area in LatLon (screen y-axis is reversed compared to latitude)
+        MapView mapView = MainApplication.getMap().mapView;
+        Rectangle bounds = shape.getBounds();
+        LatLon topLeft = mapView.getLatLon(bounds.x, bounds.y);
+        LatLon bottomRight = mapView.getLatLon(bounds.x + bounds.width, bounds.y + bounds.height);
+        OfflineBagSource.loadConfigured(bottomRight.lat(), topLeft.lon(), topLeft.lat(), bottomRight.lon());
+
+        for (Way bagWay : session.getBagBuildingIndex().findIntersecting(bottomRight.lat(), topLeft.lon(), topLeft.lat(), bottomRight.lon())) {
+            String bagRef = bagWay.get("ref:bag");
+            if (bagRef == null || bagRef.isEmpty()) {
+                continue;
+            }
+
+            if (shape.contains(mapView.getPoint(bagWay.getBBox().getCenter()))) {
+                result.add(bagWay);
+            }
+        }
+        return result;
+    }
+
 }
@@ -0,0 +1,110 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.PseudoCommand;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+
+/**
+ * Command that bundles other commands into a single undo/redo step
+ * - Used for all changes of a building update (including duplicate node fixes), and for all buildings of a batch update
+ * - Commands are executed directly when added, so later commands can build on the results of earlier ones
+ *   (for example duplicate node fixes that need the updated geometry)
+ * - Add this command to the UndoRedoHandler with execute set to false, executeCommand() executes all bundled commands again
+ * - Undo and redo are done in a single DataSet update, so listeners only get one event
+ *   (the first execution is wrapped in a DataSet update by the caller, see BuildingUpdate.apply())
+ */
+public class BagUpdateCommand extends Command {
+
+	/** Description shown in the undo/redo list */
+	private final String description;
+	/** Bundled commands, in execution order */
+	private final List<Command> commands = new ArrayList<>();
+
+	public BagUpdateCommand(DataSet dataSet, String description) {
+		super(dataSet);
+		this.description = description;
+	}
+
+	/**
+	 * Execute a command and bundle it
+	 * - Call between beginUpdate() and endUpdate() of the DataSet, to send listeners a single event for all commands
+	 */
+	public void executeAndAdd(Command command) {
+		command.executeCommand();
+		commands.add(command);
+	}
+
+	/** Bundle a command that has been executed already */
+	public void addExecuted(Command command) {
+		commands.add(command);
+	}
+
+	/** Check if there are any commands bundled */
+	public boolean isEmpty() {
+		return commands.isEmpty();
+	}
+
+	@Override
+	public boolean executeCommand() {
+		DataSet dataSet = getAffectedDataSet();
+		dataSet.beginUpdate();
+		try {
+			for (Command command : commands) {
+				command.executeCommand();
+			}
+		} finally {
+			dataSet.endUpdate();
+		}
+		return true;
+	}
+
+	@Override
+	public void undoCommand() {
+		// Undo in reverse order, later commands depend on the results of earlier ones
+		DataSet dataSet = getAffectedDataSet();
+		dataSet.beginUpdate();
+		try {
+			ListIterator<Command> iterator = commands.listIterator(commands.size());
+			while (iterator.hasPrevious()) {
+				iterator.previous().undoCommand();
+			}
+		} finally {
+			dataSet.endUpdate();
+		}
+	}
+
+	@Override
+	public void fillModifiedData(Collection<OsmPrimitive> modified, Collection<OsmPrimitive> deleted, Collection<OsmPrimitive> added) {
+		for (Command command : commands) {
+			command.fillModifiedData(modified, deleted, added);
+		}
+	}
+
+	@Override
+	public Collection<? extends OsmPrimitive> getParticipatingPrimitives() {
+		Set<OsmPrimitive> result = new HashSet<>();
+		for (Command command : commands) {
+			result.addAll(command.getParticipatingPrimitives());
+		}
+		return result;
+	}
+
+	@Override
+	public Collection<PseudoCommand> getChildren() {
+		return new ArrayList<>(commands);
+	}
+
+	@Override
+	public String getDescriptionText() {
+		return description;
+	}
+
+}
@@ -0,0 +1,234 @@
+package me.wiefferink.bagquick;
+
+import me.wiefferink.bagquick.BuildingUpdate.Outcome;
+import org.openstreetmap.josm.data.UndoRedoHandler;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.tools.Logging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+/**
+ * Represents an update of all BAG buildings in an area
+ * - Plans the updates of all buildings in parallel first (see prepare() and plan())
+ * - Then applies the BuildingUpdate of each of the buildings
+ * - All changes end up in a single undo/redo step
+ * - Buildings with notes are not updated, but selected afterwards to review them
+ * - Shows a single summary of the results
+ */
+public class BatchUpdate {
+
+	/** Maximum number of failure reasons to show in the summary */
+	private static final int MAX_FAILURES_SHOWN = 5;
+
+	/** BAG ways to update */
+	private final Collection<Way> bagWays;
+
+	/** Layers, indexes and caches shared with the other updates */
+	private final BagSession session;
+
+	/** Updates of the buildings, created by prepare() */
+	private final List<BuildingUpdate> buildingUpdates = new ArrayList<>();
+	/** Set when the result is not wanted anymore, for example because the user clicked somewhere else */
+	private volatile boolean canceled = false;
+	/** Add the changes to the undo/redo stack when done, runs without a display keep them out of it */
+	private boolean undoable = true;
+
+	/** Command that bundles the changes of all buildings */
+	private BagUpdateCommand command;
+	/** OSM ways that have been created or updated */
+	private final List<Way> updatedWays = new ArrayList<>();
+	/** OSM ways that have not been updated because they have notes */
+	private final List<Way> reviewWays = new ArrayList<>();
+
+	// Summary
+	private final ResultSummary resultSummary = new ResultSummary();
+
+	public BatchUpdate(Collection<Way> bagWays, BagSession session) {
+		this.bagWays = bagWays;
+		this.session = session;
+	}
+
+	/**
+	 * Prepare the updates of all buildings
+	 * - Should be called on the EDT, before plan()
+	 */
+	public void prepare() {
+		for (Way bagWay : bagWays) {
+			BuildingUpdate buildingUpdate = new BuildingUpdate(bagWay, this);
+			buildingUpdate.prepare();
+			buildingUpdates.add(buildingUpdate);
+		}
+	}
+
+	/**
+	 * Plan the updates of all buildings, in parallel on the common ForkJoinPool
+	 * - Does not change the data, so can (and should) be called from a background thread
+	 */
+	public void plan() {
+		long start = System.currentTimeMillis();
+		buildingUpdates.parallelStream().forEach(buildingUpdate -> {
+			if (canceled || buildingUpdate.getResultSummary().hasFailed()) {
+				return;
+			}
+
+			try {
+				buildingUpdate.plan();
+			} catch (RuntimeException exception) {
+				// Gets planned again while applying, which reports the problem when it happens again
+				Logging.warn("Failed to plan the BAG update of {0} in the background", buildingUpdate.getBagWay().get("ref:bag"));
+				Logging.warn(exception);
+			}
+		});
+		trace("BatchUpdate planned {0} buildings in {1} ms", buildingUpdates.size(), System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Cancel the update, execute() will not do anything anymore
+	 * - Can be called from any thread
+	 */
+	public void cancel() {
+		canceled = true;
+		for (BuildingUpdate buildingUpdate : buildingUpdates) {
+			buildingUpdate.cancel();
+		}
+	}
+
+	public boolean isCanceled() {
+		return canceled;
+	}
+
+	/**
+	 * Starting point for the update
+	 * - Should be called on the EDT, preferably after plan()
+	 */
+	public boolean execute() {
+		if (canceled) {
+			return false;
+		}
+
+		boolean result = executeInternal();
+		resultSummary.sendNotification();
+		return result;
+	}
+
+	/**
+	 * Apply the updates of all buildings, without notifying the user about the result
+	 * - Should be called on the EDT (or the only thread using the data), after plan()
+	 */
+	public boolean executeInternal() {
+		trace("BatchUpdate.execute() with {0} BAG ways", bagWays.size());
+
+		DataSet osmDataSet = session.getOsmDataSet();
+		if (osmDataSet == null) {
+			resultSummary.failed(tr("BAG OSM layer not found! Make sure to use ODS > Enable > BAG first"));
+			return false;
+		}
+
+		if (bagWays.isEmpty()) {
+			resultSummary.failed(tr("Did not find any BAG buildings in the selected area"));
+			return false;
+		}
+
+		// Update all buildings
+		command = new BagUpdateCommand(osmDataSet, trn("BAG update of {0} building", "BAG update of {0} buildings", bagWays.size(), bagWays.size()));
+		Map<Outcome, Integer> outcomeCounts = new EnumMap<>(Outcome.class);
+		List<String> failures = new LinkedList<>();
+		try {
+			for (BuildingUpdate buildingUpdate : buildingUpdates) {
+				// Buildings that could not be planned in the background (or changed since) get planned again here
+				buildingUpdate.apply();
+
+				Outcome outcome = buildingUpdate.getOutcome();
+				outcomeCounts.merge(outcome, 1, Integer::sum);
+				if (outcome == Outcome.FAILED && failures.size() < MAX_FAILURES_SHOWN) {
+					failures.add(tr("ref:bag {0}: {1}", buildingUpdate.getBagWay().get("ref:bag"), buildingUpdate.getResultSummary().getFailedMessage()));
+				}
+			}
+		} finally {
+			// Also keep the changes undoable when something went wrong halfway
+			if (undoable && !command.isEmpty()) {
+				// The bundled commands have been executed already, see BagUpdateCommand.executeAndAdd()
+				UndoRedoHandler.getInstance().add(command, false);
+			}
+		}
+
+		// Summarize
+		int created = outcomeCounts.getOrDefault(Outcome.CREATED, 0);
+		if (created > 0) {
+			resultSummary.addNote(trn("{0} building created", "{0} buildings created", created, created));
+		}
+		int updated = outcomeCounts.getOrDefault(Outcome.UPDATED, 0);
+		if (updated > 0) {
+			resultSummary.addNote(trn("{0} building updated", "{0} buildings updated", updated, updated));
+		}
+		int upToDate = outcomeCounts.getOrDefault(Outcome.UP_TO_DATE, 0);
+		if (upToDate > 0) {
+			resultSummary.addNote(trn("{0} building already up-to-date", "{0} buildings already up-to-date", upToDate, upToDate));
+		}
+		int needsReview = outcomeCounts.getOrDefault(Outcome.NEEDS_REVIEW, 0);
+		if (needsReview > 0) {
+			resultSummary.addWarning(trn("{0} building skipped because of notes, it has been selected for review", "{0} buildings skipped because of notes, they have been selected for review", needsReview, needsReview));
+		}
+		int failed = outcomeCounts.getOrDefault(Outcome.FAILED, 0);
+		if (failed > 0) {
+			resultSummary.addWarning(trn("{0} building failed", "{0} buildings failed", failed, failed));
+			for (String failure : failures) {
+				resultSummary.addWarning(failure);
+			}
+		}
+
+		// Select the buildings that need attention, or otherwise the results
+		osmDataSet.setSelected(reviewWays.isEmpty() ? updatedWays : reviewWays);
+
+		// Validate all results at once
+		if (!updatedWays.isEmpty()) {
+			session.getValidationScheduler().schedule(updatedWays);
+		}
+		return true;
+	}
+
+	/** Set if the changes should be added to the undo/redo stack, call before execute() */
+	public void setUndoable(boolean undoable) {
+		this.undoable = undoable;
+	}
+
+	/** Updates of the buildings, in the order they are applied */
+	public List<BuildingUpdate> getBuildingUpdates() {
+		return buildingUpdates;
+	}
+
+	/** Summary of the results, complete after execute() */
+	public ResultSummary getResultSummary() {
+		return resultSummary;
+	}
+
+	public BagSession getSession() {
+		return session;
+	}
+
+	/** Command that bundles the changes of all buildings */
+	public BagUpdateCommand getCommand() {
+		return command;
+	}
+
+	/** Mark an OSM way as created or updated, it will be validated at the end */
+	public void addUpdatedWay(Way osmWay) {
+		updatedWays.add(osmWay);
+	}
+
+	/** Mark an OSM way as needing a review of its notes before it can be updated */
+	public void queueForReview(Way osmWay) {
+		reviewWays.add(osmWay);
+	}
+
+}
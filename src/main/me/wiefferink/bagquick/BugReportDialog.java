@@ -24,6 +24,9 @@ public class BugReportDialog extends ExtendedDialog {
 
     public static final String GITHUB_ISSUES_URL = "https://github.com/NLthijs48/JOSM-bag-quick/issues/new";
 
+    /** Number of trace events to add to the issue */
+    private static final int MAX_TRACE_EVENTS = 40;
+
     public BugReportDialog(Throwable throwable) {
         super(
             MainApplication.getMainFrame(),
@@ -34,6 +37,11 @@ public class BugReportDialog extends ExtendedDialog {
 
         String stacktraceAsString = getStacktraceAsString(throwable);
         String issueBody = "<describe your issue here>\n\n\n## Stacktrace (keep this this block of text):\n```\n" + stacktraceAsString + "\n```";
+        // Add what happened before, when the trace is enabled (limited, the URL length is limited)
+        String trace = BagTrace.dump(MAX_TRACE_EVENTS);
+        if (!trace.isEmpty()) {
+            issueBody += "\n\n## Trace (keep this block of text):\n```\n" + trace + "```";
+        }
         String issueBodyEncoded;
         try {
             issueBodyEncoded = URLEncoder.encode(issueBody, StandardCharsets.UTF_8.toString());
@@ -0,0 +1,93 @@
+package me.wiefferink.bagquick;
+
+import me.wiefferink.bagquick.BuildingStatusTracker.Status;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.layer.MapViewPaintable;
+
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the status of the BAG buildings on the map, see BuildingStatusTracker
+ * - Red: not in OSM yet, orange: geometry differs, yellow: tags differ, green outline: up-to-date
+ * - Only paints the buildings in view, found with the BagBuildingIndex, and nothing when zoomed out too far
+ */
+public class BuildingStatusOverlay implements MapViewPaintable {
+
+    /** Maximum number of buildings in view to paint, zoomed out further the statuses are not readable anyway */
+    private static final int MAX_PAINTED_BUILDINGS = 5000;
+
+    private static final Map<Status, Color> FILL_COLORS = new EnumMap<>(Status.class);
+    private static final Color UP_TO_DATE_OUTLINE_COLOR = new Color(60, 200, 60, 180);
+    private static final Stroke UP_TO_DATE_STROKE = new BasicStroke(2);
+
+    static {
+        FILL_COLORS.put(Status.MISSING, new Color(230, 40, 40, 90));
+        FILL_COLORS.put(Status.GEOMETRY_DIFFERS, new Color(255, 140, 0, 90));
+        FILL_COLORS.put(Status.TAGS_DIFFER, new Color(255, 220, 0, 90));
+    }
+
+    private final BuildingStatusTracker statusTracker;
+    private final BagBuildingIndex bagBuildingIndex;
+
+    public BuildingStatusOverlay(BuildingStatusTracker statusTracker, BagBuildingIndex bagBuildingIndex) {
+        this.statusTracker = statusTracker;
+        this.bagBuildingIndex = bagBuildingIndex;
+    }
+
+    @Override
+    public void paint(Graphics2D g, MapView mapView, Bounds bounds) {
+        if (!statusTracker.hasStatuses()) {
+            return;
+        }
+
+        List<Way> bagWays = bagBuildingIndex.findIntersecting(bounds.getMinLat(), bounds.getMinLon(), bounds.getMaxLat(), bounds.getMaxLon());
+        if (bagWays.size() > MAX_PAINTED_BUILDINGS) {
+            return;
+        }
+
+        Stroke originalStroke = g.getStroke();
+        for (Way bagWay : bagWays) {
+            Status status = statusTracker.getStatus(bagWay);
+            if (status == null) {
+                continue;
+            }
+
+            Shape outline = getOutline(bagWay, mapView);
+            if (status == Status.UP_TO_DATE) {
+                g.setColor(UP_TO_DATE_OUTLINE_COLOR);
+                g.setStroke(UP_TO_DATE_STROKE);
+                g.draw(outline);
+            } else {
+                g.setColor(FILL_COLORS.get(status));
+                g.fill(outline);
+            }
+        }
+        g.setStroke(originalStroke);
+    }
+
+    /** Outline of a building in screen coordinates */
+    private static Shape getOutline(Way way, MapView mapView) {
+        Path2D.Double path = new Path2D.Double();
+        boolean first = true;
+        for (Node node : way.getNodes()) {
+            Point2D point = mapView.getPoint2D(node);
+            if (first) {
+                path.moveTo(point.getX(), point.getY());
+                first = false;
+            } else {
+                path.lineTo(point.getX(), point.getY());
+            }
+        }
+        path.closePath();
+        return path;
+    }
+
+}
@@ -0,0 +1,308 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.tools.Logging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * Keeps track of which BAG buildings still need an update, without clicking them
+ * - Classifies every BAG building by comparing it with its OSM building, using the same matching and tag rules as an update
+ * - Only classifies the buildings that are affected by a change: the buildings of a new download, or buildings of which
+ *   the BAG or OSM version changed (covers updates, manual edits and undo/redo)
+ * - Classifies in the background, holding the read locks of both data sets for a limited number of buildings at a time
+ * - Statuses can be read from any thread (see getStatus())
+ */
+public class BuildingStatusTracker {
+
+	/** Status of a BAG building compared to OSM */
+	public enum Status {
+		/** No OSM building with the ref:bag yet */
+		MISSING,
+		/** OSM building exists, but the geometry is different (tags might be different as well) */
+		GEOMETRY_DIFFERS,
+		/** OSM building has the same geometry, but the tags are different */
+		TAGS_DIFFER,
+		/** Clicking the building would not change anything */
+		UP_TO_DATE
+	}
+
+	/** Number of buildings to classify while holding the read locks, keeps edits on the EDT responsive */
+	private static final int BUILDINGS_PER_LOCK = 200;
+
+	/** Index of ref:bag values in the BAG OSM layer */
+	private final BagRefIndex osmRefIndex;
+	/** Index of ref:bag values in the BAG ODS layer, to find the BAG buildings affected by an OSM change */
+	private final BagRefIndex bagRefIndex = new BagRefIndex();
+
+	private final WayChangeListener bagListener = new WayChangeListener(this, new ChangeHandler(true));
+	private final WayChangeListener osmListener = new WayChangeListener(this, new ChangeHandler(false));
+
+	/** DataSet of the BAG ODS layer, null when not bound */
+	private DataSet bagDataSet;
+	/** DataSet of the BAG OSM layer, null when not bound */
+	private DataSet osmDataSet;
+
+	/** Status by BAG way, buildings without a status are not classified (yet) */
+	private final Map<Way, Status> statuses = new ConcurrentHashMap<>();
+	/** BAG ways that need to be classified (again) */
+	private final Set<Way> dirtyBagWays = new LinkedHashSet<>();
+	/** True while a background task is classifying */
+	private boolean classifying = false;
+	/** Classifies everything again when the tag rules change */
+	private final Runnable tagPolicyListener = this::tagPolicyChanged;
+	/** Called after a round of classifications, for example to repaint */
+	private final Runnable changeCallback;
+
+	/**
+	 * @param osmRefIndex Index of ref:bag values in the BAG OSM layer, bound by the caller
+	 * @param changeCallback Called after statuses changed, from a background thread
+	 */
+	public BuildingStatusTracker(BagRefIndex osmRefIndex, Runnable changeCallback) {
+		this.osmRefIndex = osmRefIndex;
+		this.changeCallback = changeCallback;
+	}
+
+	/**
+	 * Start tracking the buildings of the layers, classifies all BAG buildings once
+	 * - Does nothing when already bound to the same data sets
+	 */
+	public synchronized void bind(DataSet bagDataSet, DataSet osmDataSet) {
+		if (this.bagDataSet == bagDataSet && this.osmDataSet == osmDataSet) {
+			return;
+		}
+
+		unbind();
+		this.bagDataSet = bagDataSet;
+		this.osmDataSet = osmDataSet;
+		bagRefIndex.bind(bagDataSet);
+		osmRefIndex.bind(osmDataSet);
+		bagListener.bind(bagDataSet);
+		osmListener.bind(osmDataSet);
+		TagPolicy.addChangeListener(tagPolicyListener);
+		markAll();
+	}
+
+	/** Stop tracking and forget all statuses */
+	public synchronized void unbind() {
+		if (bagDataSet == null) {
+			return;
+		}
+
+		bagListener.unbind();
+		osmListener.unbind();
+		TagPolicy.removeChangeListener(tagPolicyListener);
+		bagRefIndex.unbind();
+		bagDataSet = null;
+		osmDataSet = null;
+		dirtyBagWays.clear();
+		statuses.clear();
+	}
+
+	/** Status of a BAG building, null when not known (yet) */
+	public Status getStatus(Way bagWay) {
+		return statuses.get(bagWay);
+	}
+
+	/** Check if there are statuses to show */
+	public boolean hasStatuses() {
+		return !statuses.isEmpty();
+	}
+
+	/** Tags that differ (or not) depend on the rules, classify all BAG buildings again */
+	private synchronized void tagPolicyChanged() {
+		if (bagDataSet != null) {
+			markAll();
+		}
+	}
+
+	/** Classify all BAG buildings again */
+	private void markAll() {
+		for (Way bagWay : bagDataSet.getWays()) {
+			markBagWay(bagWay);
+		}
+		scheduleClassification();
+	}
+
+	private void markBagWay(OsmPrimitive primitive) {
+		if (primitive instanceof Way && primitive.hasKey("ref:bag")) {
+			dirtyBagWays.add((Way) primitive);
+		}
+	}
+
+	/** Classify the BAG buildings with a ref:bag value again */
+	private void markRef(String bagRef) {
+		if (bagRef == null || bagRef.isEmpty()) {
+			return;
+		}
+		dirtyBagWays.addAll(bagRefIndex.getWays(bagRef));
+	}
+
+	/** Start classifying the dirty buildings in the background, unless that is already happening */
+	private void scheduleClassification() {
+		if (classifying || dirtyBagWays.isEmpty()) {
+			return;
+		}
+		classifying = true;
+		ForkJoinPool.commonPool().execute(this::classifyDirty);
+	}
+
+	/** Classify dirty buildings until there are none left */
+	private void classifyDirty() {
+		while (true) {
+			DataSet bagDataSet;
+			DataSet osmDataSet;
+			List<Way> bagWays;
+			synchronized (this) {
+				if (dirtyBagWays.isEmpty() || this.bagDataSet == null) {
+					classifying = false;
+					return;
+				}
+				bagDataSet = this.bagDataSet;
+				osmDataSet = this.osmDataSet;
+				bagWays = dirtyBagWays.stream().limit(BUILDINGS_PER_LOCK).collect(Collectors.toList());
+				dirtyBagWays.removeAll(bagWays);
+			}
+
+			Lock bagLock = bagDataSet.getReadLock();
+			Lock osmLock = osmDataSet.getReadLock();
+			bagLock.lock();
+			osmLock.lock();
+			try {
+				for (Way bagWay : bagWays) {
+					classify(bagWay, bagDataSet);
+				}
+			} finally {
+				osmLock.unlock();
+				bagLock.unlock();
+			}
+			trace("BuildingStatusTracker classified {0} buildings", bagWays.size());
+			changeCallback.run();
+		}
+	}
+
+	/** Compare a BAG building with its OSM building */
+	private void classify(Way bagWay, DataSet bagDataSet) {
+		String bagRef = bagWay.get("ref:bag");
+		if (bagWay.getDataSet() != bagDataSet || !bagWay.isUsable() || bagRef == null || bagRef.isEmpty() || !bagWay.isClosed()) {
+			statuses.remove(bagWay);
+			return;
+		}
+		for (Node node : bagWay.getNodes()) {
+			if (!node.isLatLonKnown()) {
+				statuses.remove(bagWay);
+				return;
+			}
+		}
+
+		// Same lookup as an update
+		List<Way> osmWays = new ArrayList<>();
+		for (Way osmWay : osmRefIndex.getWays(bagRef)) {
+			if (osmWay.isArea()) {
+				osmWays.add(osmWay);
+			}
+		}
+		if (osmWays.isEmpty()) {
+			statuses.put(bagWay, Status.MISSING);
+			return;
+		}
+		if (osmWays.size() > 1) {
+			// Clicking it shows the problem
+			statuses.remove(bagWay);
+			return;
+		}
+
+		try {
+			Way osmWay = osmWays.get(0);
+			UpdatePlan plan = UpdatePlan.update(bagWay, osmWay, NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay)));
+			if (!plan.isGeometryUpToDate()) {
+				statuses.put(bagWay, Status.GEOMETRY_DIFFERS);
+			} else if (!plan.getTagChanges().isEmpty()) {
+				statuses.put(bagWay, Status.TAGS_DIFFER);
+			} else {
+				statuses.put(bagWay, Status.UP_TO_DATE);
+			}
+		} catch (RuntimeException e) {
+			// Not important enough to bother the user, clicking it reports the problem when it happens again
+			statuses.remove(bagWay);
+			Logging.warn("Failed to classify the BAG building {0}", bagRef);
+			Logging.warn(e);
+		}
+	}
+
+	/** Marks the buildings affected by the changes of one of the layers as dirty */
+	private class ChangeHandler implements WayChangeListener.Handler {
+		private final boolean bagLayer;
+
+		ChangeHandler(boolean bagLayer) {
+			this.bagLayer = bagLayer;
+		}
+
+		/** Mark the BAG buildings of a changed way */
+		private void changed(Way way) {
+			if (bagLayer) {
+				markBagWay(way);
+			} else {
+				markRef(way.get("ref:bag"));
+			}
+		}
+
+		@Override
+		public void reset() {
+			markAll();
+		}
+
+		@Override
+		public void wayAdded(Way way) {
+			changed(way);
+		}
+
+		@Override
+		public void wayRemoved(Way way) {
+			changed(way);
+		}
+
+		@Override
+		public void wayTagsChanged(Way way, Map<String, String> originalKeys) {
+			changed(way);
+			// The ref:bag might have been changed or removed
+			if (bagLayer) {
+				statuses.remove(way);
+			} else if (originalKeys != null) {
+				markRef(originalKeys.get("ref:bag"));
+			}
+		}
+
+		@Override
+		public void wayGeometryChanged(Way way) {
+			changed(way);
+		}
+
+		@Override
+		public void nodeChanged(Node node) {
+			// Tags of a node influence if it can be deleted
+			for (Way way : node.getParentWays()) {
+				changed(way);
+			}
+		}
+
+		@Override
+		public void afterEvent() {
+			scheduleClassification();
+		}
+	}
+
+}
@@ -1,13 +1,10 @@
 package me.wiefferink.bagquick;
 
-import edu.princeton.cs.algs4.AssignmentProblem;
 import org.openstreetmap.josm.command.AddCommand;
 import org.openstreetmap.josm.command.ChangeNodesCommand;
 import org.openstreetmap.josm.command.ChangePropertyCommand;
 import org.openstreetmap.josm.command.Command;
 import org.openstreetmap.josm.command.DeleteCommand;
-import org.openstreetmap.josm.command.MoveCommand;
-import org.openstreetmap.josm.command.SequenceCommand;
 import org.openstreetmap.josm.data.UndoRedoHandler;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.BBox;
@@ -16,31 +13,23 @@ import org.openstreetmap.josm.data.osm.DefaultNameFormatter;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.Way;
-import org.openstreetmap.josm.data.validation.OsmValidator;
-import org.openstreetmap.josm.data.validation.Test;
 import org.openstreetmap.josm.data.validation.TestError;
-import org.openstreetmap.josm.data.validation.ValidationTask;
 import org.openstreetmap.josm.data.validation.tests.DuplicateNode;
-import org.openstreetmap.josm.data.validation.util.AggregatePrimitivesVisitor;
 import org.openstreetmap.josm.gui.MainApplication;
-import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
-import org.openstreetmap.josm.tools.Geometry;
 
 import java.awt.*;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 
-import static me.wiefferink.bagquick.BagQuickPlugin.debug;
+import static me.wiefferink.bagquick.BagTrace.trace;
 import static org.openstreetmap.josm.tools.I18n.tr;
 import static org.openstreetmap.josm.tools.I18n.trn;
 
@@ -51,31 +40,53 @@ import static org.openstreetmap.josm.tools.I18n.trn;
  */
 public class BuildingUpdate {
 
+	/** Outcome of an update, used to summarize batch updates */
+	public enum Outcome {
+		/** Update could not be done */
+		FAILED,
+		/** New building has been imported */
+		CREATED,
+		/** Existing building has been updated */
+		UPDATED,
+		/** Existing building did not need any changes */
+		UP_TO_DATE,
+		/** Existing building has notes that should be reviewed before updating it */
+		NEEDS_REVIEW
+	}
+
+	/** Name of the layer that contains the BAG data (created by the ODS plugin) */
+	public static final String BAG_LAYER_NAME = "BAG ODS";
+	/** Name of the layer that contains the OSM data (created by the ODS plugin) */
+	public static final String OSM_LAYER_NAME = "BAG OSM";
+
 	/**
-	 * Up to this number of nodes, do slow pair matching that is O(n^2)
-	 * - For higher node counts fall back to a simpler algorithm that only matches nodes that are close to each other
+	 * Number of meters a click is allowed to be outside of a BAG building to still select it
+	 * - Only used when the click is not inside any building, makes clicking close to the edge work
 	 */
-	private static final int MAX_SLOW_PAIRING_NODE_COUNT = 25;
+	static final double BAG_SEARCH_RADIUS_METERS = 1;
 
 	/**
-	 * Number of meters nodes are allowed to differ from BAG before being updated
-	 * - 1 cm is close enough, consider that accurate
+	 * Number of degrees around the updated way to look for duplicate nodes
+	 * - Roughly 1 meter, duplicate nodes are at the exact same location so this only has to cover rounding differences
 	 */
-	private static final double DESIRED_PRECISION_METERS = 0.01;
-
-	/** Maximum distance existing nodes should be moved around when already tagged with something */
-	private static final double MAX_NODE_MOVE_METERS_TAGGED = 0.01;
-
-	/** Maximum distance existing nodes should be moved around when already tagged with something */
-	private static final double MAX_NODE_MOVE_METERS_UNTAGGED = 5;
+	private static final double DUPLICATE_NODE_SEARCH_BUFFER_DEGREES = 0.00001;
 
-	/** The point on the map that has been clicked with the update tool */
-	private final Point clickedPoint;
-	/** The LatLon on the map that has been clicked with the update tool */
+	/** The LatLon on the map that has been clicked with the update tool, null when the BAG way is already known */
 	private final LatLon clickedLatLon;
 
-	/** MapView */
-	private final MapView mapView;
+	/** Batch update this update is part of, null for a single update */
+	private final BatchUpdate batchUpdate;
+
+	/** Layers, indexes and caches shared with the other updates */
+	private final BagSession session;
+	/** Index of ref:bag values in the BAG OSM layer */
+	private final BagRefIndex osmRefIndex;
+	/** Index of the buildings in the BAG ODS layer */
+	private final BagBuildingIndex bagBuildingIndex;
+	/** Buildings that are known to be up-to-date */
+	private final UpToDateCache upToDateCache;
+	/** Validates the updated ways */
+	private final ValidationScheduler validationScheduler;
 
 	// Layers between which the update is done
 	/** DataSet of the BAG ODS layer */
@@ -89,66 +100,339 @@ public class BuildingUpdate {
 	/** Existing way in OSM that needs to be updated, or null when there is none */
 	private Way osmWay;
 
+	/** Changes to apply, null when not planned (yet) or known to be up-to-date */
+	private UpdatePlan plan;
+	/** True when the UpToDateCache knows that the buildings are up-to-date, there is no plan then */
+	private boolean knownUpToDate = false;
+	/** Bundles all changes of the update into a single undo/redo step */
+	private BagUpdateCommand command;
+	/** Set when the result is not wanted anymore, for example because the user clicked somewhere else */
+	private volatile boolean canceled = false;
+	/** Time spent in each phase, recorded in UpdateStatistics when applied */
+	private final UpdateTimings timings = new UpdateTimings();
+
 	// Summary
 	private final ResultSummary resultSummary;
+	private Outcome outcome = Outcome.FAILED;
+
+	/** Update of the building at a clicked point */
+	public BuildingUpdate(Point clickedPoint, BagSession session) {
+		this(MainApplication.getMap().mapView.getLatLon(clickedPoint.x, clickedPoint.y), session);
+	}
 
-	public BuildingUpdate(Point clickedPoint) {
+	/**
+	 * Update of the building at a location
+	 * - Does not need a MapView, so also usable without a display
+	 */
+	public BuildingUpdate(LatLon clickedLatLon, BagSession session) {
+		this(clickedLatLon, null, null, session);
+	}
+
+	/**
+	 * Update of a known BAG building
+	 * - Does not need a MapView, so also usable without a display
+	 */
+	public BuildingUpdate(Way bagWay, BagSession session) {
+		this(null, bagWay, null, session);
+	}
+
+	/** Update of a known BAG building, as part of a batch update */
+	public BuildingUpdate(Way bagWay, BatchUpdate batchUpdate) {
+		this(null, bagWay, batchUpdate, batchUpdate.getSession());
+	}
+
+	private BuildingUpdate(LatLon clickedLatLon, Way bagWay, BatchUpdate batchUpdate, BagSession session) {
 		this.resultSummary = new ResultSummary();
-		this.mapView = MainApplication.getMap().mapView;
-		this.clickedPoint = clickedPoint;
-		this.clickedLatLon = this.mapView.getLatLon(clickedPoint.x, clickedPoint.y);
+		this.session = session;
+		this.osmRefIndex = session.getOsmRefIndex();
+		this.bagBuildingIndex = session.getBagBuildingIndex();
+		this.upToDateCache = session.getUpToDateCache();
+		this.validationScheduler = session.getValidationScheduler();
+		this.batchUpdate = batchUpdate;
+		this.clickedLatLon = clickedLatLon;
+		this.bagWay = bagWay;
+	}
+
+	public ResultSummary getResultSummary() {
+		return resultSummary;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	/** BAG way that is being updated, null when not found (yet) */
+	public Way getBagWay() {
+		return bagWay;
+	}
+
+	/** OSM way that is being updated or created, null when not found (yet) */
+	public Way getOsmWay() {
+		return osmWay;
 	}
 
-	/** Starting point for the update */
+	/** Time spent in each phase of the update */
+	public UpdateTimings getTimings() {
+		return timings;
+	}
+
+	/** Changes made by the update, null when nothing has been applied */
+	public BagUpdateCommand getCommand() {
+		return command;
+	}
+
+	/** Starting point for the update, does all steps directly */
 	public boolean execute() {
 		boolean result = executeInternal();
 		resultSummary.sendNotification();
 		return result;
 	}
 
+	/** Do all steps directly, without notifying the user about the result */
 	public boolean executeInternal() {
-		debug("BuildingUpdate.execute()");
-		debug("clicked LatLon={0}", clickedLatLon);
+		if (!prepare()) {
+			return false;
+		}
+		// apply() also handles a failed plan, to record the timings
+		plan();
+		return apply();
+	}
+
+	/**
+	 * Step 1: check that everything needed for the update is present
+	 * - Should be called on the EDT
+	 */
+	public boolean prepare() {
+		trace("BuildingUpdate.prepare()");
+		trace("clicked LatLon={0}", clickedLatLon);
 
 		// Check that the BAG ODS and BAG OSM layers are present
-		if (!checkLayers()) {
+		return checkLayers();
+	}
+
+	/**
+	 * Step 2: find the ways and compute the changes
+	 * - Only reads the data, while holding the read locks of both data sets, so it can be called from a background thread
+	 * - Should be called after prepare()
+	 */
+	public boolean plan() {
+		Lock bagLock = bagDataSet.getReadLock();
+		Lock osmLock = osmDataSet.getReadLock();
+		bagLock.lock();
+		osmLock.lock();
+		try {
+			return planInternal();
+		} finally {
+			osmLock.unlock();
+			bagLock.unlock();
+		}
+	}
+
+	private boolean planInternal() {
+		this.plan = null;
+		this.knownUpToDate = false;
+
+		// Find the clicked way on the BAG ODS layer (already known for batch updates)
+		if (clickedLatLon != null) {
+			this.bagWay = null;
+			long start = System.nanoTime();
+			boolean found = findBagWay();
+			timings.add(UpdateTimings.Phase.FIND_BAG_WAY, start);
+			if (!found) {
+				return false;
+			}
+		}
+		if (canceled) {
 			return false;
 		}
 
-		// Find the clicked way on the BAG ODS layer
-		if (!findBagWay()) {
+		// Find the Way on the OSM layer
+		long start = System.nanoTime();
+		List<Way> osmMatchingWays = findOsmWays();
+		timings.add(UpdateTimings.Phase.FIND_OSM_WAY, start);
+		if (osmMatchingWays.size() > 1) {
+			resultSummary.failed(tr("Found multiple OSM ways: {0}", osmMatchingWays.stream().map(way -> way.getDisplayName(DefaultNameFormatter.getInstance())).collect(Collectors.joining(", "))));
 			return false;
 		}
+		if (osmMatchingWays.isEmpty()) {
+			this.osmWay = null;
+			start = System.nanoTime();
+			this.plan = UpdatePlan.create(bagWay);
+			timings.add(UpdateTimings.Phase.MATCH, start);
+			timings.setMatching(plan.getResultNodeCount(), 0, UpdateTimings.MatchingStrategy.NONE);
+			return true;
+		}
+		this.osmWay = osmMatchingWays.get(0);
+		trace("    found OSM way: {0}", osmWay);
 
-		// Show the BAG way as selected
-		bagDataSet.setSelected(this.bagWay);
+		// Nothing changed since the last time the building was up-to-date, no need to match the nodes again
+		if (upToDateCache.isUpToDate(bagWay, osmWay)) {
+			this.knownUpToDate = true;
+			timings.setMatching(0, 0, UpdateTimings.MatchingStrategy.CACHED);
+			return true;
+		}
 
-		// Find the Way on the OSM layer
-		if (!findOsmWay()) {
-			return createNewBuilding();
+		// Match BAG nodes to OSM nodes in a way that moves them as little as possible
+		start = System.nanoTime();
+		NodeMatcher.Result matching = NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay));
+		this.plan = UpdatePlan.update(bagWay, osmWay, matching);
+		timings.add(UpdateTimings.Phase.MATCH, start);
+		timings.setMatching(matching.getBagNodeCount(), matching.getOsmNodeCount(), matching.isBudgetExceeded() ? UpdateTimings.MatchingStrategy.GREEDY : UpdateTimings.MatchingStrategy.ASSIGNMENT);
+		return true;
+	}
+
+	/**
+	 * Step 3: turn the plan into commands
+	 * - Should be called on the EDT, after plan()
+	 * - Plans again (on the EDT) when the data changed since planning, or when planning did not complete
+	 */
+	public boolean apply() {
+		if (canceled) {
+			return false;
+		}
+
+		try {
+			return applyInternal();
+		} finally {
+			timings.finish(outcome);
+			UpdateStatistics.getInstance().record(timings);
 		}
+	}
 
-		// Show the OSM way as selected
-		osmDataSet.setSelected(this.osmWay);
+	private boolean applyInternal() {
+		if (resultSummary.hasFailed()) {
+			return false;
+		}
 
-		debug("    found OSM way: {0}", osmWay);
-		return updateExistingBuilding();
+		if (!isPlanCurrent()) {
+			trace("BuildingUpdate.apply() data changed since planning, planning again");
+			if (!planInternal()) {
+				return false;
+			}
+		}
+
+		// Show the BAG way as selected (batch updates select the results at the end)
+		if (batchUpdate == null) {
+			bagDataSet.setSelected(this.bagWay);
+		}
+
+		if (knownUpToDate) {
+			if (batchUpdate == null) {
+				osmDataSet.setSelected(this.osmWay);
+			}
+			resultSummary.addNote(tr("Building is already up-to-date"));
+			outcome = Outcome.UP_TO_DATE;
+			return true;
+		}
+
+		// Confirm notes before changing anything, the DataSet should not stay locked while the dialog is open
+		if (osmWay != null && !confirmBuildingNotes()) {
+			return false;
+		}
+
+		String bagRef = bagWay.get("ref:bag");
+		try {
+			// All changes of the building in a single DataSet update, so listeners get one event for the click
+			boolean result;
+			osmDataSet.beginUpdate();
+			try {
+				long start = System.nanoTime();
+				if (osmWay == null) {
+					command = new BagUpdateCommand(osmDataSet, tr("Create new BAG building: {0}", bagRef));
+					result = createNewBuilding();
+				} else {
+					// Show the OSM way as selected (batch updates select the results at the end)
+					if (batchUpdate == null) {
+						osmDataSet.setSelected(this.osmWay);
+					}
+					command = new BagUpdateCommand(osmDataSet, tr("BAG update of {0}", bagRef));
+					result = updateExistingBuilding();
+				}
+				timings.add(UpdateTimings.Phase.COMMANDS, start);
+
+				// Connect to adjacent buildings
+				if (outcome == Outcome.CREATED || outcome == Outcome.UPDATED) {
+					start = System.nanoTime();
+					fixDuplicateNodes();
+					timings.add(UpdateTimings.Phase.FIX_DUPLICATE_NODES, start);
+				}
+			} finally {
+				osmDataSet.endUpdate();
+			}
+
+			// Validate the changed building
+			if (outcome == Outcome.CREATED || outcome == Outcome.UPDATED) {
+				long start = System.nanoTime();
+				runValidation();
+				timings.add(UpdateTimings.Phase.VALIDATION, start);
+			}
+
+			// Remember the result, clicking it again is answered directly
+			// - not when nodes have been kept, the warnings about those should be shown again
+			if (outcome != Outcome.FAILED && outcome != Outcome.NEEDS_REVIEW && plan.getNodesInOtherWays() == 0 && plan.getNodesTagged() == 0) {
+				upToDateCache.put(bagWay, osmWay);
+			}
+			return result;
+		} finally {
+			// Also keep the changes undoable when something went wrong halfway
+			finishCommand();
+		}
+	}
+
+	/** Check if the result of planning is still valid, the data might have changed since */
+	private boolean isPlanCurrent() {
+		List<Way> osmWays = findOsmWays();
+		if (knownUpToDate) {
+			return osmWays.equals(Collections.singletonList(osmWay)) && upToDateCache.isUpToDate(bagWay, osmWay);
+		}
+		return plan != null && plan.isCurrent() && osmWays.equals(plan.getOsmWay() == null ? Collections.emptyList() : Collections.singletonList(plan.getOsmWay()));
+	}
+
+	/**
+	 * Cancel the update, apply() will not do anything anymore
+	 * - Can be called from any thread
+	 */
+	public void cancel() {
+		canceled = true;
+	}
+
+	public boolean isCanceled() {
+		return canceled;
 	}
 
 	/** Gather the BAG and OSM data sets */
 	private boolean checkLayers() {
-		this.bagDataSet = getLayerDataSetByName("BAG ODS");
-		if (bagDataSet == null) {
-			resultSummary.failed(tr("BAG ODS layer not found! Make sure to use ODS > Enable > BAG first"));
-			return false;
+		OfflineBagSource offlineSource = OfflineBagSource.getConfigured();
+		if (offlineSource != null) {
+			if (offlineSource.getIndexingError() != null) {
+				resultSummary.failed(offlineSource.getIndexingError());
+				return false;
+			}
+			if (!offlineSource.isReady()) {
+				resultSummary.failed(tr("Still indexing the offline BAG file {0}, try again in a moment", offlineSource.getFile().getName()));
+				return false;
+			}
+			this.bagDataSet = offlineSource.getDataSet();
+			if (clickedLatLon != null) {
+				offlineSource.load(clickedLatLon.lat(), clickedLatLon.lon(), clickedLatLon.lat(), clickedLatLon.lon());
+			}
+		} else {
+			this.bagDataSet = session.getBagDataSet();
+			if (bagDataSet == null) {
+				resultSummary.failed(tr("BAG ODS layer not found! Make sure to use ODS > Enable > BAG first"));
+				return false;
+			}
 		}
 
-		this.osmDataSet = getLayerDataSetByName("BAG OSM");
+		this.osmDataSet = session.getOsmDataSet();
 		if (osmDataSet == null) {
 			resultSummary.failed(tr("BAG OSM layer not found! Make sure to use ODS > Enable > BAG first"));
 			return false;
 		}
 
+		// Make sure the indexes are about the current layers (no-op when already done)
+		session.bindIndexes();
+
 		return true;
 	}
 
@@ -156,9 +440,9 @@ public class BuildingUpdate {
 	 * Get the DataSet from a map Layer by name
 	 * @return DataSet when there is a matching Layer with a DataSet, null when not found
 	 */
-	private DataSet getLayerDataSetByName(String name) {
+	static DataSet getLayerDataSetByName(String name) {
 		Layer result = null;
-		for (Layer layer : this.mapView.getLayerManager().getLayers()) {
+		for (Layer layer : MainApplication.getLayerManager().getLayers()) {
 			if (layer.getName().equals(name)) {
 				result = layer;
 			}
@@ -182,24 +466,9 @@ public class BuildingUpdate {
 	 * - When not found it directly notifies the user
 	 */
 	private boolean findBagWay() {
-		// Get ways around the clicked point
-		java.util.List<Way> bagSearchWays = this.bagDataSet.searchWays(getSearchBox());
-		debug("findBagWay() {0} results:", bagSearchWays.size());
-		printWayList(bagSearchWays);
-
-		Node clickedNode = new Node(this.clickedLatLon);
-		java.util.List<Way> bagMatchingWays = bagSearchWays
-				.stream()
-				// Way should be an area (not an address point or some other line)
-				.filter(Way::isArea)
-				// Has a building=* tag
-				.filter(way -> way.hasTag("building"))
-				// Clicked point should be inside the way (quick filter to get rid of most)
-				.filter(way -> way.getBBox().bounds(this.clickedLatLon))
-				// Clicked point should be inside the way (strict filter, dealing with polygons)
-				.filter(way -> Geometry.nodeInsidePolygon(clickedNode, way.getNodes()))
-				// To a list
-				.collect(Collectors.toList());
+		// Get the building areas containing the clicked point, or the closest one when clicked just outside of a building
+		List<Way> bagMatchingWays = bagBuildingIndex.findAt(clickedLatLon.lat(), clickedLatLon.lon(), BAG_SEARCH_RADIUS_METERS);
+		trace("findBagWay() {0} results", bagMatchingWays.size());
 
 		// No result
 		if (bagMatchingWays.isEmpty()) {
@@ -225,209 +494,76 @@ public class BuildingUpdate {
 			return false;
 		}
 
-		debug("findBagWay() ref:bag="+ bagRef);
-		debug("    found BAG way: "+bagWay);
 		this.bagWay = result;
+		trace("findBagWay() ref:bag={0}, found BAG way: {1}", bagRef, bagWay);
 		return true;
 	}
 
 	/**
-	 * Find an OSM way that matches a certain ref:bag value
-	 * - Note: this does not send notifications, just indicates if found
-	 * @return Way when a good match has been found, otherwise null
+	 * Find the OSM ways that match the ref:bag value of the BAG way
+	 * - Looks in the whole layer, not only around the clicked point
+	 * @return Matching ways, empty when the building does not exist in OSM yet
 	 */
-	private boolean findOsmWay() {
+	private List<Way> findOsmWays() {
 		String bagRef = bagWay.get("ref:bag");
 
-		// Get ways around the clicked point
-		java.util.List<Way> osmSearchWays = this.osmDataSet.searchWays(getSearchBox());
-		debug("findOsmWay() {0} search results:", osmSearchWays.size());
-		printWayList(osmSearchWays);
-
-		List<Way> osmMatchingWays = osmSearchWays
+		// Get ways with the same ref:bag from the index
+		List<Way> osmMatchingWays = osmRefIndex.getWays(bagRef)
 				.stream()
 				// Way should be an area (not an address point or some other line)
 				.filter(Way::isArea)
-				// Way should surround the clicked point
-				.filter(way -> way.getBBox().bounds(this.clickedLatLon))
-				// BAG ref matches
-				.filter(way -> bagRef != null && bagRef.equals(way.get("ref:bag")))
 				.collect(Collectors.toList());
-
-		// No result
-		if (osmMatchingWays.isEmpty()) {
-			return false;
-		}
-
-		// Multiple results
-		if (osmMatchingWays.size() > 1) {
-			resultSummary.failed(tr("Found multiple OSM ways: {0}", osmMatchingWays.stream().map(way -> way.getDisplayName(DefaultNameFormatter.getInstance())).collect(Collectors.joining(", "))));
-			return false;
-		}
-
-		// 1 result
-		this.osmWay = osmMatchingWays.get(0);
-		return true;
+		trace("findOsmWays() {0} results", osmMatchingWays.size());
+		return osmMatchingWays;
 	}
 
 	/**
 	 * Update an existing building with new geometry and tags
+	 * - Notes on the building are confirmed before, see confirmBuildingNotes()
 	 */
 	private boolean updateExistingBuilding() {
-		String bagRef = bagWay.get("ref:bag");
-
-		// Confirm notes before doing anything else
-		if (!confirmBuildingNotes()) {
-			return false;
-		}
-
-		// Setup node lists to work with
-		Map<Node, Node> bagToOsmNode = new HashMap<>();
-		int bagNodeCount = bagWay.getNodesCount();
-		List<Node> bagNodes = bagWay.getNodes();
-		Set<Node> bagNodesLeft = new HashSet<>(bagNodes);
-		int osmNodeCount = osmWay.getNodesCount();
-		List<Node> osmNodes = osmWay.getNodes();
-		Set<Node> osmNodesLeft = new HashSet<>(osmNodes);
-
-		boolean useSlow = bagNodeCount < MAX_SLOW_PAIRING_NODE_COUNT && osmNodeCount < MAX_SLOW_PAIRING_NODE_COUNT;
-
-		// Match BAG nodes to OSM nodes in a way that moves them as little as possible
-		// - code roughly based on the ReplaceBuilding action
-		if (useSlow) {  // use robust, but slower assignment
-			int N = Math.max(bagNodeCount, osmNodeCount);
-			double[][] cost = new double[N][N];
-			for (int i = 0; i < N; i++) {
-				for (int j = 0; j < N; j++) {
-					cost[i][j] = Double.MAX_VALUE;
-				}
-			}
-
-			for (int bagNodeIndex = 0; bagNodeIndex < bagNodeCount; bagNodeIndex++) {
-				for (int osmNodeIndex = 0; osmNodeIndex < osmNodeCount; osmNodeIndex++) {
-					Node osmNode = osmNodes.get(osmNodeIndex);
-
-					// Longer maximum distance when the node has no tags or other parent ways
-					// - idea is to not move around nodes too much
-					double maxDistance = (osmNode.isTagged() || osmNode.getParentWays().size() > 1) ? MAX_NODE_MOVE_METERS_TAGGED : MAX_NODE_MOVE_METERS_UNTAGGED;
-
-					double distance = bagNodes.get(bagNodeIndex).getCoor().greatCircleDistance(osmNode.getCoor());
-					if (distance >= maxDistance) {
-						cost[bagNodeIndex][osmNodeIndex] = Double.MAX_VALUE;
-					} else {
-						cost[bagNodeIndex][osmNodeIndex] = distance;
-					}
-				}
-			}
-			AssignmentProblem assignment;
-			try {
-				assignment = new AssignmentProblem(cost);
-				for (int bagNodeIndex = 0; bagNodeIndex < N; bagNodeIndex++) {
-					int osmNodeIndex = assignment.sol(bagNodeIndex);
-					if (cost[bagNodeIndex][osmNodeIndex] != Double.MAX_VALUE) {
-						Node osmNode = osmNodes.get(osmNodeIndex);
-						Node bagNode = bagNodes.get(bagNodeIndex);
-
-						if (!osmNodesLeft.contains(osmNode)) {
-							continue;
-						}
-						if (!bagNodesLeft.contains(bagNode)) {
-							continue;
-						}
-
-						osmNodesLeft.remove(osmNode);
-						bagNodesLeft.remove(bagNode);
-						bagToOsmNode.put(bagNode, osmNode);
-					}
-				}
-			} catch (Exception e) {
-				useSlow = false;
-				resultSummary.addNote(tr("Exceeded iteration limit for robust method, using simpler method."));
-				bagToOsmNode = new HashMap<>();
-			}
-		}
-
-		// Quick backup algorithm
-		if (!useSlow) {
-            for (Node bagNode : bagNodes) {
-				// Skip when already done (first and last Node will be the same one)
-				if (!bagNodesLeft.contains(bagNode)) {
-					continue;
-				}
-
-                Node nearestOsmNode = findNearestNode(bagNode, osmNodesLeft);
-                if (nearestOsmNode != null) {
-					osmNodesLeft.remove(nearestOsmNode);
-					bagNodesLeft.remove(bagNode);
-					bagToOsmNode.put(bagNode, nearestOsmNode);
-				}
-            }
+		NodeMatcher.Result matching = plan.getMatching();
+		if (matching.isBudgetExceeded()) {
+			resultSummary.addNote(tr("Exceeded time limit for robust method, used simpler method for the remaining nodes."));
 		}
 
 		// debug logging
-		printNodePairs(bagToOsmNode);
-		debug("Leftover BAG nodes:");
-		for (Node bagNodeLeft : bagNodesLeft) {
-			debug("    {0} {1}", bagNodeLeft.get("name"), bagNodeLeft.getCoor());
-		}
-		debug("Leftover OSM nodes:");
-		for (Node osmNodeLeft : osmNodesLeft) {
-			debug("    {0} {1}", osmNodeLeft.get("name"), osmNodeLeft.getCoor());
-		}
-
-		// Apply node updates
-		// - Loop through the BAG nodes in-order here to build the Way correctly
-		List<Node> resultNodes = new LinkedList<>();
-		Map<LatLon, Node> nodesToAdd = new HashMap<>();
-		for (Node bagNode : bagNodes) {
-			Node resultNode;
-			LatLon bagLatLon = bagNode.getCoor();
-			if (bagToOsmNode.containsKey(bagNode)) {
-				// Use the mapped target node (update location later with MoveCommand)
-				resultNode = bagToOsmNode.get(bagNode);
-			} else if (nodesToAdd.containsKey(bagLatLon)) {
-				// Already created a Node for this location, use that (important for connecting the first and last Node together)
-				resultNode = nodesToAdd.get(bagLatLon);
-			} else {
-				// Create a new Node, an additional one is required
-				resultNode = new Node();
-				resultNode.setCoor(bagLatLon);
-				nodesToAdd.put(bagLatLon, resultNode);
-			}
-
-			resultNodes.add(resultNode);
-		}
+		printNodePairs(matching);
 
 		// Create new nodes
-		Collection<Command> createNodesCommands = new LinkedList<>();
-		if (!nodesToAdd.isEmpty()) {
-			for (Node nodeToAdd : nodesToAdd.values()) {
-				createNodesCommands.add(new AddCommand(osmWay.getDataSet(), nodeToAdd));
-			}
-
-			UndoRedoHandler.getInstance().add(SequenceCommand.wrapIfNeeded(tr("Create nodes"), createNodesCommands));
+		List<Node> newNodes = new ArrayList<>();
+		List<Node> resultNodes = getResultNodes(newNodes);
+		if (!newNodes.isEmpty()) {
+			executeCommand(new AddNodesCommand(osmDataSet, newNodes));
 		}
 
 		// Collect commands
-		Collection<Command> updateBuildingCommands = new LinkedList<>();
+		List<Command> updateBuildingCommands = new ArrayList<>();
 
 		// Update nodes in the OSM Way
-		if (!osmWay.getNodes().equals(resultNodes)) {
+		if (plan.isWayNodesChanged()) {
 			updateBuildingCommands.add(new ChangeNodesCommand(osmWay, resultNodes));
 		}
 
-		// Move existing nodes to the correct location
+		// Move existing nodes to the correct location, all in one command
 		int nodesUpToDate = 0;
-		int nodesMoved = 0;
-		for (Node bagNode : bagToOsmNode.keySet()) {
-			Node osmNode = bagToOsmNode.get(bagNode);
-			LatLon bagCoor = bagNode.getCoor();
-			if (bagCoor.greatCircleDistance(osmNode.getCoor()) < DESIRED_PRECISION_METERS) {
+		List<Node> movedNodes = new ArrayList<>();
+		List<LatLon> movedTargets = new ArrayList<>();
+		for (int resultIndex = 0; resultIndex < plan.getResultNodeCount(); resultIndex++) {
+			Node osmNode = plan.getExistingNode(resultIndex);
+			if (osmNode == null) {
+				continue;
+			}
+			if (!plan.isMoved(resultIndex)) {
 				nodesUpToDate++;
 				continue;
 			}
-			nodesMoved++;
-			updateBuildingCommands.add(new MoveCommand(osmNode, bagCoor));
+			movedNodes.add(osmNode);
+			movedTargets.add(plan.getTargetCoor(resultIndex));
+		}
+		int nodesMoved = movedNodes.size();
+		if (nodesMoved > 0) {
+			updateBuildingCommands.add(new MoveNodesCommand(osmDataSet, movedNodes, movedTargets));
 		}
 		if (nodesUpToDate > 0) {
 			resultSummary.addNote(trn("{0} node up-to-date", "{0} nodes up-to-date", nodesUpToDate, nodesUpToDate));
@@ -435,114 +571,56 @@ public class BuildingUpdate {
 		if (nodesMoved > 0) {
 			resultSummary.addNote(trn("{0} node moved", "{0} nodes moved", nodesMoved, nodesMoved));
 		}
-		if (!bagNodesLeft.isEmpty()) {
-			resultSummary.addNote(trn("{0} node created", "{0} nodes created", bagNodesLeft.size(), bagNodesLeft.size()));
+		if (!newNodes.isEmpty()) {
+			resultSummary.addNote(trn("{0} node created", "{0} nodes created", newNodes.size(), newNodes.size()));
 		}
 
 		// Remove nodes that are not used anymore
-		// - not allowed when tagged with something (not uninteresting)
-		// - not allowed when part of other ways (building:part, other house, fence, etc)
-		int nodesRemoved = 0;
-		int nodesInOtherWays = 0;
-		int nodesTagged = 0;
-		for (Node osmNodeLeft : osmNodesLeft) {
-			List<Way> isInsideWays = osmNodeLeft.getParentWays();
-			isInsideWays.remove(osmWay);
-			if (!isInsideWays.isEmpty()) {
-				// Cannot remove node, is inside another way
-				nodesInOtherWays++;
-				continue;
-			}
-
-			if (osmNodeLeft.isTagged()) {
-				// Node itself has tags, cannot remove
-				nodesTagged++;
-				continue;
-			}
-
-			nodesRemoved++;
-			updateBuildingCommands.add(new DeleteCommand(osmNodeLeft));
+		if (!plan.getDeletedNodes().isEmpty()) {
+			updateBuildingCommands.add(new DeleteCommand(plan.getDeletedNodes()));
 		}
+		int nodesInOtherWays = plan.getNodesInOtherWays();
 		if (nodesInOtherWays > 0) {
 			resultSummary.addWarning(trn("{0} node kept because it is part of another way", "{0} nodes kept because they are part of other ways", nodesInOtherWays, nodesInOtherWays));
 		}
+		int nodesTagged = plan.getNodesTagged();
 		if (nodesTagged > 0) {
 			resultSummary.addWarning(trn("{0} node kept because it has important tags", "{0} nodes kept because they have important tags", nodesTagged, nodesTagged));
 		}
+		int nodesRemoved = plan.getDeletedNodes().size();
 		if (nodesRemoved > 0) {
 			resultSummary.addNote(trn("{0} node removed", "{0} nodes removed", nodesRemoved, nodesRemoved));
 		}
 
-		// Compute tag updates
-		for (Map.Entry<String, String> bagTagEntry : this.bagWay.getKeys().entrySet()) {
-			// Ignore tags prefixed with |ODS, those are only meant as background information
-			String tagName = bagTagEntry.getKey();
-			if (tagName.startsWith("|ODS")) {
-				continue;
-			}
-
-			// Skip updating building when already present, might be more specific in OSM already
-			if (tagName.equals("building") && this.osmWay.get("building") != null) {
-				continue;
-			}
-
-			Command tagUpdateCommand = computeTagUpdate(tagName);
-			if (tagUpdateCommand != null) {
-				updateBuildingCommands.add(tagUpdateCommand);
+		// Tag updates, all in one command
+		Map<String, String> tagChanges = plan.getTagChanges();
+		if (!tagChanges.isEmpty()) {
+			List<String> described = new ArrayList<>(tagChanges.size());
+			for (Map.Entry<String, String> tagChange : tagChanges.entrySet()) {
+				String previousValue = plan.getPreviousTagValue(tagChange.getKey());
+				if (previousValue == null) {
+					described.add(tagChange.getKey() + "=" + tagChange.getValue());
+				} else {
+					described.add(tr("{0}={1} (previously {2})", tagChange.getKey(), tagChange.getValue(), previousValue));
+				}
 			}
+			resultSummary.addNote(tr("Tags updated: {0}", String.join(", ", described)));
+			updateBuildingCommands.add(new ChangePropertyCommand(Collections.singletonList(osmWay), tagChanges));
 		}
 
-
 		// Detect no updates case
 		if (updateBuildingCommands.isEmpty()) {
 			resultSummary.addNote(tr("Building is already up-to-date"));
+			outcome = Outcome.UP_TO_DATE;
 			return true;
 		}
 
 		// Execute the changes
-		Command combinedCommand = SequenceCommand.wrapIfNeeded(tr("BAG update of {0}", bagRef), updateBuildingCommands);
-		UndoRedoHandler.getInstance().add(combinedCommand);
-
-		// Run validation on the updated building
-		fixDuplicateNodes();
-		runValidation();
-
-		return true;
-	}
-
-	/**
-	 * Find the nearest node in a set
-	 * @param targetNode The node to get closest to
-	 * @param optionNodes The options to choose from
-	 * @return null if there is no Node close enough, otherwise the closest node
-	 */
-	private static Node findNearestNode(Node targetNode, Collection<Node> optionNodes) {
-		// Check exact match
-		if (optionNodes.contains(targetNode)) {
-			return targetNode;
-		}
-
-		// Find nearest
-		// - use cheap square distance calculation here
-		Node nearest = null;
-		double nearestDistance = 0;
-		LatLon targetCoor = targetNode.getCoor();
-		for (Node optionNode : optionNodes) {
-			double optionNodeDistance = optionNode.getCoor().distanceSq(targetCoor);
-			if (nearest == null || optionNodeDistance < nearestDistance) {
-				nearestDistance = optionNodeDistance;
-				nearest = optionNode;
-			}
-		}
-
-		// Check if it matches the required precision
-		// - only use 'expensive' real distance in meters here once
-		// - consider all nodes 'tagged' because this algorithm should not move them around much
-		if (targetCoor.greatCircleDistance(nearest.getCoor()) >= MAX_NODE_MOVE_METERS_TAGGED) {
-			return null;
+		for (Command updateBuildingCommand : updateBuildingCommands) {
+			executeCommand(updateBuildingCommand);
 		}
-
-		return nearest;
+		outcome = Outcome.UPDATED;
+		return true;
 	}
 
 	/**
@@ -555,8 +633,9 @@ public class BuildingUpdate {
 		duplicateNode.setBeforeUpload(false);
 		duplicateNode.setPartialSelection(true);
 		duplicateNode.startTest(null);
-		// Simply go through all nodes in the DataSet
-		for (Node node : this.osmDataSet.getNodes()) {
+		// Only go through the nodes around the OSM way, the rest of the DataSet cannot be a duplicate of its nodes
+		// - keeps the cost depending on the density around the building, instead of on the size of the layer
+		for (Node node : this.osmDataSet.searchNodes(getDuplicateNodeSearchBox())) {
 			duplicateNode.visit(node);
 		}
 
@@ -567,7 +646,7 @@ public class BuildingUpdate {
 
 		Set<Node> osmNodes = new HashSet<>(this.osmWay.getNodes());
 		if (!duplicateNodeErrors.isEmpty()) {
-			debug(trn("Found {0} node error", "Found {0} node errors", duplicateNodeErrors.size(), duplicateNodeErrors.size()));
+			trace("Found {0} duplicate node errors", duplicateNodeErrors.size());
 		}
 		for (TestError duplicateNodeError : duplicateNodeErrors) {
 			// Check if this duplicate node error is about our OSM Way
@@ -584,205 +663,197 @@ public class BuildingUpdate {
 
 			// Not fixable, skip
 			if (!duplicateNodeError.isFixable()) {
-				debug("    Duplicate node error not fixable");
+				trace("    Duplicate node error not fixable");
 				continue;
 			}
 
 			// No fix available, skip
 			Command fixDuplicateNodeCommand = duplicateNodeError.getFix();
 			if (fixDuplicateNodeCommand == null) {
-				debug("    Duplicate node error has no fix available");
+				trace("    Duplicate node error has no fix available");
 				continue;
 			}
 
 			// Do the fix
 			// - don't bundle all fixes, later fixes need earlier ones to already be completed to be consistent
 			//   (otherwise referencing already-deleted nodes and such)
-			UndoRedoHandler.getInstance().add(fixDuplicateNodeCommand);
+			executeCommand(fixDuplicateNodeCommand);
 		}
 	}
 
+	/** Search box around the OSM way, slightly enlarged to also catch nodes just outside of it */
+	private BBox getDuplicateNodeSearchBox() {
+		BBox wayBox = this.osmWay.getBBox();
+		return new BBox(
+			wayBox.getTopLeftLon() - DUPLICATE_NODE_SEARCH_BUFFER_DEGREES,
+			wayBox.getBottomRightLat() - DUPLICATE_NODE_SEARCH_BUFFER_DEGREES,
+			wayBox.getBottomRightLon() + DUPLICATE_NODE_SEARCH_BUFFER_DEGREES,
+			wayBox.getTopLeftLat() + DUPLICATE_NODE_SEARCH_BUFFER_DEGREES
+		);
+	}
+
 	/**
-	 * Run the validator on the changed OSM Way
-	 * - Means errors/warnings show up directly, instead of only when uploading (when you might have moved along to other buildings already)
+	 * Execute a command
+	 * - Bundled with the other changes of the building, see finishCommand()
 	 */
-	private void runValidation() {
-		// Initialize the validator
-		OsmValidator.initializeTests();
+	private void executeCommand(Command command) {
+		this.command.executeAndAdd(command);
+	}
 
-		// Get the enabled tests
-		Collection<Test> tests = OsmValidator.getEnabledTests(false);
-		if (tests.isEmpty()) {
+	/**
+	 * Make the bundled changes undoable as one step
+	 * - Single updates add it to the undo/redo stack directly
+	 * - Batch updates bundle it again, to be able to undo the whole batch at once
+	 */
+	private void finishCommand() {
+		if (command == null || command.isEmpty()) {
 			return;
 		}
 
-		// Get all primitives based on the OSM way (limits errors/warnings to only the updated/created building)
-		AggregatePrimitivesVisitor primitivesVisitor = new AggregatePrimitivesVisitor();
-		Collection<OsmPrimitive> selection = primitivesVisitor.visit(Arrays.asList(this.osmWay));
+		if (batchUpdate == null) {
+			// The bundled commands have been executed already, see BagUpdateCommand.executeAndAdd()
+			UndoRedoHandler.getInstance().add(command, false);
+		} else {
+			batchUpdate.getCommand().addExecuted(command);
+		}
+	}
 
-		// Run the validator on the OSM way
-		MainApplication.worker.submit(new ValidationTask(tests, selection, null));
+	/**
+	 * Run the validator on the changed OSM Way
+	 * - Batch updates validate all updated ways at once when done
+	 */
+	private void runValidation() {
+		if (batchUpdate == null) {
+			validationScheduler.schedule(Collections.singletonList(this.osmWay));
+		} else {
+			batchUpdate.addUpdatedWay(this.osmWay);
+		}
 	}
 
-	/** If there are notes on the building, let the user confirm before doing updates */
+	/**
+	 * If there are notes on the building, let the user confirm before doing updates
+	 * - Called outside of the DataSet update, background planning can read the data while the dialog is open
+	 */
 	private boolean confirmBuildingNotes() {
-		// Test out dialog to confirm
-		Map<String, String> noteTags = new HashMap<>();
-		for (String noteTag : Arrays.asList("note", "note:bag", "fixme")) {
-			if (!osmWay.hasTag(noteTag)) {
-				continue;
-			}
-
-			String note = osmWay.get(noteTag);
-			if (note == null || note.isEmpty()) {
-				continue;
-			}
-
-			noteTags.put(noteTag, note);
-		}
+		// Warn tags of the TagPolicy (note, note:bag and fixme by default)
+		Map<String, String> noteTags = TagPolicy.getConfigured().getWarnings(osmWay.getKeys());
 		if (noteTags.isEmpty()) {
 			// No notes to worry about
 			return true;
 		}
 
-		debug("Constructing note dialog");
+		// Batch updates should not block on a dialog for every building, review them afterwards instead
+		// - without a display there is no way to confirm, so leave those for a review as well
+		if (batchUpdate != null || GraphicsEnvironment.isHeadless()) {
+			if (batchUpdate != null) {
+				batchUpdate.queueForReview(osmWay);
+			}
+			outcome = Outcome.NEEDS_REVIEW;
+			return false;
+		}
+
+		trace("Constructing note dialog");
 		NoteConfirmationDialog dialog = new NoteConfirmationDialog(noteTags);
 		dialog.setVisible(true);
 		if (dialog.isCanceled()) {
 			resultSummary.failed(tr("Building update canceled because of notes"));
 			return false;
 		}
-		debug("dialog result: " + dialog.isCanceled());
-		return !dialog.isCanceled();
+		trace("dialog canceled: {0}", dialog.isCanceled());
+
+		// Other changes could be done while the dialog was open
+		if (!isPlanCurrent()) {
+			resultSummary.failed(tr("Data changed while confirming the notes, try again"));
+			return false;
+		}
+		return true;
 	}
 
-	private static void printNodePairs(Map<Node, Node> fromTo) {
-		if (!BagQuickPlugin.DEBUG) {
+	private static void printNodePairs(NodeMatcher.Result matching) {
+		if (!BagTrace.isEnabled()) {
 			return;
 		}
 
-		debug("Resulting node pairs:");
-		for (Map.Entry<Node, Node> entry : fromTo.entrySet()) {
-			debug("    Pair:");
-			Node bagNode = entry.getValue();
-			debug("        BAG node: {0} {1}", bagNode.get("name"), bagNode.getCoor());
-			Node osmNode = entry.getKey();
-			debug("        OSM node: {0} {1}", osmNode.get("name"), osmNode.getCoor());
-			debug("        distance: {0} m", bagNode.getCoor().greatCircleDistance(osmNode.getCoor()));
+		trace("Resulting node pairs:");
+		for (int bagIndex = 0; bagIndex < matching.getBagNodeCount(); bagIndex++) {
+			Node bagNode = matching.getBagNode(bagIndex);
+			Node osmNode = matching.getMatchedOsmNode(bagIndex);
+			if (osmNode == null) {
+				trace("    Leftover BAG node: {0} {1}", bagNode.get("name"), bagNode.getCoor());
+				continue;
+			}
+			trace("    Pair:");
+			trace("        BAG node: {0} {1}", bagNode.get("name"), bagNode.getCoor());
+			trace("        OSM node: {0} {1}", osmNode.get("name"), osmNode.getCoor());
+			trace("        distance: {0} m", matching.getDistance(bagIndex));
+		}
+		for (int osmIndex = 0; osmIndex < matching.getOsmNodeCount(); osmIndex++) {
+			if (!matching.isOsmMatched(osmIndex)) {
+				Node osmNode = matching.getOsmNode(osmIndex);
+				trace("    Leftover OSM node: {0} {1}", osmNode.get("name"), osmNode.getCoor());
+			}
 		}
 	}
 
+	/**
+	 * Get the nodes of the resulting way
+	 * @param newNodes Filled with the new nodes of the plan, that still need to be added to the DataSet
+	 */
+	private List<Node> getResultNodes(List<Node> newNodes) {
+		Node[] nodes = new Node[plan.getResultNodeCount()];
+		for (int resultIndex = 0; resultIndex < nodes.length; resultIndex++) {
+			Node node = plan.getExistingNode(resultIndex);
+			if (node == null) {
+				// Create a new Node, an additional one is required
+				node = new Node(plan.getTargetCoor(resultIndex));
+				newNodes.add(node);
+			}
+			nodes[resultIndex] = node;
+		}
+
+		// Positions that refer to the same node get the same result node (important for connecting the first and last Node together)
+		List<Node> result = new ArrayList<>(plan.getWayLength());
+		for (int position = 0; position < plan.getWayLength(); position++) {
+			result.add(nodes[plan.getWayIndex(position)]);
+		}
+		return result;
+	}
+
 	/**
 	 * Create the given Way in the OSM layer
 	 */
 	private boolean createNewBuilding() {
-		debug("Creating a new BAG way");
-		String bagRef = this.bagWay.get("ref:bag");
-		Collection<Command> wayAndNodesCommands = new LinkedList<>();
+		trace("Creating a new BAG way");
 
 		// Add all nodes to the Way based on the source coordinates
+		List<Node> newNodes = new ArrayList<>();
 		Way osmWay = new Way();
-		int nodeIndex = 0;
-		for (Node bagNode : this.bagWay.getNodes()) {
-			// Detect last node: add the first Node again to close the Way
-			// (prevent creating a duplicate node for the last one in the same spot as the first one)
-			if (nodeIndex == this.bagWay.getNodesCount() - 1) {
-				osmWay.addNode(osmWay.firstNode());
-				break;
-			}
-
-			Node osmNode = new Node();
-			osmNode.setCoor(bagNode.getCoor());
-			osmWay.addNode(osmNode);
-			wayAndNodesCommands.add(new AddCommand(osmDataSet, osmNode));
-
-			nodeIndex++;
-		}
+		osmWay.setNodes(getResultNodes(newNodes));
+		executeCommand(new AddNodesCommand(osmDataSet, newNodes));
 
 		// Add the way itself
-		wayAndNodesCommands.add(new AddCommand(osmDataSet, osmWay));
-
-		// Execute adding way+nodes
-		Command wayAndNodesCommand = SequenceCommand.wrapIfNeeded(tr("Create new BAG building: way+nodes: {0}", bagRef), wayAndNodesCommands);
-		UndoRedoHandler.getInstance().add(wayAndNodesCommand);
+		executeCommand(new AddCommand(osmDataSet, osmWay));
 
 		// Select the new OSM way
-		osmDataSet.setSelected(osmWay);
+		this.osmWay = osmWay;
+		if (batchUpdate == null) {
+			osmDataSet.setSelected(osmWay);
+		}
 
 		resultSummary.addNote(tr("New BAG building imported with {0} nodes", bagWay.getNodesCount()));
 
 		// Apply all tags of the BAG way to the OSM way (at least building/ref:bag/source/source:date/start_date)
-		Collection<Command> tagsCommands = new LinkedList<>();
-		for (Map.Entry<String, String> bagTagEntry : this.bagWay.getKeys().entrySet()) {
-			// Ignore tags prefixed with |ODS, those are only meant as background information
-			if (bagTagEntry.getKey().startsWith("|ODS")) {
-				continue;
+		Map<String, String> tagChanges = plan.getTagChanges();
+		if (!tagChanges.isEmpty()) {
+			trace("    adding tags {0}", tagChanges);
+			List<String> described = new ArrayList<>(tagChanges.size());
+			for (Map.Entry<String, String> tagChange : tagChanges.entrySet()) {
+				described.add(tagChange.getKey() + "=" + tagChange.getValue());
 			}
-
-			debug("    adding tag {0}={1}", bagTagEntry.getKey(), bagTagEntry.getValue());
-			resultSummary.addNote(tr("{0}={1} added", bagTagEntry.getKey(), bagTagEntry.getValue()));
-			tagsCommands.add(new ChangePropertyCommand(osmWay, bagTagEntry.getKey(), bagTagEntry.getValue()));
+			resultSummary.addNote(tr("Tags added: {0}", String.join(", ", described)));
+			executeCommand(new ChangePropertyCommand(Collections.singletonList(osmWay), tagChanges));
 		}
-
-		// Execute the changes
-		Command tagsCommand = SequenceCommand.wrapIfNeeded(tr("Create new BAG building: add tags: {0}", bagRef), tagsCommands);
-		UndoRedoHandler.getInstance().add(tagsCommand);
-
-		// Validate results
-		fixDuplicateNodes();
-		runValidation();
-
-		// Notify about the result
+		outcome = Outcome.CREATED;
 		return true;
 	}
-
-	/**
-	 * Compute update for a tag
-	 * @return null when the BAG does not contain the tag, or the target already contains the same value, otherwise a command to add/update it
-	 */
-	private Command computeTagUpdate(String tag) {
-		// Check if the tag is present
-		if (!bagWay.hasTag(tag)) {
-			return null;
-		}
-
-		// Check if the value makes sense
-		String bagTagValue = bagWay.get(tag);
-		if (bagTagValue == null || bagTagValue.isEmpty()) {
-			return null;
-		}
-
-		// Check the target value
-		String osmTagValue = osmWay.get(tag);
-		if (bagTagValue.equals(osmTagValue)) {
-			return null;
-		}
-
-		// Apply the tag change
-		if (osmTagValue == null) {
-			resultSummary.addNote(tr("{0}={1} added", tag, bagTagValue));
-		} else {
-			resultSummary.addNote(tr("{0}={1}, previously {2}", tag, bagTagValue, osmTagValue));
-		}
-		return new ChangePropertyCommand(osmWay, tag, bagTagValue);
-	}
-
-	/** Search box around the clicked point */
-	private BBox getSearchBox() {
-		int snapDistance = 100;
-		return new BBox(
-			this.mapView.getLatLon(clickedPoint.x - snapDistance, clickedPoint.y - snapDistance),
-			this.mapView.getLatLon(clickedPoint.x + snapDistance, clickedPoint.y + snapDistance)
-		);
-	}
-
-	private void printWayList(Collection<Way> ways) {
-		for (Way way : ways) {
-			debug("    way:"+way.getId());
-			debug("        area="+way.isArea());
-			debug("        containsClickedPoint="+way.getBBox().bounds(this.clickedLatLon));
-			debug("        building="+way.get("building"));
-			debug("        ref:bag="+way.get("ref:bag"));
-		}
-	}
 }
@@ -0,0 +1,146 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * Updates of the buildings the mouse hovered over, planned before they are clicked
+ * - Keeps the most recently hovered buildings only (least recently used are dropped)
+ * - Forgets everything when the data of either layer changes, the plans would most likely be planned again anyway
+ * - A click on a hovered building takes its update, so applying it does not have to wait for planning
+ */
+public class HoverPlanCache {
+
+	/** Number of hovered buildings to keep the update of */
+	private static final int MAX_ENTRIES = 8;
+
+	private final BagSession session;
+
+	// Any relevant change of either layer forgets everything
+	private final WayChangeListener.Handler changeHandler = new WayChangeListener.Handler() {
+		@Override
+		public void reset() {
+			clear();
+		}
+
+		@Override
+		public void afterEvent() {
+			clear();
+		}
+	};
+	private final WayChangeListener bagListener = new WayChangeListener(this, changeHandler);
+	private final WayChangeListener osmListener = new WayChangeListener(this, changeHandler);
+
+	/** DataSet of the BAG ODS layer, null when not bound */
+	private DataSet bagDataSet;
+	/** DataSet of the BAG OSM layer, null when not bound */
+	private DataSet osmDataSet;
+
+	/** Planned updates by BAG way, in order of use */
+	private final Map<Way, PlannedUpdate> updates = new LinkedHashMap<Way, PlannedUpdate>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Way, PlannedUpdate> eldest) {
+			if (size() <= MAX_ENTRIES) {
+				return false;
+			}
+			eldest.getValue().cancel();
+			return true;
+		}
+	};
+
+	public HoverPlanCache(BagSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Bind the cache to the layers
+	 * - Does nothing when already bound to the same data sets
+	 */
+	public synchronized void bind(DataSet bagDataSet, DataSet osmDataSet) {
+		if (this.bagDataSet == bagDataSet && this.osmDataSet == osmDataSet) {
+			return;
+		}
+
+		unbind();
+		this.bagDataSet = bagDataSet;
+		this.osmDataSet = osmDataSet;
+		bagListener.bind(bagDataSet);
+		osmListener.bind(osmDataSet);
+	}
+
+	/** Stop listening to the layers and cancel all updates */
+	public synchronized void unbind() {
+		if (bagDataSet == null) {
+			return;
+		}
+
+		bagListener.unbind();
+		osmListener.unbind();
+		bagDataSet = null;
+		osmDataSet = null;
+		clear();
+	}
+
+	/**
+	 * Start planning the update of the building at a location, unless it is planned already
+	 * - Should be called on the EDT
+	 */
+	public synchronized void hovered(LatLon latLon) {
+		if (bagDataSet == null) {
+			return;
+		}
+
+		Way bagWay = findBagWay(latLon);
+		if (bagWay == null || updates.get(bagWay) != null) {
+			return;
+		}
+
+		BuildingUpdate update = new BuildingUpdate(bagWay, session);
+		if (!update.prepare()) {
+			return;
+		}
+		updates.put(bagWay, PlannedUpdate.start(update));
+		trace("HoverPlanCache planning {0}", bagWay.get("ref:bag"));
+	}
+
+	/**
+	 * Take the update of the building at a clicked location
+	 * - Should be called on the EDT
+	 * @return Update of the building, null when it has not been hovered (or the data changed since)
+	 */
+	public synchronized PlannedUpdate take(LatLon latLon) {
+		if (bagDataSet == null) {
+			return null;
+		}
+
+		Way bagWay = findBagWay(latLon);
+		return bagWay == null ? null : updates.remove(bagWay);
+	}
+
+	/** Cancel and forget all updates */
+	public synchronized void clear() {
+		for (PlannedUpdate update : updates.values()) {
+			update.cancel();
+		}
+		updates.clear();
+	}
+
+	/** BAG way at a location, same as a click would find, null when there is no single building with a ref:bag */
+	private Way findBagWay(LatLon latLon) {
+		List<Way> bagWays = session.getBagBuildingIndex().findAt(latLon.lat(), latLon.lon(), BuildingUpdate.BAG_SEARCH_RADIUS_METERS);
+		if (bagWays.size() != 1) {
+			return null;
+		}
+
+		String bagRef = bagWays.get(0).get("ref:bag");
+		return bagRef == null || bagRef.isEmpty() ? null : bagWays.get(0);
+	}
+
+}
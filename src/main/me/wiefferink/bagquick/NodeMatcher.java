@@ -0,0 +1,481 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches the nodes of a BAG way to the nodes of an OSM way, in a way that moves them as little as possible
+ * - Input is a snapshot of the ways, with the coordinates projected to meters on a plane once
+ * - The matching itself is side-effect free, so it can run on any thread (for example for many buildings in parallel)
+ * - Scratch buffers are reused per thread, so matching does not generate garbage apart from the result
+ */
+public final class NodeMatcher {
+
+	/**
+	 * Maximum time to spend on the optimal matching of a single building
+	 * - When exceeded, the remaining nodes are matched with a simpler algorithm that only matches nodes that are close to each other
+	 * - Buildings with hundreds of nodes only take a couple of milliseconds, so this is just a safety net
+	 */
+	private static final long MAX_ASSIGNMENT_NANOS = 100_000_000L;
+
+	/** Maximum distance existing nodes should be moved around when already tagged with something */
+	static final double MAX_NODE_MOVE_METERS_TAGGED = 0.01;
+
+	/** Maximum distance existing nodes should be moved around when not tagged and not part of other ways */
+	static final double MAX_NODE_MOVE_METERS_UNTAGGED = 5;
+
+	/** Scratch buffers of the current thread, reused for every building */
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	private NodeMatcher() {
+	}
+
+	/**
+	 * Match the nodes of a building
+	 * - Safe to call from any thread, only uses the snapshot in the input
+	 */
+	public static Result match(Input input) {
+		return match(input, MAX_ASSIGNMENT_NANOS);
+	}
+
+	/**
+	 * Match the nodes of a building with a custom time budget for the optimal matching
+	 * - A budget of 0 skips the optimal matching, and only uses the simple method (used by the benchmarks)
+	 */
+	static Result match(Input input, long maxAssignmentNanos) {
+		int[] bagToOsm = new int[input.bagNodes.length];
+		Arrays.fill(bagToOsm, -1);
+		Scratch scratch = SCRATCH.get();
+
+		// Code roughly based on the ReplaceBuilding action, but only looking at pairs that are close enough
+		boolean complete = maxAssignmentNanos > 0 && matchAssignment(input, bagToOsm, scratch, maxAssignmentNanos);
+
+		// Quick backup algorithm for the nodes that have not been done in time
+		if (!complete) {
+			matchNearest(input, bagToOsm, scratch);
+		}
+
+		// Distances of the pairs, used to decide if nodes need to be moved
+		double[] distances = new double[bagToOsm.length];
+		for (int bagIndex = 0; bagIndex < bagToOsm.length; bagIndex++) {
+			if (bagToOsm[bagIndex] != -1) {
+				distances[bagIndex] = input.distance(bagIndex, bagToOsm[bagIndex]);
+			}
+		}
+
+		return new Result(input, bagToOsm, distances, !complete);
+	}
+
+	/**
+	 * Optimal matching, minimizing the total distance nodes are moved
+	 * - Candidate pairs are only the nodes within the maximum move distance, found with a grid lookup
+	 * @return true when complete, false when the time budget ran out
+	 */
+	private static boolean matchAssignment(Input input, int[] bagToOsm, Scratch scratch, long maxAssignmentNanos) {
+		int bagCount = input.bagNodes.length;
+		int osmCount = input.osmNodes.length;
+		if (bagCount == 0 || osmCount == 0) {
+			return true;
+		}
+
+		// Put the OSM nodes in a grid with cells of the maximum move distance
+		// - candidates of a BAG node are then in the 3x3 cells around it
+		double cellSize = MAX_NODE_MOVE_METERS_UNTAGGED;
+		scratch.buildGrid(input, cellSize);
+
+		// Collect the candidate pairs
+		int[] edgeStart = scratch.edgeStart(bagCount + 1);
+		int edgeCount = 0;
+		for (int bagIndex = 0; bagIndex < bagCount; bagIndex++) {
+			edgeStart[bagIndex] = edgeCount;
+			int cellX = (int) Math.floor(input.bagXs[bagIndex] / cellSize);
+			int cellY = (int) Math.floor(input.bagYs[bagIndex] / cellSize);
+			for (int x = cellX - 1; x <= cellX + 1; x++) {
+				for (int y = cellY - 1; y <= cellY + 1; y++) {
+					for (int osmIndex = scratch.firstInCell(x, y); osmIndex != -1; osmIndex = scratch.nextInCell(osmIndex, x, y)) {
+						double distance = input.distance(bagIndex, osmIndex);
+						if (distance >= input.getMaxMoveDistance(osmIndex)) {
+							continue;
+						}
+
+						scratch.addEdge(edgeCount, osmIndex, distance);
+						edgeCount++;
+					}
+				}
+			}
+		}
+		edgeStart[bagCount] = edgeCount;
+
+		SparseAssignment assignment = scratch.assignment;
+		assignment.reset(bagCount, osmCount, edgeStart, scratch.edgeOsm, scratch.edgeCost);
+		System.arraycopy(assignment.solve(maxAssignmentNanos), 0, bagToOsm, 0, bagCount);
+		return !assignment.isBudgetExceeded();
+	}
+
+	/**
+	 * Greedy matching, each BAG node that is not matched yet gets the nearest OSM node that is left
+	 * - Considers all nodes 'tagged' because this algorithm should not move them around much
+	 * - OSM nodes are put in a grid with cells of the maximum distance, so only the 3x3 cells around a BAG node need to be searched
+	 * - Used OSM nodes are skipped, so it also works when all of them have been used already
+	 */
+	private static void matchNearest(Input input, int[] bagToOsm, Scratch scratch) {
+		boolean[] osmUsed = scratch.osmUsed(input.osmNodes.length);
+		for (int osmIndex : bagToOsm) {
+			if (osmIndex != -1) {
+				osmUsed[osmIndex] = true;
+			}
+		}
+
+		double cellSize = MAX_NODE_MOVE_METERS_TAGGED;
+		scratch.buildGrid(input, cellSize);
+		for (int bagIndex = 0; bagIndex < bagToOsm.length; bagIndex++) {
+			if (bagToOsm[bagIndex] != -1) {
+				continue;
+			}
+
+			// Find nearest, only nodes within the required precision count
+			int nearest = -1;
+			double nearestDistance = MAX_NODE_MOVE_METERS_TAGGED;
+			int cellX = (int) Math.floor(input.bagXs[bagIndex] / cellSize);
+			int cellY = (int) Math.floor(input.bagYs[bagIndex] / cellSize);
+			for (int x = cellX - 1; x <= cellX + 1; x++) {
+				for (int y = cellY - 1; y <= cellY + 1; y++) {
+					for (int osmIndex = scratch.firstInCell(x, y); osmIndex != -1; osmIndex = scratch.nextInCell(osmIndex, x, y)) {
+						if (osmUsed[osmIndex]) {
+							continue;
+						}
+
+						double distance = input.distance(bagIndex, osmIndex);
+						if (distance < nearestDistance) {
+							nearestDistance = distance;
+							nearest = osmIndex;
+						}
+					}
+				}
+			}
+
+			if (nearest == -1) {
+				continue;
+			}
+
+			osmUsed[nearest] = true;
+			bagToOsm[bagIndex] = nearest;
+		}
+	}
+
+	/**
+	 * Snapshot of the nodes of a BAG and OSM way
+	 * - Needs to be created on the thread that owns the data (usually the EDT)
+	 * - Coordinates are projected to meters around the first BAG node, accurate to well within a millimeter at building scale
+	 */
+	public static final class Input {
+		private final Way bagWay;
+		private final Way osmWay;
+
+		/** Distinct nodes of the BAG way, in way order (closing node is not repeated) */
+		private final Node[] bagNodes;
+		/** For each position in the BAG way, the index in bagNodes */
+		private final int[] bagWayIndices;
+		/** Distinct nodes of the OSM way, in way order (closing node is not repeated) */
+		private final Node[] osmNodes;
+		/** For each position in the OSM way, the index in osmNodes */
+		private final int[] osmWayIndices;
+
+		// Original coordinates, to detect changes
+		private final double[] bagLats;
+		private final double[] bagLons;
+		private final double[] osmLats;
+		private final double[] osmLons;
+
+		// Projected coordinates in meters
+		private final double[] bagXs;
+		private final double[] bagYs;
+		private final double[] osmXs;
+		private final double[] osmYs;
+
+		/** True for OSM nodes that should only be moved a tiny bit (tagged or part of other ways) */
+		private final boolean[] osmPinned;
+
+		private Input(Way bagWay, Way osmWay) {
+			this.bagWay = bagWay;
+			this.osmWay = osmWay;
+
+			List<Node> bagWayNodes = bagWay.getNodes();
+			this.bagWayIndices = new int[bagWayNodes.size()];
+			this.bagNodes = distinctNodes(bagWayNodes, bagWayIndices);
+			List<Node> osmWayNodes = osmWay.getNodes();
+			this.osmWayIndices = new int[osmWayNodes.size()];
+			this.osmNodes = distinctNodes(osmWayNodes, osmWayIndices);
+
+			PlanarProjection projection = bagNodes.length == 0 ? new PlanarProjection(0, 0) : new PlanarProjection(bagNodes[0].lat(), bagNodes[0].lon());
+
+			this.bagLats = new double[bagNodes.length];
+			this.bagLons = new double[bagNodes.length];
+			this.bagXs = new double[bagNodes.length];
+			this.bagYs = new double[bagNodes.length];
+			for (int i = 0; i < bagNodes.length; i++) {
+				bagLats[i] = bagNodes[i].lat();
+				bagLons[i] = bagNodes[i].lon();
+				bagXs[i] = projection.x(bagLons[i]);
+				bagYs[i] = projection.y(bagLats[i]);
+			}
+
+			this.osmLats = new double[osmNodes.length];
+			this.osmLons = new double[osmNodes.length];
+			this.osmXs = new double[osmNodes.length];
+			this.osmYs = new double[osmNodes.length];
+			this.osmPinned = new boolean[osmNodes.length];
+			for (int i = 0; i < osmNodes.length; i++) {
+				Node osmNode = osmNodes[i];
+				osmLats[i] = osmNode.lat();
+				osmLons[i] = osmNode.lon();
+				osmXs[i] = projection.x(osmLons[i]);
+				osmYs[i] = projection.y(osmLats[i]);
+				// Longer maximum distance when the node has no tags or other parent ways
+				// - idea is to not move around nodes too much
+				osmPinned[i] = osmNode.isTagged() || osmNode.isReferredByWays(2);
+			}
+		}
+
+		/** Take a snapshot of the nodes of a BAG and OSM way */
+		public static Input of(Way bagWay, Way osmWay) {
+			return new Input(bagWay, osmWay);
+		}
+
+		/**
+		 * Get the distinct nodes of a way
+		 * @param wayIndices Filled with the index in the result for each position in the way
+		 */
+		private static Node[] distinctNodes(List<Node> wayNodes, int[] wayIndices) {
+			Map<Node, Integer> indices = new HashMap<>(wayNodes.size() * 2);
+			List<Node> result = new ArrayList<>(wayNodes.size());
+			for (int position = 0; position < wayNodes.size(); position++) {
+				Node node = wayNodes.get(position);
+				Integer index = indices.get(node);
+				if (index == null) {
+					index = result.size();
+					indices.put(node, index);
+					result.add(node);
+				}
+				wayIndices[position] = index;
+			}
+			return result.toArray(new Node[0]);
+		}
+
+		/** Check if the snapshot still matches the current state of the ways */
+		public boolean isCurrent(Way bagWay, Way osmWay) {
+			if (this.bagWay != bagWay || this.osmWay != osmWay) {
+				return false;
+			}
+
+			return isCurrent(bagWay.getNodes(), bagNodes, bagWayIndices, bagLats, bagLons)
+					&& isCurrent(osmWay.getNodes(), osmNodes, osmWayIndices, osmLats, osmLons);
+		}
+
+		private static boolean isCurrent(List<Node> wayNodes, Node[] snapshotNodes, int[] wayIndices, double[] lats, double[] lons) {
+			if (wayNodes.size() != wayIndices.length) {
+				return false;
+			}
+
+			for (int position = 0; position < wayIndices.length; position++) {
+				if (wayNodes.get(position) != snapshotNodes[wayIndices[position]]) {
+					return false;
+				}
+			}
+
+			for (int i = 0; i < snapshotNodes.length; i++) {
+				if (snapshotNodes[i].lat() != lats[i] || snapshotNodes[i].lon() != lons[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/** Distance in meters between a BAG node and an OSM node */
+		private double distance(int bagIndex, int osmIndex) {
+			double dx = bagXs[bagIndex] - osmXs[osmIndex];
+			double dy = bagYs[bagIndex] - osmYs[osmIndex];
+			return Math.sqrt(dx * dx + dy * dy);
+		}
+
+		private double getMaxMoveDistance(int osmIndex) {
+			return osmPinned[osmIndex] ? MAX_NODE_MOVE_METERS_TAGGED : MAX_NODE_MOVE_METERS_UNTAGGED;
+		}
+	}
+
+	/**
+	 * Result of matching the nodes of a building
+	 */
+	public static final class Result {
+		private final Input input;
+		/** Index of the matched OSM node for each BAG node, -1 when not matched */
+		private final int[] bagToOsm;
+		/** Distance in meters between each BAG node and its matched OSM node */
+		private final double[] distances;
+		/** True for each OSM node that has been matched */
+		private final boolean[] osmMatched;
+		/** True when the optimal matching ran out of time, and the simple method has been used for the remaining nodes */
+		private final boolean budgetExceeded;
+
+		private Result(Input input, int[] bagToOsm, double[] distances, boolean budgetExceeded) {
+			this.input = input;
+			this.bagToOsm = bagToOsm;
+			this.distances = distances;
+			this.budgetExceeded = budgetExceeded;
+			this.osmMatched = new boolean[input.osmNodes.length];
+			for (int osmIndex : bagToOsm) {
+				if (osmIndex != -1) {
+					osmMatched[osmIndex] = true;
+				}
+			}
+		}
+
+		public Input getInput() {
+			return input;
+		}
+
+		/** True when the optimal matching ran out of time, and the simple method has been used for the remaining nodes */
+		public boolean isBudgetExceeded() {
+			return budgetExceeded;
+		}
+
+		/** Number of distinct BAG nodes */
+		public int getBagNodeCount() {
+			return input.bagNodes.length;
+		}
+
+		public Node getBagNode(int bagIndex) {
+			return input.bagNodes[bagIndex];
+		}
+
+		/** Get the index of the distinct BAG node for each position in the BAG way */
+		public int[] getBagWayIndices() {
+			return input.bagWayIndices.clone();
+		}
+
+		/** Get the OSM node matched to a BAG node, or null when not matched */
+		public Node getMatchedOsmNode(int bagIndex) {
+			return bagToOsm[bagIndex] == -1 ? null : input.osmNodes[bagToOsm[bagIndex]];
+		}
+
+		/** Distance in meters between a BAG node and its matched OSM node */
+		public double getDistance(int bagIndex) {
+			return distances[bagIndex];
+		}
+
+		/** Number of distinct OSM nodes */
+		public int getOsmNodeCount() {
+			return input.osmNodes.length;
+		}
+
+		public Node getOsmNode(int osmIndex) {
+			return input.osmNodes[osmIndex];
+		}
+
+		/** Check if an OSM node is matched to a BAG node (otherwise it is left over) */
+		public boolean isOsmMatched(int osmIndex) {
+			return osmMatched[osmIndex];
+		}
+	}
+
+	/**
+	 * Buffers used while matching, reused for all buildings matched on the same thread
+	 */
+	private static final class Scratch {
+		private final SparseAssignment assignment = new SparseAssignment();
+
+		// Candidate pairs
+		private int[] edgeStart = new int[64];
+		private int[] edgeOsm = new int[128];
+		private double[] edgeCost = new double[128];
+
+		// Grid of OSM nodes: hash table of cells, with a linked list of the nodes in each cell
+		private int[] cellHeads = new int[128];
+		private int[] cellNext = new int[64];
+		private int[] cellXs = new int[64];
+		private int[] cellYs = new int[64];
+		private int cellMask;
+
+		private boolean[] osmUsed = new boolean[64];
+
+		int[] edgeStart(int size) {
+			if (edgeStart.length < size) {
+				edgeStart = new int[size * 2];
+			}
+			return edgeStart;
+		}
+
+		void addEdge(int index, int osmIndex, double cost) {
+			if (index == edgeOsm.length) {
+				edgeOsm = Arrays.copyOf(edgeOsm, index * 2);
+				edgeCost = Arrays.copyOf(edgeCost, index * 2);
+			}
+			edgeOsm[index] = osmIndex;
+			edgeCost[index] = cost;
+		}
+
+		boolean[] osmUsed(int size) {
+			if (osmUsed.length < size) {
+				osmUsed = new boolean[size * 2];
+			} else {
+				Arrays.fill(osmUsed, 0, size, false);
+			}
+			return osmUsed;
+		}
+
+		/** Put all OSM nodes of the input in the grid */
+		void buildGrid(Input input, double cellSize) {
+			int osmCount = input.osmNodes.length;
+			int tableSize = Integer.highestOneBit(Math.max(osmCount, 8) * 2);
+			if (cellHeads.length < tableSize) {
+				cellHeads = new int[tableSize];
+			}
+			if (cellNext.length < osmCount) {
+				cellNext = new int[osmCount * 2];
+				cellXs = new int[osmCount * 2];
+				cellYs = new int[osmCount * 2];
+			}
+			cellMask = tableSize - 1;
+			Arrays.fill(cellHeads, 0, tableSize, -1);
+
+			for (int osmIndex = 0; osmIndex < osmCount; osmIndex++) {
+				int cellX = (int) Math.floor(input.osmXs[osmIndex] / cellSize);
+				int cellY = (int) Math.floor(input.osmYs[osmIndex] / cellSize);
+				int bucket = bucket(cellX, cellY);
+				cellXs[osmIndex] = cellX;
+				cellYs[osmIndex] = cellY;
+				cellNext[osmIndex] = cellHeads[bucket];
+				cellHeads[bucket] = osmIndex;
+			}
+		}
+
+		/** Get the first OSM node in a cell, or -1 when empty */
+		int firstInCell(int cellX, int cellY) {
+			return skipOtherCells(cellHeads[bucket(cellX, cellY)], cellX, cellY);
+		}
+
+		/** Get the next OSM node in the same cell, or -1 when there are no more */
+		int nextInCell(int osmIndex, int cellX, int cellY) {
+			return skipOtherCells(cellNext[osmIndex], cellX, cellY);
+		}
+
+		/** Skip nodes of other cells that ended up in the same bucket */
+		private int skipOtherCells(int osmIndex, int cellX, int cellY) {
+			while (osmIndex != -1 && (cellXs[osmIndex] != cellX || cellYs[osmIndex] != cellY)) {
+				osmIndex = cellNext[osmIndex];
+			}
+			return osmIndex;
+		}
+
+		private int bucket(int cellX, int cellY) {
+			return (cellX * 73856093 ^ cellY * 19349663) & cellMask;
+		}
+	}
+
+}
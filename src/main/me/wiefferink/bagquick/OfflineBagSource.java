@@ -0,0 +1,512 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+/**
+ * BAG buildings read from a local .osm extract, instead of the BAG ODS layer
+ * - Enabled by setting the preference bag-quick.offline.file to the path of the extract
+ * - The extract is streamed once into a packed index file next to it (.bagidx), with the buildings grouped by tile
+ * - Only the tiles around the clicked location are mapped from the index and turned into ways
+ * - Tiles that have not been used for a while are removed again when more than MAX_LOADED_TILES are loaded
+ * - Those ways live in a DataSet that is not a layer, so they are not painted and the rest of the extract takes no heap
+ * - Updates use the DataSet like the one of the BAG ODS layer, the BAG OSM layer is still needed
+ */
+public class OfflineBagSource {
+
+	/** Preference with the path of the .osm extract, empty to use the BAG ODS layer */
+	public static final String FILE_PREFERENCE = "bag-quick.offline.file";
+
+	/** Size of a tile in degrees (roughly 1100 by 700 meters in The Netherlands) */
+	private static final double TILE_SIZE_DEGREES = 0.01;
+	/** Extension of the index file, added to the name of the extract */
+	private static final String INDEX_EXTENSION = ".bagidx";
+	/** Start of an index file, followed by the format version */
+	private static final int INDEX_MAGIC = 0x42414749;
+	private static final int INDEX_VERSION = 1;
+	/** Coordinates are stored as integers in units of 1e-7 degrees, like the OSM database */
+	private static final double COORDINATE_SCALE = 1e7;
+	/** Number of tiles kept as ways, a view and the tiles around it should fit (64 tiles is roughly 9 by 5 km) */
+	private static final int MAX_LOADED_TILES = 64;
+
+	/** Source of the configured file, null when not configured */
+	private static OfflineBagSource configured;
+
+	private final File osmFile;
+	private final File indexFile;
+	/** Buildings of the loaded tiles */
+	private final DataSet dataSet = new DataSet();
+
+	/** Position of the first building, the number of buildings and the number of bytes by tile key, null until indexing is done */
+	private volatile Map<Long, long[]> tiles;
+	/** Problem while indexing, null when there was none */
+	private volatile String indexingError;
+	/** Ways of the tiles that have been loaded by tile key, least recently used first */
+	private final LinkedHashMap<Long, List<Way>> loadedTiles = new LinkedHashMap<>(16, 0.75f, true);
+
+	private OfflineBagSource(File osmFile) {
+		this.osmFile = osmFile;
+		this.indexFile = new File(osmFile.getPath() + INDEX_EXTENSION);
+		dataSet.setName(tr("BAG offline"));
+	}
+
+	/**
+	 * Get the source of the file configured in the preferences
+	 * - Starts indexing the file in the background the first time, see isReady()
+	 * - Can be called from any thread, updates check the layers on the threads that plan them
+	 * @return Source of the configured file, null when no file is configured (the BAG ODS layer should be used)
+	 */
+	public static synchronized OfflineBagSource getConfigured() {
+		String path = Config.getPref().get(FILE_PREFERENCE, "").trim();
+		if (path.isEmpty()) {
+			configured = null;
+			return null;
+		}
+
+		if (configured == null || !configured.osmFile.getPath().equals(path)) {
+			configured = new OfflineBagSource(new File(path));
+			OfflineBagSource source = configured;
+			MainApplication.worker.submit(source::openIndex);
+		}
+		return configured;
+	}
+
+	/**
+	 * Open a file without the preferences, indexes it on the calling thread
+	 * - Used by the tests, see getConfigured() for the file used by updates
+	 */
+	static OfflineBagSource open(File osmFile) {
+		OfflineBagSource source = new OfflineBagSource(osmFile);
+		source.openIndex();
+		return source;
+	}
+
+	/**
+	 * Load the buildings in an area from the configured file, no-op when no file is configured
+	 * - Should be called on the EDT, not while holding a read lock of the DataSet
+	 */
+	public static void loadConfigured(double minLat, double minLon, double maxLat, double maxLon) {
+		OfflineBagSource source = getConfigured();
+		if (source != null && source.isReady()) {
+			source.load(minLat, minLon, maxLat, maxLon);
+		}
+	}
+
+	/** DataSet with the buildings of the loaded tiles, used instead of the DataSet of the BAG ODS layer */
+	public DataSet getDataSet() {
+		return dataSet;
+	}
+
+	/** Check if the index can be used */
+	public boolean isReady() {
+		return tiles != null;
+	}
+
+	/** Problem that prevents using the file, null when there is none (can still be indexing) */
+	public String getIndexingError() {
+		return indexingError;
+	}
+
+	public File getFile() {
+		return osmFile;
+	}
+
+	/**
+	 * Turn the buildings in an area into ways in the DataSet
+	 * - Loads whole tiles, and the tiles around them to include buildings that stick out of their tile
+	 * - Removes the least recently used tiles outside of the area when more than MAX_LOADED_TILES are loaded
+	 * - Should be called on the EDT, not while holding a read lock of the DataSet
+	 */
+	public synchronized void load(double minLat, double minLon, double maxLat, double maxLon) {
+		if (!isReady()) {
+			return;
+		}
+
+		long minLatTile = tileIndex(minLat) - 1;
+		long maxLatTile = tileIndex(maxLat) + 1;
+		long minLonTile = tileIndex(minLon) - 1;
+		long maxLonTile = tileIndex(maxLon) + 1;
+		Set<Long> inArea = new HashSet<>();
+		List<Long> toLoad = new ArrayList<>();
+		for (long latTile = minLatTile; latTile <= maxLatTile; latTile++) {
+			for (long lonTile = minLonTile; lonTile <= maxLonTile; lonTile++) {
+				long key = tileKey(latTile, lonTile);
+				inArea.add(key);
+				// Also marks the tile as recently used
+				if (loadedTiles.get(key) == null) {
+					toLoad.add(key);
+				}
+			}
+		}
+		if (toLoad.isEmpty() && loadedTiles.size() <= MAX_LOADED_TILES) {
+			return;
+		}
+
+		int loaded = 0;
+		int removed = 0;
+		dataSet.beginUpdate();
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+			for (Long key : toLoad) {
+				long[] tile = tiles.get(key);
+				List<Way> ways = tile == null ? new ArrayList<>(0) : readTile(channel, tile[0], (int) tile[1], tile[2]);
+				loadedTiles.put(key, ways);
+				loaded += ways.size();
+			}
+
+			Iterator<Map.Entry<Long, List<Way>>> leastRecentlyUsed = loadedTiles.entrySet().iterator();
+			while (loadedTiles.size() > MAX_LOADED_TILES && leastRecentlyUsed.hasNext()) {
+				Map.Entry<Long, List<Way>> tile = leastRecentlyUsed.next();
+				if (inArea.contains(tile.getKey())) {
+					continue;
+				}
+				for (Way way : tile.getValue()) {
+					removeBuilding(way);
+				}
+				removed += tile.getValue().size();
+				leastRecentlyUsed.remove();
+			}
+		} catch (IOException e) {
+			Logging.warn("Failed to read the offline BAG index {0}", indexFile);
+			Logging.warn(e);
+		} finally {
+			dataSet.endUpdate();
+		}
+		trace("OfflineBagSource loaded {0} tiles with {1} buildings, removed {2} buildings", toLoad.size(), loaded, removed);
+	}
+
+	/** Remove a building and its nodes, the nodes are not shared with other buildings */
+	private void removeBuilding(Way way) {
+		List<Node> nodes = way.getNodes();
+		dataSet.removePrimitive(way);
+		for (Node node : new HashSet<>(nodes)) {
+			dataSet.removePrimitive(node);
+		}
+	}
+
+	/**
+	 * Turn the buildings of a tile into ways
+	 * - Maps only the bytes of the tile, a single mapping can not be larger than 2 GB
+	 */
+	private List<Way> readTile(FileChannel channel, long position, int count, long size) throws IOException {
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		List<Way> result = new ArrayList<>(count);
+		for (int building = 0; building < count; building++) {
+			int nodeCount = buffer.getInt();
+			List<Node> nodes = new ArrayList<>(nodeCount + 1);
+			for (int node = 0; node < nodeCount; node++) {
+				double lat = buffer.getInt() / COORDINATE_SCALE;
+				double lon = buffer.getInt() / COORDINATE_SCALE;
+				Node newNode = new Node(new LatLon(lat, lon));
+				dataSet.addPrimitive(newNode);
+				nodes.add(newNode);
+			}
+			nodes.add(nodes.get(0));
+
+			Map<String, String> tags = new LinkedHashMap<>();
+			int tagCount = buffer.getShort();
+			for (int tag = 0; tag < tagCount; tag++) {
+				tags.put(readString(buffer), readString(buffer));
+			}
+
+			Way way = new Way();
+			way.setNodes(nodes);
+			way.setKeys(tags);
+			dataSet.addPrimitive(way);
+			result.add(way);
+		}
+		return result;
+	}
+
+	/** Use the index file, create it first when it is missing or older than the extract */
+	private void openIndex() {
+		try {
+			if (!osmFile.isFile()) {
+				indexingError = tr("Offline BAG file {0} does not exist", osmFile.getPath());
+				return;
+			}
+			if (!indexFile.isFile() || indexFile.lastModified() < osmFile.lastModified()) {
+				long start = System.nanoTime();
+				writeIndex(osmFile, indexFile);
+				Logging.info("Indexed the offline BAG file {0} in {1} ms", osmFile, (System.nanoTime() - start) / 1_000_000);
+			}
+
+			// Only the header and the tile table, the tiles are mapped when they are loaded
+			MappedByteBuffer buffer;
+			long fileSize;
+			try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+				fileSize = channel.size();
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, 12));
+				if (buffer.remaining() == 12 && buffer.getInt() == INDEX_MAGIC && buffer.getInt() == INDEX_VERSION) {
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, 8, Math.min(fileSize - 8, 4 + buffer.getInt() * 20L));
+				} else {
+					buffer = null;
+				}
+			}
+			if (buffer == null) {
+				// Written by another version, index again
+				if (!indexFile.delete()) {
+					indexingError = tr("Could not replace the offline BAG index {0}", indexFile.getPath());
+					return;
+				}
+				openIndex();
+				return;
+			}
+
+			// Tiles are written in the order of the table, a tile ends where the next one starts
+			int tileCount = buffer.getInt();
+			Map<Long, long[]> result = new HashMap<>(tileCount * 2);
+			long[] previous = null;
+			for (int tile = 0; tile < tileCount; tile++) {
+				long[] current = {0, 0, 0};
+				result.put(buffer.getLong(), current);
+				current[0] = buffer.getLong();
+				current[1] = buffer.getInt();
+				if (previous != null) {
+					previous[2] = current[0] - previous[0];
+				}
+				previous = current;
+			}
+			if (previous != null) {
+				previous[2] = fileSize - previous[0];
+			}
+			tiles = result;
+			trace("OfflineBagSource opened {0} with {1} tiles", indexFile, tileCount);
+		} catch (IOException | XMLStreamException | RuntimeException e) {
+			indexingError = tr("Could not read the offline BAG file {0}: {1}", osmFile.getPath(), e.getMessage());
+			Logging.warn("Failed to index the offline BAG file {0}", osmFile);
+			Logging.warn(e);
+		}
+	}
+
+	/**
+	 * Stream the buildings of an .osm file into an index file
+	 * - Keeps the node coordinates as packed arrays, and the buildings as bytes grouped by tile
+	 * - Only closed ways with building and ref:bag tags are included
+	 */
+	static void writeIndex(File osmFile, File indexFile) throws IOException, XMLStreamException {
+		NodeCoordinates coordinates = new NodeCoordinates();
+		Map<Long, TileWriter> tileWriters = new TreeMap<>();
+
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		try (InputStream input = new BufferedInputStream(new FileInputStream(osmFile))) {
+			XMLStreamReader reader = factory.createXMLStreamReader(input);
+			List<Long> wayNodes = new ArrayList<>();
+			Map<String, String> wayTags = new LinkedHashMap<>();
+			boolean inWay = false;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					switch (reader.getLocalName()) {
+						case "node":
+							String lat = reader.getAttributeValue(null, "lat");
+							String lon = reader.getAttributeValue(null, "lon");
+							if (lat != null && lon != null) {
+								coordinates.add(Long.parseLong(reader.getAttributeValue(null, "id")), Double.parseDouble(lat), Double.parseDouble(lon));
+							}
+							break;
+						case "way":
+							inWay = true;
+							wayNodes.clear();
+							wayTags.clear();
+							break;
+						case "nd":
+							if (inWay) {
+								wayNodes.add(Long.parseLong(reader.getAttributeValue(null, "ref")));
+							}
+							break;
+						case "tag":
+							if (inWay) {
+								wayTags.put(reader.getAttributeValue(null, "k"), reader.getAttributeValue(null, "v"));
+							}
+							break;
+						default:
+							break;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && inWay && reader.getLocalName().equals("way")) {
+					inWay = false;
+					addBuilding(wayNodes, wayTags, coordinates, tileWriters);
+				}
+			}
+			reader.close();
+		}
+
+		// Header, tile table and then the buildings of each tile
+		File temporaryFile = new File(indexFile.getPath() + ".tmp");
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+			output.writeInt(INDEX_MAGIC);
+			output.writeInt(INDEX_VERSION);
+			output.writeInt(tileWriters.size());
+			long position = 12 + tileWriters.size() * 20L;
+			for (Map.Entry<Long, TileWriter> tile : tileWriters.entrySet()) {
+				output.writeLong(tile.getKey());
+				output.writeLong(position);
+				output.writeInt(tile.getValue().count);
+				position += tile.getValue().bytes.size();
+			}
+			for (TileWriter tileWriter : tileWriters.values()) {
+				tileWriter.bytes.writeTo(output);
+			}
+		}
+		if (indexFile.exists() && !indexFile.delete() || !temporaryFile.renameTo(indexFile)) {
+			throw new IOException("Could not write " + indexFile);
+		}
+	}
+
+	/** Write a building to the tile of the center of its bounding box */
+	private static void addBuilding(List<Long> wayNodes, Map<String, String> tags, NodeCoordinates coordinates, Map<Long, TileWriter> tileWriters) throws IOException {
+		String bagRef = tags.get("ref:bag");
+		if (!tags.containsKey("building") || bagRef == null || bagRef.isEmpty()
+				|| wayNodes.size() < 4 || !wayNodes.get(0).equals(wayNodes.get(wayNodes.size() - 1))) {
+			return;
+		}
+
+		// Closing node is not stored, it is the first node again
+		int nodeCount = wayNodes.size() - 1;
+		int[] lats = new int[nodeCount];
+		int[] lons = new int[nodeCount];
+		int minLat = Integer.MAX_VALUE;
+		int minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE;
+		int maxLon = Integer.MIN_VALUE;
+		for (int node = 0; node < nodeCount; node++) {
+			long packed = coordinates.get(wayNodes.get(node));
+			if (packed == NodeCoordinates.MISSING) {
+				// Incomplete extract
+				return;
+			}
+			lats[node] = (int) (packed >> 32);
+			lons[node] = (int) packed;
+			minLat = Math.min(minLat, lats[node]);
+			minLon = Math.min(minLon, lons[node]);
+			maxLat = Math.max(maxLat, lats[node]);
+			maxLon = Math.max(maxLon, lons[node]);
+		}
+
+		long key = tileKey(tileIndex((minLat + (double) maxLat) / 2 / COORDINATE_SCALE), tileIndex((minLon + (double) maxLon) / 2 / COORDINATE_SCALE));
+		TileWriter tileWriter = tileWriters.computeIfAbsent(key, k -> new TileWriter());
+		DataOutputStream output = tileWriter.output;
+		output.writeInt(nodeCount);
+		for (int node = 0; node < nodeCount; node++) {
+			output.writeInt(lats[node]);
+			output.writeInt(lons[node]);
+		}
+		output.writeShort(tags.size());
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			writeString(output, tag.getKey());
+			writeString(output, tag.getValue());
+		}
+		tileWriter.count++;
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeShort(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static long tileIndex(double coordinate) {
+		return (long) Math.floor(coordinate / TILE_SIZE_DEGREES);
+	}
+
+	private static long tileKey(long latTile, long lonTile) {
+		return (latTile << 32) | (lonTile & 0xFFFFFFFFL);
+	}
+
+	/** Buildings of a tile while indexing */
+	private static final class TileWriter {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream output = new DataOutputStream(bytes);
+		private int count = 0;
+	}
+
+	/**
+	 * Coordinates of the nodes while indexing, packed into arrays
+	 * - Extracts list the nodes ordered by id, those are found with a binary search
+	 * - Falls back to a map for extracts that are not ordered
+	 */
+	private static final class NodeCoordinates {
+		private static final long MISSING = Long.MIN_VALUE;
+
+		private long[] ids = new long[1024];
+		/** Latitude and longitude in units of 1e-7 degrees, packed as high and low int */
+		private long[] coordinates = new long[1024];
+		private int size = 0;
+		private boolean sorted = true;
+		private Map<Long, Long> unsorted;
+
+		private void add(long id, double lat, double lon) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				coordinates = Arrays.copyOf(coordinates, size * 2);
+			}
+			if (size > 0 && ids[size - 1] >= id) {
+				sorted = false;
+			}
+			ids[size] = id;
+			coordinates[size] = ((long) Math.round(lat * COORDINATE_SCALE) << 32) | (Math.round(lon * COORDINATE_SCALE) & 0xFFFFFFFFL);
+			size++;
+		}
+
+		/** Packed coordinates of a node, MISSING when not in the extract */
+		private long get(long id) {
+			if (sorted) {
+				int index = Arrays.binarySearch(ids, 0, size, id);
+				return index < 0 ? MISSING : coordinates[index];
+			}
+
+			if (unsorted == null) {
+				unsorted = new HashMap<>(size * 2);
+				for (int index = 0; index < size; index++) {
+					unsorted.put(ids[index], coordinates[index]);
+				}
+			}
+			Long result = unsorted.get(id);
+			return result == null ? MISSING : result;
+		}
+	}
+
+}
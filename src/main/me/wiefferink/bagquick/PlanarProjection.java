@@ -0,0 +1,49 @@
+package me.wiefferink.bagquick;
+
+/**
+ * Simple local projection of lat/lon coordinates to meters on a flat plane
+ * - Accurate enough at the scale of a building or neighbourhood, and a lot cheaper than great circle distances
+ */
+public final class PlanarProjection {
+
+	/** Radius of the earth, same as used by LatLon.greatCircleDistance() */
+	public static final double EARTH_RADIUS_METERS = 6378137;
+
+	/** Number of meters in 1 degree of latitude (or longitude at the equator) */
+	private static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180;
+
+	private final double originLat;
+	private final double originLon;
+	private final double metersPerDegreeLon;
+
+	/**
+	 * Create a projection around an origin
+	 * - Use a point close to the coordinates that will be projected, the error grows with the distance to the origin
+	 */
+	public PlanarProjection(double originLat, double originLon) {
+		this.originLat = originLat;
+		this.originLon = originLon;
+		this.metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(originLat));
+	}
+
+	/** Get the x coordinate in meters (east of the origin) */
+	public double x(double lon) {
+		return (lon - originLon) * metersPerDegreeLon;
+	}
+
+	/** Get the y coordinate in meters (north of the origin) */
+	public double y(double lat) {
+		return (lat - originLat) * METERS_PER_DEGREE;
+	}
+
+	/** Convert a distance in meters to degrees of latitude */
+	public static double metersToDegreesLat(double meters) {
+		return meters / METERS_PER_DEGREE;
+	}
+
+	/** Convert a distance in meters to degrees of longitude at a certain latitude */
+	public static double metersToDegreesLon(double meters, double lat) {
+		return meters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+	}
+
+}
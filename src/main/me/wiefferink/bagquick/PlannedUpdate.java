@@ -0,0 +1,80 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.swing.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * BuildingUpdate that is being planned in the background
+ * - Used for clicks, and for updates that are planned before they are needed (see WorkQueue and HoverPlanCache)
+ * - Apply the update on the EDT once planning is done
+ */
+public final class PlannedUpdate {
+
+	private final BuildingUpdate update;
+	/** Completes with the update when planning is done (also when planning failed, applying reports the problem), exceptionally for Errors only */
+	private final CompletableFuture<BuildingUpdate> planned;
+
+	private PlannedUpdate(BuildingUpdate update, CompletableFuture<BuildingUpdate> planned) {
+		this.update = update;
+		this.planned = planned;
+	}
+
+	/**
+	 * Start planning an update in the background
+	 * @param update Update that has been prepared on the EDT already
+	 */
+	public static PlannedUpdate start(BuildingUpdate update) {
+		return new PlannedUpdate(update, CompletableFuture.supplyAsync(() -> {
+			try {
+				if (!update.isCanceled()) {
+					update.plan();
+				}
+			} catch (Exception exception) {
+				// Gets planned again while applying, which reports the problem when it happens again
+				Logging.warn("Failed to plan a BAG update in the background");
+				Logging.warn(exception);
+			}
+			return update;
+		}));
+	}
+
+	public BuildingUpdate getUpdate() {
+		return update;
+	}
+
+	/**
+	 * Apply the update on the EDT once planning is done
+	 * - Applies directly when planning is done already, should be called on the EDT then
+	 * - Also applies when planning threw an Error, applying plans again and reports what goes wrong
+	 * @param applier Applies the update, not called when the update has been canceled
+	 */
+	public void whenPlanned(Consumer<BuildingUpdate> applier) {
+		if (planned.isDone()) {
+			if (!update.isCanceled()) {
+				applier.accept(update);
+			}
+			return;
+		}
+
+		planned.whenComplete((plannedUpdate, throwable) -> {
+			if (throwable != null) {
+				Logging.warn("Failed to plan a BAG update in the background");
+				Logging.warn(throwable);
+			}
+			SwingUtilities.invokeLater(() -> {
+				if (!update.isCanceled()) {
+					applier.accept(update);
+				}
+			});
+		});
+	}
+
+	/** The result is not wanted anymore, planning and applying do not do anything anymore */
+	public void cancel() {
+		update.cancel();
+	}
+
+}
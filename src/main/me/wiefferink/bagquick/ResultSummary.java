@@ -19,6 +19,8 @@ public class ResultSummary {
 	private static SoftReference<Notification> lastNotificationRef = null;
 
 	private boolean hasFailed = false;
+	/** Reason of the failure, shown instead of the notes/warnings */
+	private String failedMessage = null;
 	/** Notes about the result, indicates what has changed */
 	private final List<String> notes = new LinkedList<>();
 	/** Warnings about rough edges in the result */
@@ -34,12 +36,20 @@ public class ResultSummary {
 
 	public void failed(String message) {
 		this.hasFailed = true;
-		notification(message, JOptionPane.ERROR_MESSAGE);
+		this.failedMessage = message;
+	}
+
+	public boolean hasFailed() {
+		return hasFailed;
+	}
+
+	public String getFailedMessage() {
+		return failedMessage;
 	}
 
 	public void sendNotification() {
 		if (hasFailed) {
-			// Already failed and done
+			notification(failedMessage, JOptionPane.ERROR_MESSAGE);
 			return;
 		}
 
@@ -87,7 +97,7 @@ public class ResultSummary {
 	}
 
 	private void notification(String message, int messageType) {
-		BagQuickPlugin.debug("notification: "+message.replace("<br />", "\n"));
+		BagTrace.trace("notification: {0}", message);
 		Notification notification = new Notification("<strong>" + tr("Bag Quick") + "</strong><br />" + message)
 				.setIcon(messageType)
 				.setDuration(Notification.TIME_LONG);
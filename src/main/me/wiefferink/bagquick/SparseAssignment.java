@@ -0,0 +1,277 @@
+package me.wiefferink.bagquick;
+
+import java.util.Arrays;
+
+/**
+ * Minimum cost assignment between two sets, only considering a sparse set of candidate pairs
+ * - Finds the largest possible number of pairs, and among those the pairs with the lowest total cost
+ *   (same result as a dense assignment that uses an 'infinite' cost for pairs that are not a candidate)
+ * - Successive shortest paths with Dijkstra and potentials, so only the candidate pairs are looked at
+ * - Never throws, and stops adding pairs when the time budget runs out (the pairs found so far are still valid)
+ * - Can be reused for multiple problems with reset(), buffers are only reallocated when they are too small
+ */
+final class SparseAssignment {
+
+	private int leftCount;
+	private int rightCount;
+
+	// Candidate pairs, grouped by left index: pairs of left index i are at edgeStart[i] until edgeStart[i + 1]
+	private int[] edgeStart;
+	private int[] edgeRight;
+	private double[] edgeCost;
+
+	// Current assignment
+	private int[] leftToRight = new int[0];
+	private int[] rightToLeft = new int[0];
+	/** Cost of the pair the left index is assigned to */
+	private double[] leftCost = new double[0];
+
+	// Dijkstra state, nodes 0 until leftCount are left, then the right nodes (leftCount + right index), then the sink
+	private int sink;
+	private int nodeCount;
+	private double[] potential = new double[0];
+	private double[] distance = new double[0];
+	private boolean[] done = new boolean[0];
+	/** For right nodes: left index the shortest path came from, for the sink: the right index */
+	private int[] previousLeft = new int[0];
+	/** For right nodes: cost of the pair the shortest path came through */
+	private double[] previousCost = new double[0];
+	private final MinHeap heap = new MinHeap(64);
+
+	/** True when the time budget ran out before the assignment was complete */
+	private boolean budgetExceeded = false;
+
+	/**
+	 * Create an assignment problem, call reset() before solving
+	 */
+	SparseAssignment() {
+	}
+
+	/**
+	 * Start a new problem, reusing the buffers of the previous one
+	 * - The arrays are used directly, not copied, and may be larger than needed
+	 * @param leftCount Number of items in the left set
+	 * @param rightCount Number of items in the right set
+	 * @param edgeStart Index into edgeRight/edgeCost where the candidates of each left item start, at least leftCount + 1
+	 * @param edgeRight Right index of each candidate pair
+	 * @param edgeCost Cost of each candidate pair, should not be negative
+	 */
+	void reset(int leftCount, int rightCount, int[] edgeStart, int[] edgeRight, double[] edgeCost) {
+		this.leftCount = leftCount;
+		this.rightCount = rightCount;
+		this.edgeStart = edgeStart;
+		this.edgeRight = edgeRight;
+		this.edgeCost = edgeCost;
+		this.budgetExceeded = false;
+
+		if (leftToRight.length < leftCount) {
+			leftToRight = new int[leftCount * 2];
+			leftCost = new double[leftCount * 2];
+		}
+		if (rightToLeft.length < rightCount) {
+			rightToLeft = new int[rightCount * 2];
+		}
+		Arrays.fill(leftToRight, 0, leftCount, -1);
+		Arrays.fill(rightToLeft, 0, rightCount, -1);
+
+		this.sink = leftCount + rightCount;
+		this.nodeCount = leftCount + rightCount + 1;
+		if (potential.length < nodeCount) {
+			potential = new double[nodeCount * 2];
+			distance = new double[nodeCount * 2];
+			done = new boolean[nodeCount * 2];
+			previousLeft = new int[nodeCount * 2];
+			previousCost = new double[nodeCount * 2];
+		}
+		Arrays.fill(potential, 0, nodeCount, 0);
+	}
+
+	/**
+	 * Compute the assignment
+	 * @param budgetNanos Maximum time to spend
+	 * @return For each left index the assigned right index, or -1 when not assigned (only the first leftCount entries are valid, the array is reused by reset())
+	 */
+	int[] solve(long budgetNanos) {
+		long deadline = System.nanoTime() + budgetNanos;
+		int maxPairs = Math.min(leftCount, rightCount);
+		for (int pairs = 0; pairs < maxPairs; pairs++) {
+			if (System.nanoTime() > deadline) {
+				budgetExceeded = true;
+				break;
+			}
+
+			// Done when there is no way to add another pair anymore
+			if (!augment()) {
+				break;
+			}
+		}
+		return leftToRight;
+	}
+
+	/** True when the time budget ran out before the assignment was complete */
+	boolean isBudgetExceeded() {
+		return budgetExceeded;
+	}
+
+	/**
+	 * Find the cheapest way to add one more pair (possibly reassigning existing pairs), and apply it
+	 * @return true when a pair has been added, false when not possible anymore
+	 */
+	private boolean augment() {
+		Arrays.fill(distance, 0, nodeCount, Double.MAX_VALUE);
+		Arrays.fill(done, 0, nodeCount, false);
+		heap.clear();
+
+		// Start from all left items that are not assigned yet
+		// (their potential is always 0, they never had a pair so it has never been updated)
+		for (int left = 0; left < leftCount; left++) {
+			if (leftToRight[left] == -1) {
+				distance[left] = 0;
+				heap.push(left, 0);
+			}
+		}
+
+		// Dijkstra with reduced costs, until the sink is reached (every free right item is connected to it)
+		while (!heap.isEmpty()) {
+			int node = heap.pop();
+			if (done[node]) {
+				continue;
+			}
+			done[node] = true;
+
+			if (node == sink) {
+				break;
+			} else if (node < leftCount) {
+				// Left item: go to all candidate right items, except its current pair
+				for (int edge = edgeStart[node]; edge < edgeStart[node + 1]; edge++) {
+					int right = edgeRight[edge];
+					if (leftToRight[node] == right) {
+						continue;
+					}
+					int rightNode = leftCount + right;
+					double reducedDistance = distance[node] + edgeCost[edge] + potential[node] - potential[rightNode];
+					if (reducedDistance < distance[rightNode]) {
+						distance[rightNode] = reducedDistance;
+						previousLeft[rightNode] = node;
+						previousCost[rightNode] = edgeCost[edge];
+						heap.push(rightNode, reducedDistance);
+					}
+				}
+			} else {
+				int right = node - leftCount;
+				int pairedLeft = rightToLeft[right];
+				if (pairedLeft == -1) {
+					// Free right item: an augmenting path to the sink
+					double reducedDistance = distance[node] + potential[node] - potential[sink];
+					if (reducedDistance < distance[sink]) {
+						distance[sink] = reducedDistance;
+						previousLeft[sink] = right;
+						heap.push(sink, reducedDistance);
+					}
+					continue;
+				}
+
+				// Assigned right item: go back over its current pair
+				double reducedDistance = distance[node] - leftCost[pairedLeft] + potential[node] - potential[pairedLeft];
+				if (reducedDistance < distance[pairedLeft]) {
+					distance[pairedLeft] = reducedDistance;
+					heap.push(pairedLeft, reducedDistance);
+				}
+			}
+		}
+
+		if (!done[sink]) {
+			return false;
+		}
+
+		// Update potentials to keep reduced costs non-negative
+		// - nodes that have not been reached (or are further away than the sink) get the distance of the sink
+		double sinkDistance = distance[sink];
+		for (int node = 0; node < nodeCount; node++) {
+			potential[node] += Math.min(distance[node], sinkDistance);
+		}
+
+		// Flip the pairs along the path
+		int right = previousLeft[sink];
+		while (right != -1) {
+			int rightNode = leftCount + right;
+			int left = previousLeft[rightNode];
+			int previousRight = leftToRight[left];
+			leftToRight[left] = right;
+			rightToLeft[right] = left;
+			leftCost[left] = previousCost[rightNode];
+			right = previousRight;
+		}
+		return true;
+	}
+
+	/** Binary heap of nodes by distance, allows duplicates (outdated entries are skipped by the caller) */
+	private static final class MinHeap {
+		private int[] nodes;
+		private double[] keys;
+		private int size = 0;
+
+		MinHeap(int capacity) {
+			this.nodes = new int[Math.max(capacity, 4)];
+			this.keys = new double[Math.max(capacity, 4)];
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void push(int node, double key) {
+			if (size == nodes.length) {
+				nodes = Arrays.copyOf(nodes, size * 2);
+				keys = Arrays.copyOf(keys, size * 2);
+			}
+
+			// Sift up
+			int index = size++;
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (keys[parent] <= key) {
+					break;
+				}
+				nodes[index] = nodes[parent];
+				keys[index] = keys[parent];
+				index = parent;
+			}
+			nodes[index] = node;
+			keys[index] = key;
+		}
+
+		int pop() {
+			int result = nodes[0];
+			size--;
+			int lastNode = nodes[size];
+			double lastKey = keys[size];
+
+			// Sift down
+			int index = 0;
+			while (true) {
+				int child = index * 2 + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && keys[child + 1] < keys[child]) {
+					child++;
+				}
+				if (keys[child] >= lastKey) {
+					break;
+				}
+				nodes[index] = nodes[child];
+				keys[index] = keys[child];
+				index = child;
+			}
+			nodes[index] = lastNode;
+			keys[index] = lastKey;
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.IPreferences;
+import org.openstreetmap.josm.spi.preferences.PreferenceChangedListener;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Rules for copying the tags of a BAG building to the OSM building
+ * - Compiled once into a lookup table by key, recompiled when one of the preferences changes
+ * - Results based on earlier rules are dropped when the preferences change (see addChangeListener())
+ * - Keys with their own rule win over the ignored prefixes, keys without a rule are overwritten
+ * - Rules do not change after compiling, can be used from any thread
+ *
+ * Preferences (lists of keys):
+ * - bag-quick.tags.ignored-prefixes: BAG tags starting with one of these are not copied (default |ODS, only background information)
+ * - bag-quick.tags.keep-if-present: only added when the OSM building does not have the tag yet (default building, OSM might be more specific)
+ * - bag-quick.tags.always-overwrite: always set to the BAG value (default source:date and start_date), the same as keys without a rule,
+ *   except that these keys are also copied when they start with an ignored prefix
+ * - bag-quick.tags.warn: OSM tags that need a review before updating the building (default note, note:bag and fixme)
+ */
+public final class TagPolicy {
+
+	public static final String IGNORED_PREFIXES_PREFERENCE = "bag-quick.tags.ignored-prefixes";
+	public static final String KEEP_IF_PRESENT_PREFERENCE = "bag-quick.tags.keep-if-present";
+	public static final String ALWAYS_OVERWRITE_PREFERENCE = "bag-quick.tags.always-overwrite";
+	public static final String WARN_PREFERENCE = "bag-quick.tags.warn";
+
+	private static final List<String> DEFAULT_IGNORED_PREFIXES = Collections.singletonList("|ODS");
+	private static final List<String> DEFAULT_KEEP_IF_PRESENT = Collections.singletonList("building");
+	private static final List<String> DEFAULT_ALWAYS_OVERWRITE = Arrays.asList("source:date", "start_date");
+	private static final List<String> DEFAULT_WARN = Arrays.asList("note", "note:bag", "fixme");
+
+	/** What to do with a BAG tag */
+	enum Rule {
+		/** Not copied */
+		IGNORE,
+		/** Only added when the OSM building does not have the tag */
+		KEEP_IF_PRESENT,
+		/** Set to the BAG value */
+		OVERWRITE
+	}
+
+	/** Policy of the current preferences, null until first used or after the preferences changed */
+	private static volatile TagPolicy configured;
+
+	/** Called after the rules changed */
+	private static final List<Runnable> CHANGE_LISTENERS = new CopyOnWriteArrayList<>();
+
+	private static final PreferenceChangedListener PREFERENCE_LISTENER = event -> {
+		configured = null;
+		for (Runnable listener : CHANGE_LISTENERS) {
+			listener.run();
+		}
+	};
+
+	/** Rule by key, filled up front with the listed keys and on first use for the others */
+	private final Map<String, Rule> rules = new ConcurrentHashMap<>();
+	private final String[] ignoredPrefixes;
+	private final String[] warnKeys;
+
+	TagPolicy(List<String> ignoredPrefixes, List<String> keepIfPresent, List<String> alwaysOverwrite, List<String> warnKeys) {
+		this.ignoredPrefixes = ignoredPrefixes.toArray(new String[0]);
+		this.warnKeys = warnKeys.toArray(new String[0]);
+		for (String key : keepIfPresent) {
+			rules.put(key, Rule.KEEP_IF_PRESENT);
+		}
+		for (String key : alwaysOverwrite) {
+			rules.put(key, Rule.OVERWRITE);
+		}
+	}
+
+	/** Follow changes to the preferences, call once when the plugin loads */
+	public static void init() {
+		IPreferences preferences = Config.getPref();
+		for (String preference : Arrays.asList(IGNORED_PREFIXES_PREFERENCE, KEEP_IF_PRESENT_PREFERENCE, ALWAYS_OVERWRITE_PREFERENCE, WARN_PREFERENCE)) {
+			preferences.addKeyPreferenceChangeListener(preference, PREFERENCE_LISTENER);
+		}
+	}
+
+	/**
+	 * Get notified when the rules change, to drop what has been computed with the earlier rules
+	 * - Called from the thread that changed the preferences (usually the EDT)
+	 */
+	public static void addChangeListener(Runnable listener) {
+		CHANGE_LISTENERS.add(listener);
+	}
+
+	public static void removeChangeListener(Runnable listener) {
+		CHANGE_LISTENERS.remove(listener);
+	}
+
+	/**
+	 * Get the policy of the current preferences
+	 * - Uses the defaults when there are no preferences (benchmarks without JOSM)
+	 */
+	public static TagPolicy getConfigured() {
+		TagPolicy result = configured;
+		if (result == null) {
+			IPreferences preferences = Config.getPref();
+			if (preferences == null) {
+				result = new TagPolicy(DEFAULT_IGNORED_PREFIXES, DEFAULT_KEEP_IF_PRESENT, DEFAULT_ALWAYS_OVERWRITE, DEFAULT_WARN);
+			} else {
+				result = new TagPolicy(
+						preferences.getList(IGNORED_PREFIXES_PREFERENCE, DEFAULT_IGNORED_PREFIXES),
+						preferences.getList(KEEP_IF_PRESENT_PREFERENCE, DEFAULT_KEEP_IF_PRESENT),
+						preferences.getList(ALWAYS_OVERWRITE_PREFERENCE, DEFAULT_ALWAYS_OVERWRITE),
+						preferences.getList(WARN_PREFERENCE, DEFAULT_WARN));
+			}
+			configured = result;
+		}
+		return result;
+	}
+
+	/** Rule for a BAG tag */
+	Rule getRule(String key) {
+		Rule rule = rules.get(key);
+		if (rule == null) {
+			rule = rules.computeIfAbsent(key, this::matchPrefixes);
+		}
+		return rule;
+	}
+
+	private Rule matchPrefixes(String key) {
+		for (String prefix : ignoredPrefixes) {
+			if (key.startsWith(prefix)) {
+				return Rule.IGNORE;
+			}
+		}
+		return Rule.OVERWRITE;
+	}
+
+	/** Check if a BAG tag is not copied, changes to it do not affect the result of an update */
+	public boolean isIgnored(String key) {
+		return getRule(key) == Rule.IGNORE;
+	}
+
+	/**
+	 * Compute the tags that should be added or changed on an OSM way to match a BAG way
+	 * - Tags without a value are skipped
+	 * @param bagTags Tags of the BAG way
+	 * @param osmTags Tags of the OSM way, empty when creating a new way
+	 * @return Tags to add or change, with their new values, in the order of the BAG tags
+	 */
+	public Map<String, String> computeChanges(Map<String, String> bagTags, Map<String, String> osmTags) {
+		Map<String, String> result = new LinkedHashMap<>();
+		for (Map.Entry<String, String> bagTagEntry : bagTags.entrySet()) {
+			String tag = bagTagEntry.getKey();
+			Rule rule = getRule(tag);
+			if (rule == Rule.IGNORE) {
+				continue;
+			}
+
+			String osmTagValue = osmTags.get(tag);
+			if (rule == Rule.KEEP_IF_PRESENT && osmTagValue != null) {
+				continue;
+			}
+
+			String bagTagValue = bagTagEntry.getValue();
+			if (bagTagValue == null || bagTagValue.isEmpty() || bagTagValue.equals(osmTagValue)) {
+				continue;
+			}
+
+			result.put(tag, bagTagValue);
+		}
+		return result;
+	}
+
+	/**
+	 * Tags of an OSM way that need a review before updating it
+	 * @return Warn tags that have a value, in the order of the preference, empty when there are none
+	 */
+	public Map<String, String> getWarnings(Map<String, String> osmTags) {
+		Map<String, String> result = null;
+		for (String key : warnKeys) {
+			String value = osmTags.get(key);
+			if (value == null || value.isEmpty()) {
+				continue;
+			}
+
+			if (result == null) {
+				result = new LinkedHashMap<>();
+			}
+			result.put(key, value);
+		}
+		return result == null ? Collections.emptyMap() : result;
+	}
+
+}
@@ -0,0 +1,69 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.gui.Notification;
+import org.openstreetmap.josm.gui.datatransfer.ClipboardUtils;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+import javax.swing.*;
+import java.awt.event.ActionEvent;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+/**
+ * Menu actions of the trace, see BagTrace
+ * - Toggle: enables or disables the trace, shown as a checkbox
+ * - Copy: copies the trace to the clipboard and writes it to the log
+ */
+public class TraceAction extends JosmAction {
+
+    private final boolean toggle;
+
+    private TraceAction(String name, String tooltip, boolean toggle) {
+        super(name, null, tooltip, null, false);
+        this.toggle = toggle;
+    }
+
+    /**
+     * Action to enable or disable the trace
+     * - Follows the bag-quick.trace preference, so the checkbox stays right when it is changed in the preferences
+     */
+    public static TraceAction createToggle() {
+        TraceAction action = new TraceAction(tr("BAG update trace"), tr("Record what BAG updates do, to attach to bug reports"), true);
+        action.putValue(SELECTED_KEY, BagTrace.isEnabled());
+        Config.getPref().addKeyPreferenceChangeListener(BagTrace.ENABLED_PREFERENCE, event -> SwingUtilities.invokeLater(
+                () -> action.putValue(SELECTED_KEY, Config.getPref().getBoolean(BagTrace.ENABLED_PREFERENCE, false))));
+        return action;
+    }
+
+    /** Action to copy the recorded trace */
+    public static TraceAction createCopy() {
+        return new TraceAction(tr("Copy BAG update trace"), tr("Copy the recorded trace of BAG updates to the clipboard"), false);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if (toggle) {
+            boolean enable = !BagTrace.isEnabled();
+            BagTrace.setEnabled(enable);
+            putValue(SELECTED_KEY, enable);
+            return;
+        }
+
+        String trace = BagTrace.dump();
+        if (trace.isEmpty()) {
+            new Notification(tr("Nothing has been traced, enable Tools > BAG update trace and try again"))
+                    .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                    .show();
+            return;
+        }
+
+        Logging.info("BAG update trace:\n{0}", trace);
+        ClipboardUtils.copyString(trace);
+        new Notification(tr("BAG update trace copied to the clipboard"))
+                .setIcon(JOptionPane.INFORMATION_MESSAGE)
+                .show();
+    }
+
+}
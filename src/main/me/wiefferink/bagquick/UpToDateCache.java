@@ -0,0 +1,217 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * Remembers which BAG/OSM building pairs are up-to-date, by ref:bag
+ * - Filled after a successful update (or an update that found nothing to change)
+ * - Changes to the BAG or OSM building (DataSet events of either layer) mark the entry as changed
+ * - Unchanged entries are answered in O(1), without matching nodes
+ * - Changed entries compare a fingerprint of the geometry and tags, which covers changes that have been undone
+ *   (for example undo and redo, or moving a node back)
+ * - Can be used from any thread
+ */
+public class UpToDateCache {
+
+	private final WayChangeListener bagListener = new WayChangeListener(this, new ChangeHandler());
+	private final WayChangeListener osmListener = new WayChangeListener(this, new ChangeHandler());
+
+	/** DataSet of the BAG ODS layer, null when not bound */
+	private DataSet bagDataSet;
+	/** DataSet of the BAG OSM layer, null when not bound */
+	private DataSet osmDataSet;
+
+	/** Up-to-date pairs by ref:bag */
+	private final Map<String, Entry> entries = new HashMap<>();
+	/** Forgets everything when the tag rules change, pairs might need other tags now */
+	private final Runnable tagPolicyListener = this::clear;
+
+	/**
+	 * Bind the cache to the layers
+	 * - Does nothing when already bound to the same data sets, forgets everything otherwise
+	 */
+	public synchronized void bind(DataSet bagDataSet, DataSet osmDataSet) {
+		if (this.bagDataSet == bagDataSet && this.osmDataSet == osmDataSet) {
+			return;
+		}
+
+		unbind();
+		this.bagDataSet = bagDataSet;
+		this.osmDataSet = osmDataSet;
+		bagListener.bind(bagDataSet);
+		osmListener.bind(osmDataSet);
+		TagPolicy.addChangeListener(tagPolicyListener);
+	}
+
+	/** Stop listening to the layers and forget everything */
+	public synchronized void unbind() {
+		if (bagDataSet == null) {
+			return;
+		}
+
+		bagListener.unbind();
+		osmListener.unbind();
+		TagPolicy.removeChangeListener(tagPolicyListener);
+		bagDataSet = null;
+		osmDataSet = null;
+		entries.clear();
+	}
+
+	/** Forget all up-to-date pairs */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Remember that a BAG building and its OSM building are up-to-date
+	 * - Should be called on the EDT, or while holding the read locks of both layers
+	 */
+	public synchronized void put(Way bagWay, Way osmWay) {
+		if (bagDataSet == null || bagWay.getDataSet() != bagDataSet || osmWay.getDataSet() != osmDataSet) {
+			return;
+		}
+
+		String bagRef = bagWay.get("ref:bag");
+		entries.put(bagRef, new Entry(bagWay, osmWay, bagFingerprint(bagWay), osmFingerprint(osmWay)));
+	}
+
+	/**
+	 * Check if a BAG building and its OSM building are still the same as when they were up-to-date
+	 * - Should be called on the EDT, or while holding the read locks of both layers
+	 */
+	public synchronized boolean isUpToDate(Way bagWay, Way osmWay) {
+		Entry entry = entries.get(bagWay.get("ref:bag"));
+		if (entry == null || entry.bagWay != bagWay || entry.osmWay != osmWay) {
+			return false;
+		}
+		if (!entry.changed) {
+			return true;
+		}
+
+		// Something changed since, check if it is still the same
+		if (bagWay.isDeleted() || osmWay.isDeleted()) {
+			entries.remove(bagWay.get("ref:bag"));
+			return false;
+		}
+		if (entry.bagFingerprint != bagFingerprint(bagWay) || entry.osmFingerprint != osmFingerprint(osmWay)) {
+			// Keep the entry, undoing the change makes the pair up-to-date again
+			return false;
+		}
+		entry.changed = false;
+		trace("UpToDateCache {0} changed back to up-to-date", bagWay.get("ref:bag"));
+		return true;
+	}
+
+	/** Fingerprint of what determines the result of an update on the BAG side: node locations and tags */
+	private static long bagFingerprint(Way bagWay) {
+		long result = bagWay.getNodesCount();
+		for (Node node : bagWay.getNodes()) {
+			result = 31 * result + Double.doubleToLongBits(node.lat());
+			result = 31 * result + Double.doubleToLongBits(node.lon());
+		}
+		// Tags that updates ignore (|ODS by default) do not matter
+		TagPolicy tagPolicy = TagPolicy.getConfigured();
+		Map<String, String> tags = new TreeMap<>();
+		for (Map.Entry<String, String> tag : bagWay.getKeys().entrySet()) {
+			if (!tagPolicy.isIgnored(tag.getKey())) {
+				tags.put(tag.getKey(), tag.getValue());
+			}
+		}
+		return 31 * result + tags.hashCode();
+	}
+
+	/** Fingerprint of what determines the result of an update on the OSM side: nodes, their locations and tags */
+	private static long osmFingerprint(Way osmWay) {
+		long result = osmWay.getNodesCount();
+		for (Node node : osmWay.getNodes()) {
+			result = 31 * result + System.identityHashCode(node);
+			result = 31 * result + Double.doubleToLongBits(node.lat());
+			result = 31 * result + Double.doubleToLongBits(node.lon());
+		}
+		return 31 * result + new TreeMap<>(osmWay.getKeys()).hashCode();
+	}
+
+	/** Mark the entry of a way as changed */
+	private void changed(OsmPrimitive primitive) {
+		if (!(primitive instanceof Way)) {
+			return;
+		}
+
+		Entry entry = entries.get(primitive.get("ref:bag"));
+		if (entry != null && (entry.bagWay == primitive || entry.osmWay == primitive)) {
+			entry.changed = true;
+		}
+	}
+
+	/** Up-to-date pair of buildings */
+	private static final class Entry {
+		private final Way bagWay;
+		private final Way osmWay;
+		private final long bagFingerprint;
+		private final long osmFingerprint;
+		/** True when there have been events about the ways since they were up-to-date */
+		private boolean changed = false;
+
+		private Entry(Way bagWay, Way osmWay, long bagFingerprint, long osmFingerprint) {
+			this.bagWay = bagWay;
+			this.osmWay = osmWay;
+			this.bagFingerprint = bagFingerprint;
+			this.osmFingerprint = osmFingerprint;
+		}
+	}
+
+	/** Marks the entries affected by the changes of one of the layers as changed */
+	private class ChangeHandler implements WayChangeListener.Handler {
+
+		@Override
+		public void reset() {
+			for (Entry entry : entries.values()) {
+				entry.changed = true;
+			}
+		}
+
+		@Override
+		public void wayAdded(Way way) {
+			// New ways with the same ref:bag make the building ambiguous
+			entries.remove(way.get("ref:bag"));
+		}
+
+		@Override
+		public void wayRemoved(Way way) {
+			entries.remove(way.get("ref:bag"));
+		}
+
+		@Override
+		public void wayTagsChanged(Way way, Map<String, String> originalKeys) {
+			changed(way);
+			// The ref:bag itself might have changed
+			String originalRef = originalKeys == null ? null : originalKeys.get("ref:bag");
+			if (originalRef != null && !originalRef.equals(way.get("ref:bag"))) {
+				entries.remove(originalRef);
+			}
+		}
+
+		@Override
+		public void wayGeometryChanged(Way way) {
+			changed(way);
+		}
+
+		@Override
+		public void nodeChanged(Node node) {
+			// Node tags and membership of other ways decide if nodes can be deleted
+			for (Way way : node.getParentWays()) {
+				changed(way);
+			}
+		}
+	}
+
+}
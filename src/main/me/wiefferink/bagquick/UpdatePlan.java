@@ -0,0 +1,314 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable description of the changes that bring an OSM building up-to-date with a BAG building
+ * - Computed in the background (see BuildingUpdate.plan()), only reads the data
+ * - Turned into commands on the EDT (see BuildingUpdate.apply()), after checking with isCurrent() that the data did not change in the meantime
+ */
+public final class UpdatePlan {
+
+	/**
+	 * Number of meters nodes are allowed to differ from BAG before being updated
+	 * - 1 cm is close enough, consider that accurate
+	 */
+	private static final double DESIRED_PRECISION_METERS = 0.01;
+
+	/** BAG way the plan is based on */
+	private final Way bagWay;
+	/** Nodes of the BAG way at the time of planning, by position */
+	private final Node[] bagWayNodes;
+	/** Tags of the BAG way at the time of planning */
+	private final Map<String, String> bagTags;
+
+	/** Existing OSM way to update, null when a new building should be created */
+	private final Way osmWay;
+	/** Tags of the OSM way at the time of planning, empty when creating */
+	private final Map<String, String> osmTags;
+	/** Node matching the plan is based on, null when creating */
+	private final NodeMatcher.Result matching;
+
+	// Nodes of the resulting way, each BAG node results in one node
+	/** Existing OSM node to use for each BAG node, null when a new node is needed */
+	private final Node[] resultNodes;
+	/** Target coordinates for each BAG node */
+	private final LatLon[] resultCoors;
+	/** True for each existing node that needs to be moved to its target coordinates */
+	private final boolean[] resultMoved;
+	/** Index in resultNodes for each position in the resulting way */
+	private final int[] wayIndices;
+	/** True when the node list of the OSM way needs to change */
+	private final boolean wayNodesChanged;
+
+	// Leftover nodes of the OSM way
+	/** Nodes that are not used anymore and can be deleted */
+	private final Node[] deletedNodes;
+	/** Number of leftover nodes that are kept because they are part of other ways */
+	private final int nodesInOtherWays;
+	/** Number of leftover nodes that are kept because they have tags */
+	private final int nodesTagged;
+
+	/** Tags to add or change on the OSM way, with their new values */
+	private final Map<String, String> tagChanges;
+	/** Tag rules used for tagChanges */
+	private final TagPolicy tagPolicy;
+
+	private UpdatePlan(Way bagWay, Way osmWay, NodeMatcher.Result matching) {
+		this.bagWay = bagWay;
+		this.bagWayNodes = bagWay.getNodes().toArray(new Node[0]);
+		this.bagTags = Collections.unmodifiableMap(new LinkedHashMap<>(bagWay.getKeys()));
+		this.osmWay = osmWay;
+		this.osmTags = osmWay == null ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(osmWay.getKeys()));
+		this.matching = matching;
+
+		if (matching == null) {
+			// New building: a new node for each BAG node, the closing node of the BAG way becomes the first node again
+			List<LatLon> coors = new ArrayList<>();
+			this.wayIndices = new int[bagWayNodes.length];
+			for (int position = 0; position < bagWayNodes.length; position++) {
+				if (position > 0 && position == bagWayNodes.length - 1 && bagWayNodes[position] == bagWayNodes[0]) {
+					wayIndices[position] = 0;
+					continue;
+				}
+				wayIndices[position] = coors.size();
+				coors.add(bagWayNodes[position].getCoor());
+			}
+			this.resultNodes = new Node[coors.size()];
+			this.resultCoors = coors.toArray(new LatLon[0]);
+			this.resultMoved = new boolean[coors.size()];
+			this.wayNodesChanged = true;
+			this.deletedNodes = new Node[0];
+			this.nodesInOtherWays = 0;
+			this.nodesTagged = 0;
+		} else {
+			// Existing building: use the matched OSM nodes, new nodes for the rest
+			int bagNodeCount = matching.getBagNodeCount();
+			this.resultNodes = new Node[bagNodeCount];
+			this.resultCoors = new LatLon[bagNodeCount];
+			this.resultMoved = new boolean[bagNodeCount];
+			for (int bagIndex = 0; bagIndex < bagNodeCount; bagIndex++) {
+				resultNodes[bagIndex] = matching.getMatchedOsmNode(bagIndex);
+				resultCoors[bagIndex] = matching.getBagNode(bagIndex).getCoor();
+				resultMoved[bagIndex] = resultNodes[bagIndex] != null && matching.getDistance(bagIndex) >= DESIRED_PRECISION_METERS;
+			}
+			this.wayIndices = matching.getBagWayIndices();
+			this.wayNodesChanged = isWayNodesChanged(osmWay, resultNodes, wayIndices);
+
+			// Remove nodes that are not used anymore
+			// - not allowed when tagged with something (not uninteresting)
+			// - not allowed when part of other ways (building:part, other house, fence, etc)
+			List<Node> deleted = new ArrayList<>();
+			int inOtherWays = 0;
+			int tagged = 0;
+			for (int osmIndex = 0; osmIndex < matching.getOsmNodeCount(); osmIndex++) {
+				if (matching.isOsmMatched(osmIndex)) {
+					continue;
+				}
+
+				Node osmNodeLeft = matching.getOsmNode(osmIndex);
+				if (osmNodeLeft.isReferredByWays(2)) {
+					// Cannot remove node, is inside another way
+					inOtherWays++;
+				} else if (osmNodeLeft.isTagged()) {
+					// Node itself has tags, cannot remove
+					tagged++;
+				} else {
+					deleted.add(osmNodeLeft);
+				}
+			}
+			this.deletedNodes = deleted.toArray(new Node[0]);
+			this.nodesInOtherWays = inOtherWays;
+			this.nodesTagged = tagged;
+		}
+
+		this.tagPolicy = TagPolicy.getConfigured();
+		this.tagChanges = Collections.unmodifiableMap(tagPolicy.computeChanges(bagTags, osmTags));
+	}
+
+	/**
+	 * Plan the creation of a new OSM building for a BAG building
+	 * - Should be called while holding the read lock of the BAG data set (or on the EDT)
+	 */
+	public static UpdatePlan create(Way bagWay) {
+		return new UpdatePlan(bagWay, null, null);
+	}
+
+	/**
+	 * Plan the update of an existing OSM building
+	 * - Should be called while holding the read locks of both data sets (or on the EDT)
+	 */
+	public static UpdatePlan update(Way bagWay, Way osmWay, NodeMatcher.Result matching) {
+		return new UpdatePlan(bagWay, osmWay, matching);
+	}
+
+	private static boolean isWayNodesChanged(Way osmWay, Node[] resultNodes, int[] wayIndices) {
+		if (osmWay.getNodesCount() != wayIndices.length) {
+			return true;
+		}
+
+		for (int position = 0; position < wayIndices.length; position++) {
+			Node resultNode = resultNodes[wayIndices[position]];
+			if (resultNode == null || resultNode != osmWay.getNode(position)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compute the tags that should be added or changed on an OSM way to match a BAG way, following the configured TagPolicy
+	 * @param bagTags Tags of the BAG way
+	 * @param osmTags Tags of the OSM way, empty when creating a new way
+	 * @return Tags to add or change, with their new values, in the order of the BAG tags
+	 */
+	static Map<String, String> computeTagChanges(Map<String, String> bagTags, Map<String, String> osmTags) {
+		return TagPolicy.getConfigured().computeChanges(bagTags, osmTags);
+	}
+
+	/**
+	 * Check if the plan still matches the current state of the data
+	 * - Should be called on the EDT, directly before applying the plan
+	 */
+	public boolean isCurrent() {
+		// Tag rules should be the same
+		if (tagPolicy != TagPolicy.getConfigured()) {
+			return false;
+		}
+
+		// BAG way should be the same, and not removed with its tile of the offline BAG file
+		if (bagWay.isDeleted() || bagWay.getDataSet() == null || bagWay.getNodesCount() != bagWayNodes.length || !bagTags.equals(bagWay.getKeys())) {
+			return false;
+		}
+		for (int position = 0; position < bagWayNodes.length; position++) {
+			if (bagWay.getNode(position) != bagWayNodes[position]) {
+				return false;
+			}
+		}
+
+		// New building: only the coordinates of the BAG nodes matter
+		if (osmWay == null) {
+			for (int position = 0; position < bagWayNodes.length; position++) {
+				if (!bagWayNodes[position].getCoor().equals(resultCoors[wayIndices[position]])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// Existing building: nodes and tags of both ways should be the same
+		if (osmWay.isDeleted() || !osmTags.equals(osmWay.getKeys()) || !matching.getInput().isCurrent(bagWay, osmWay)) {
+			return false;
+		}
+
+		// Nodes to delete should still be unused
+		for (Node deletedNode : deletedNodes) {
+			if (deletedNode.isDeleted() || deletedNode.isTagged() || deletedNode.isReferredByWays(2)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Check if applying the plan would not change anything */
+	public boolean isUpToDate() {
+		return isGeometryUpToDate() && tagChanges.isEmpty();
+	}
+
+	/** Check if the plan does not change the geometry (tags might still change) */
+	public boolean isGeometryUpToDate() {
+		if (osmWay == null || wayNodesChanged || deletedNodes.length > 0) {
+			return false;
+		}
+		for (boolean moved : resultMoved) {
+			if (moved) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public Way getBagWay() {
+		return bagWay;
+	}
+
+	/** Existing OSM way to update, null when a new building should be created */
+	public Way getOsmWay() {
+		return osmWay;
+	}
+
+	/** Node matching the plan is based on, null when creating a new building */
+	public NodeMatcher.Result getMatching() {
+		return matching;
+	}
+
+	/** Number of distinct nodes in the resulting way */
+	public int getResultNodeCount() {
+		return resultNodes.length;
+	}
+
+	/** Existing OSM node to use, or null when a new node should be created */
+	public Node getExistingNode(int resultIndex) {
+		return resultNodes[resultIndex];
+	}
+
+	/** Coordinates the node should end up at */
+	public LatLon getTargetCoor(int resultIndex) {
+		return resultCoors[resultIndex];
+	}
+
+	/** Check if an existing node should be moved to its target coordinates */
+	public boolean isMoved(int resultIndex) {
+		return resultMoved[resultIndex];
+	}
+
+	/** Number of positions in the resulting way (closing node included) */
+	public int getWayLength() {
+		return wayIndices.length;
+	}
+
+	/** Get the result node index for a position in the resulting way */
+	public int getWayIndex(int position) {
+		return wayIndices[position];
+	}
+
+	/** True when the node list of the OSM way needs to change */
+	public boolean isWayNodesChanged() {
+		return wayNodesChanged;
+	}
+
+	/** Leftover OSM nodes that should be deleted */
+	public List<Node> getDeletedNodes() {
+		return Collections.unmodifiableList(Arrays.asList(deletedNodes));
+	}
+
+	/** Number of leftover nodes that are kept because they are part of other ways */
+	public int getNodesInOtherWays() {
+		return nodesInOtherWays;
+	}
+
+	/** Number of leftover nodes that are kept because they have tags */
+	public int getNodesTagged() {
+		return nodesTagged;
+	}
+
+	/** Tags to add or change on the OSM way, with their new values */
+	public Map<String, String> getTagChanges() {
+		return tagChanges;
+	}
+
+	/** Value of a tag on the OSM way at the time of planning, null when not present */
+	public String getPreviousTagValue(String tag) {
+		return osmTags.get(tag);
+	}
+
+}
@@ -0,0 +1,158 @@
+package me.wiefferink.bagquick;
+
+import me.wiefferink.bagquick.UpdateTimings.Phase;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * Rolling statistics of the BuildingUpdate timings of the current session
+ * - Keeps the last WINDOW_SIZE timings of each phase, so old slow updates drop out
+ * - Cheap to record into, percentiles are only computed when asked for (see getSnapshot())
+ * - Can be used from any thread
+ */
+public final class UpdateStatistics {
+
+	/** Number of updates to compute the percentiles over */
+	private static final int WINDOW_SIZE = 500;
+
+	private static final UpdateStatistics INSTANCE = new UpdateStatistics();
+
+	/** Ring buffer of timings per phase, and the total */
+	private final long[][] nanos = new long[Phase.values().length + 1][WINDOW_SIZE];
+	/** Number of timings recorded per phase, and the total */
+	private final long[] counts = new long[Phase.values().length + 1];
+	/** Ring buffer of the finish times of the updates */
+	private final long[] finishedNanoTimes = new long[WINDOW_SIZE];
+	/** Number of updates that used the simple matching because the optimal matching ran out of time */
+	private long greedyMatchings = 0;
+	/** Incremented on every change, to detect if anything changed */
+	private long version = 0;
+
+	private UpdateStatistics() {
+	}
+
+	/** Statistics of the current session */
+	public static UpdateStatistics getInstance() {
+		return INSTANCE;
+	}
+
+	/** Add the timings of a finished update */
+	public synchronized void record(UpdateTimings timings) {
+		Phase[] phases = Phase.values();
+		for (Phase phase : phases) {
+			if (timings.hasRun(phase)) {
+				add(phase.ordinal(), timings.getNanos(phase));
+			}
+		}
+		finishedNanoTimes[(int) (counts[phases.length] % WINDOW_SIZE)] = timings.getFinishedNanoTime();
+		add(phases.length, timings.getTotalNanos());
+		if (timings.getMatchingStrategy() == UpdateTimings.MatchingStrategy.GREEDY) {
+			greedyMatchings++;
+		}
+		version++;
+		trace("BuildingUpdate {0}", timings);
+	}
+
+	private void add(int index, long value) {
+		nanos[index][(int) (counts[index] % WINDOW_SIZE)] = value;
+		counts[index]++;
+	}
+
+	/** Forget everything recorded so far */
+	public synchronized void reset() {
+		Arrays.fill(counts, 0);
+		greedyMatchings = 0;
+		version++;
+	}
+
+	/** Incremented on every change, to check if a new snapshot is needed */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/** Compute the current statistics */
+	public synchronized Snapshot getSnapshot() {
+		int rows = counts.length;
+		long[] rowCounts = counts.clone();
+		double[][] millis = new double[rows][];
+		for (int row = 0; row < rows; row++) {
+			int size = (int) Math.min(counts[row], WINDOW_SIZE);
+			long[] sorted = Arrays.copyOf(nanos[row], size);
+			Arrays.sort(sorted);
+			millis[row] = new double[]{percentile(sorted, 0.5), percentile(sorted, 0.95), percentile(sorted, 1)};
+		}
+
+		// Updates finished in the last minute
+		long now = System.nanoTime();
+		long minuteAgo = now - TimeUnit.MINUTES.toNanos(1);
+		int finished = (int) Math.min(counts[rows - 1], WINDOW_SIZE);
+		int lastMinute = 0;
+		for (int i = 0; i < finished; i++) {
+			if (finishedNanoTimes[i] - minuteAgo > 0) {
+				lastMinute++;
+			}
+		}
+		return new Snapshot(rowCounts, millis, lastMinute, greedyMatchings);
+	}
+
+	private static double percentile(long[] sortedNanos, double fraction) {
+		if (sortedNanos.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(fraction * sortedNanos.length) - 1;
+		return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1e6;
+	}
+
+	/** Statistics at a point in time */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final double[][] millis;
+		private final int buildingsPerMinute;
+		private final long greedyMatchings;
+
+		private Snapshot(long[] counts, double[][] millis, int buildingsPerMinute, long greedyMatchings) {
+			this.counts = counts;
+			this.millis = millis;
+			this.buildingsPerMinute = buildingsPerMinute;
+			this.greedyMatchings = greedyMatchings;
+		}
+
+		/** Number of times a phase ran in the session, null phase for the whole update */
+		public long getCount(Phase phase) {
+			return counts[index(phase)];
+		}
+
+		/** Median of the recent timings of a phase in milliseconds, null phase for the whole update */
+		public double getP50Millis(Phase phase) {
+			return millis[index(phase)][0];
+		}
+
+		/** 95th percentile of the recent timings of a phase in milliseconds, null phase for the whole update */
+		public double getP95Millis(Phase phase) {
+			return millis[index(phase)][1];
+		}
+
+		/** Maximum of the recent timings of a phase in milliseconds, null phase for the whole update */
+		public double getMaxMillis(Phase phase) {
+			return millis[index(phase)][2];
+		}
+
+		/** Number of updates that finished in the last minute */
+		public int getBuildingsPerMinute() {
+			return buildingsPerMinute;
+		}
+
+		/** Number of updates in the session that used the simple matching because the optimal matching ran out of time */
+		public long getGreedyMatchings() {
+			return greedyMatchings;
+		}
+
+		private int index(Phase phase) {
+			return phase == null ? counts.length - 1 : phase.ordinal();
+		}
+	}
+
+}
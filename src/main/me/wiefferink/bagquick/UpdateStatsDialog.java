@@ -0,0 +1,157 @@
+package me.wiefferink.bagquick;
+
+import me.wiefferink.bagquick.UpdateTimings.Phase;
+import org.openstreetmap.josm.gui.SideButton;
+import org.openstreetmap.josm.gui.dialogs.ToggleDialog;
+import org.openstreetmap.josm.tools.Shortcut;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.util.Collections;
+import java.util.Locale;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+/**
+ * Side panel showing where the time of BAG updates goes in the current session
+ * - p50/p95/max per phase over the recent updates, see UpdateStatistics
+ * - Buildings updated in the last minute
+ * - Only refreshes while it is shown
+ */
+public class UpdateStatsDialog extends ToggleDialog {
+
+    /** Time between refreshes while shown */
+    private static final int REFRESH_MILLIS = 1000;
+
+    private final StatsTableModel tableModel = new StatsTableModel();
+    private final JLabel summaryLabel = new JLabel();
+    private final Timer refreshTimer;
+    /** Version of UpdateStatistics that is shown */
+    private long shownVersion = -1;
+
+    public UpdateStatsDialog() {
+        super(
+            tr("BAG update statistics"),
+            "bagquickstats",
+            tr("Shows how long the phases of BAG updates take"),
+            Shortcut.registerShortcut(
+                "subwindow:bagquickstats",
+                tr("Windows: {0}", tr("BAG update statistics")),
+                KeyEvent.CHAR_UNDEFINED,
+                Shortcut.NONE
+            ),
+            150
+        );
+
+        JTable table = new JTable(tableModel);
+        table.setFillsViewportHeight(true);
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(new JScrollPane(table), BorderLayout.CENTER);
+        panel.add(summaryLabel, BorderLayout.SOUTH);
+        createLayout(panel, false, Collections.singletonList(new SideButton(new ResetAction())));
+
+        refreshTimer = new Timer(REFRESH_MILLIS, event -> refresh(false));
+    }
+
+    @Override
+    public void showNotify() {
+        refresh(true);
+        refreshTimer.start();
+    }
+
+    @Override
+    public void hideNotify() {
+        refreshTimer.stop();
+    }
+
+    @Override
+    public void destroy() {
+        refreshTimer.stop();
+        super.destroy();
+    }
+
+    /**
+     * Show the current statistics
+     * @param force Also refresh when no updates have been done since the last refresh (buildings per minute goes down over time)
+     */
+    private void refresh(boolean force) {
+        UpdateStatistics statistics = UpdateStatistics.getInstance();
+        long version = statistics.getVersion();
+        if (!force && version == shownVersion && tableModel.snapshot != null && tableModel.snapshot.getBuildingsPerMinute() == 0) {
+            return;
+        }
+        shownVersion = version;
+
+        UpdateStatistics.Snapshot snapshot = statistics.getSnapshot();
+        tableModel.setSnapshot(snapshot);
+        summaryLabel.setText(tr("{0} buildings per minute, {1} used the simple node matching",
+            snapshot.getBuildingsPerMinute(), snapshot.getGreedyMatchings()));
+    }
+
+    /** Phases as rows, with the whole update as the last row */
+    private static class StatsTableModel extends AbstractTableModel {
+
+        private final String[] columns = {tr("Phase"), tr("Count"), tr("p50 (ms)"), tr("p95 (ms)"), tr("Max (ms)")};
+        private UpdateStatistics.Snapshot snapshot;
+
+        void setSnapshot(UpdateStatistics.Snapshot snapshot) {
+            this.snapshot = snapshot;
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return snapshot == null ? 0 : Phase.values().length + 1;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columns[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            // null phase is the whole update
+            Phase phase = row < Phase.values().length ? Phase.values()[row] : null;
+            switch (column) {
+                case 0:
+                    return phase == null ? tr("Total") : phase.getDisplayName();
+                case 1:
+                    return snapshot.getCount(phase);
+                case 2:
+                    return formatMillis(snapshot.getP50Millis(phase));
+                case 3:
+                    return formatMillis(snapshot.getP95Millis(phase));
+                default:
+                    return formatMillis(snapshot.getMaxMillis(phase));
+            }
+        }
+
+        private static String formatMillis(double millis) {
+            return String.format(Locale.ROOT, "%.2f", millis);
+        }
+    }
+
+    private class ResetAction extends AbstractAction {
+
+        ResetAction() {
+            putValue(NAME, tr("Reset"));
+            putValue(SHORT_DESCRIPTION, tr("Forget the timings of the updates so far"));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            UpdateStatistics.getInstance().reset();
+            refresh(true);
+        }
+    }
+
+}
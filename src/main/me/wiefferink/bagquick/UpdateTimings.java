@@ -0,0 +1,145 @@
+package me.wiefferink.bagquick;
+
+import java.util.Arrays;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+/**
+ * Time spent in each phase of a single BuildingUpdate
+ * - Phases can run on different threads (planning in the background, applying on the EDT), one after the other
+ * - Planning again adds to the time of the phases that already ran
+ * - Collected for the session by UpdateStatistics
+ */
+public final class UpdateTimings {
+
+	/** Phases of a BuildingUpdate, in order */
+	public enum Phase {
+		/** Finding the clicked BAG building */
+		FIND_BAG_WAY(tr("Find BAG building")),
+		/** Finding the OSM building with the same ref:bag */
+		FIND_OSM_WAY(tr("Find OSM building")),
+		/** Matching the nodes and computing the changes */
+		MATCH(tr("Match nodes")),
+		/** Creating and executing the commands */
+		COMMANDS(tr("Apply changes")),
+		/** Merging with the nodes of adjacent buildings */
+		FIX_DUPLICATE_NODES(tr("Fix duplicate nodes")),
+		/** Handing the result to the validator */
+		VALIDATION(tr("Submit validation"));
+
+		private final String displayName;
+
+		Phase(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	/** How the nodes of the BAG building have been matched to the OSM building */
+	public enum MatchingStrategy {
+		/** No existing building, nothing to match */
+		NONE,
+		/** Optimal matching */
+		ASSIGNMENT,
+		/** Optimal matching ran out of time, the simple method matched the remaining nodes */
+		GREEDY,
+		/** Buildings are known to be up-to-date (see UpToDateCache), nothing matched */
+		CACHED
+	}
+
+	private static final long NOT_RUN = -1;
+
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private int bagNodeCount = 0;
+	private int osmNodeCount = 0;
+	private MatchingStrategy matchingStrategy = MatchingStrategy.NONE;
+	private BuildingUpdate.Outcome outcome = BuildingUpdate.Outcome.FAILED;
+	private long finishedNanoTime = 0;
+
+	public UpdateTimings() {
+		Arrays.fill(phaseNanos, NOT_RUN);
+	}
+
+	/**
+	 * Add the time since a start time to a phase
+	 * @param phase Phase that ran
+	 * @param startNanoTime Result of System.nanoTime() at the start of the phase
+	 */
+	public void add(Phase phase, long startNanoTime) {
+		long nanos = System.nanoTime() - startNanoTime;
+		int index = phase.ordinal();
+		phaseNanos[index] = phaseNanos[index] == NOT_RUN ? nanos : phaseNanos[index] + nanos;
+	}
+
+	/** Set the details of the node matching */
+	public void setMatching(int bagNodeCount, int osmNodeCount, MatchingStrategy matchingStrategy) {
+		this.bagNodeCount = bagNodeCount;
+		this.osmNodeCount = osmNodeCount;
+		this.matchingStrategy = matchingStrategy;
+	}
+
+	/** Mark the update as done */
+	public void finish(BuildingUpdate.Outcome outcome) {
+		this.outcome = outcome;
+		this.finishedNanoTime = System.nanoTime();
+	}
+
+	/** Check if a phase has run */
+	public boolean hasRun(Phase phase) {
+		return phaseNanos[phase.ordinal()] != NOT_RUN;
+	}
+
+	/** Time spent in a phase, 0 when it did not run */
+	public long getNanos(Phase phase) {
+		return Math.max(0, phaseNanos[phase.ordinal()]);
+	}
+
+	/** Time spent in all phases together */
+	public long getTotalNanos() {
+		long result = 0;
+		for (Phase phase : Phase.values()) {
+			result += getNanos(phase);
+		}
+		return result;
+	}
+
+	/** Number of distinct nodes of the BAG building, 0 when not known */
+	public int getBagNodeCount() {
+		return bagNodeCount;
+	}
+
+	/** Number of distinct nodes of the OSM building, 0 when there is none */
+	public int getOsmNodeCount() {
+		return osmNodeCount;
+	}
+
+	public MatchingStrategy getMatchingStrategy() {
+		return matchingStrategy;
+	}
+
+	public BuildingUpdate.Outcome getOutcome() {
+		return outcome;
+	}
+
+	/** Result of System.nanoTime() when the update finished, 0 when not finished */
+	public long getFinishedNanoTime() {
+		return finishedNanoTime;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("UpdateTimings(").append(outcome)
+			.append(", nodes ").append(bagNodeCount).append('/').append(osmNodeCount)
+			.append(", ").append(matchingStrategy);
+		for (Phase phase : Phase.values()) {
+			if (hasRun(phase)) {
+				result.append(", ").append(phase).append('=').append(getNanos(phase) / 1000).append("us");
+			}
+		}
+		return result.append(')').toString();
+	}
+
+}
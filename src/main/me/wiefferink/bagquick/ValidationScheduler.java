@@ -0,0 +1,138 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.validation.OsmValidator;
+import org.openstreetmap.josm.data.validation.Test;
+import org.openstreetmap.josm.data.validation.ValidationTask;
+import org.openstreetmap.josm.data.validation.util.AggregatePrimitivesVisitor;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.spi.preferences.PreferenceChangeEvent;
+import org.openstreetmap.josm.spi.preferences.PreferenceChangedListener;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * Runs the validator on updated OSM ways
+ * - Means errors/warnings show up directly, instead of only when uploading (when you might have moved along to other buildings already)
+ * - Sets up the validator tests once, and again only when the validator preferences change (also followed while stopped)
+ * - Ways updated shortly after each other are validated together in a single ValidationTask, so fast clicking does not pile up tasks
+ * - Should only be used on the EDT
+ */
+public class ValidationScheduler implements PreferenceChangedListener {
+
+	/** Time to collect updated ways before validating them */
+	private static final int COLLECT_MILLIS = 500;
+
+	/** Prefix of the preferences of the validator, changes to those require setting up the tests again */
+	private static final String VALIDATOR_PREFERENCE_PREFIX = "validator.";
+
+	/** Ways waiting for validation */
+	private final Set<Way> pendingWays = new LinkedHashSet<>();
+	/** Starts the validation when the collection window ends */
+	private final Timer timer;
+
+	/** Enabled validator tests, null when they need to be set up (again) */
+	private volatile Collection<Test> tests;
+	/** True once listening to preference changes, keeps listening after stop() so the tests stay valid */
+	private boolean listening = false;
+
+	public ValidationScheduler() {
+		this.timer = new Timer(COLLECT_MILLIS, event -> flush());
+		this.timer.setRepeats(false);
+	}
+
+	/** Start listening to preference changes, the tests are set up on the first validation (or by warmUp()) */
+	public void start() {
+		if (listening) {
+			return;
+		}
+		listening = true;
+		Config.getPref().addPreferenceChangeListener(this);
+	}
+
+	/** Validate the ways that are still waiting */
+	public void stop() {
+		flush();
+	}
+
+	/**
+	 * Validate ways after the collection window
+	 * - The window starts at the first way, so continuous updates still get validated regularly
+	 */
+	public void schedule(Collection<Way> osmWays) {
+		pendingWays.addAll(osmWays);
+		if (!timer.isRunning()) {
+			timer.start();
+		}
+	}
+
+	/** Validate the ways that are waiting directly */
+	public void flush() {
+		timer.stop();
+		if (pendingWays.isEmpty()) {
+			return;
+		}
+
+		// Skip ways that are gone again, for example because of an undo
+		List<Way> osmWays = new ArrayList<>(pendingWays.size());
+		for (Way osmWay : pendingWays) {
+			if (osmWay.getDataSet() != null && !osmWay.isDeleted()) {
+				osmWays.add(osmWay);
+			}
+		}
+		pendingWays.clear();
+		if (osmWays.isEmpty()) {
+			return;
+		}
+
+		Collection<Test> enabledTests = getTests();
+		if (enabledTests.isEmpty()) {
+			return;
+		}
+
+		// Get all primitives based on the OSM ways (limits errors/warnings to only the updated/created buildings)
+		AggregatePrimitivesVisitor primitivesVisitor = new AggregatePrimitivesVisitor();
+		Collection<OsmPrimitive> selection = primitivesVisitor.visit(osmWays);
+
+		// Run the validator on the OSM ways
+		trace("ValidationScheduler validating {0} ways", osmWays.size());
+		MainApplication.worker.submit(new ValidationTask(enabledTests, selection, null));
+	}
+
+	/**
+	 * Set up the tests ahead of the first validation, no-op when they are set up already
+	 * - On the EDT like the rest, OsmValidator does not guard its tests against other threads
+	 */
+	public void warmUp() {
+		getTests();
+	}
+
+	/** Get the enabled tests, setting them up when needed */
+	private synchronized Collection<Test> getTests() {
+		Collection<Test> result = tests;
+		if (result == null) {
+			OsmValidator.initializeTests();
+			result = OsmValidator.getEnabledTests(false);
+			tests = result;
+		}
+		return result;
+	}
+
+	@Override
+	public void preferenceChanged(PreferenceChangeEvent event) {
+		// Tests might have been enabled/disabled or configured differently
+		if (event.getKey() != null && event.getKey().startsWith(VALIDATOR_PREFERENCE_PREFIX)) {
+			tests = null;
+		}
+	}
+
+}
@@ -0,0 +1,196 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.data.osm.event.RelationMembersChangedEvent;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Listener of a DataSet that turns its events into the ways they affect, shared by the indexes and caches
+ * - Unpacks the events bundled in a DataChangedEvent, and asks for a reset when there are too many changes to list them separately
+ * - Handles the events while holding the lock of the owner, and ignores events of a DataSet it is not bound to (anymore)
+ * - Relations are not used by updates, their events are ignored
+ */
+final class WayChangeListener implements DataSetListener {
+
+	/** What to do with the changes, methods are called while holding the lock */
+	interface Handler {
+
+		/** Too many changes to be listed separately, everything might have changed */
+		void reset();
+
+		/** A way has been added (or undeleted) */
+		default void wayAdded(Way way) {
+		}
+
+		/** A way has been removed (or deleted) */
+		default void wayRemoved(Way way) {
+		}
+
+		/**
+		 * The tags of a way changed
+		 * @param originalKeys Tags before the change, null when not known
+		 */
+		default void wayTagsChanged(Way way, Map<String, String> originalKeys) {
+		}
+
+		/** The nodes of a way changed, or one of them moved */
+		default void wayGeometryChanged(Way way) {
+		}
+
+		/** A node has been added or removed, or its tags changed (decides if it can be deleted by an update) */
+		default void nodeChanged(Node node) {
+		}
+
+		/** Called after each event that has been handled */
+		default void afterEvent() {
+		}
+	}
+
+	private final Object lock;
+	private final Handler handler;
+
+	/** DataSet this listener is added to, null when not bound */
+	private DataSet dataSet;
+
+	/**
+	 * @param lock Lock of the owner, held while handling events
+	 * @param handler Handles the changes
+	 */
+	WayChangeListener(Object lock, Handler handler) {
+		this.lock = lock;
+		this.handler = handler;
+	}
+
+	/** Start listening to a DataSet, stops listening to the previous one */
+	void bind(DataSet dataSet) {
+		synchronized (lock) {
+			if (this.dataSet == dataSet) {
+				return;
+			}
+			unbind();
+			this.dataSet = dataSet;
+			dataSet.addDataSetListener(this);
+		}
+	}
+
+	/** Stop listening, no-op when not bound */
+	void unbind() {
+		synchronized (lock) {
+			if (dataSet == null) {
+				return;
+			}
+			dataSet.removeDataSetListener(this);
+			dataSet = null;
+		}
+	}
+
+	private void dispatch(AbstractDatasetChangedEvent event) {
+		synchronized (lock) {
+			if (dataSet == null || event.getDataset() != dataSet) {
+				return;
+			}
+			handleEvent(event);
+			handler.afterEvent();
+		}
+	}
+
+	/** Process a single event, also used to process the events bundled in a DataChangedEvent */
+	private void handleEvent(AbstractDatasetChangedEvent event) {
+		if (event instanceof DataChangedEvent) {
+			Collection<AbstractDatasetChangedEvent> events = ((DataChangedEvent) event).getEvents();
+			if (events == null) {
+				// Too many changes to be listed separately
+				handler.reset();
+				return;
+			}
+
+			for (AbstractDatasetChangedEvent bundledEvent : events) {
+				handleEvent(bundledEvent);
+			}
+		} else if (event instanceof PrimitivesAddedEvent) {
+			for (OsmPrimitive primitive : event.getPrimitives()) {
+				if (primitive instanceof Way) {
+					handler.wayAdded((Way) primitive);
+				} else if (primitive instanceof Node) {
+					handler.nodeChanged((Node) primitive);
+				}
+			}
+		} else if (event instanceof PrimitivesRemovedEvent) {
+			for (OsmPrimitive primitive : event.getPrimitives()) {
+				if (primitive instanceof Way) {
+					handler.wayRemoved((Way) primitive);
+				} else if (primitive instanceof Node) {
+					handler.nodeChanged((Node) primitive);
+				}
+			}
+		} else if (event instanceof TagsChangedEvent) {
+			TagsChangedEvent tagsChangedEvent = (TagsChangedEvent) event;
+			OsmPrimitive primitive = tagsChangedEvent.getPrimitive();
+			if (primitive instanceof Way) {
+				handler.wayTagsChanged((Way) primitive, tagsChangedEvent.getOriginalKeys());
+			} else if (primitive instanceof Node) {
+				handler.nodeChanged((Node) primitive);
+			}
+		} else if (event instanceof WayNodesChangedEvent) {
+			handler.wayGeometryChanged(((WayNodesChangedEvent) event).getChangedWay());
+		} else if (event instanceof NodeMovedEvent) {
+			for (Way way : ((NodeMovedEvent) event).getNode().getParentWays()) {
+				handler.wayGeometryChanged(way);
+			}
+		}
+	}
+
+	@Override
+	public void primitivesAdded(PrimitivesAddedEvent event) {
+		dispatch(event);
+	}
+
+	@Override
+	public void primitivesRemoved(PrimitivesRemovedEvent event) {
+		dispatch(event);
+	}
+
+	@Override
+	public void tagsChanged(TagsChangedEvent event) {
+		dispatch(event);
+	}
+
+	@Override
+	public void nodeMoved(NodeMovedEvent event) {
+		dispatch(event);
+	}
+
+	@Override
+	public void wayNodesChanged(WayNodesChangedEvent event) {
+		dispatch(event);
+	}
+
+	@Override
+	public void dataChanged(DataChangedEvent event) {
+		dispatch(event);
+	}
+
+	@Override
+	public void relationMembersChanged(RelationMembersChangedEvent event) {
+		// Relations are not used by updates
+	}
+
+	@Override
+	public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+		// Flags and conflicts do not change the ways
+	}
+
+}
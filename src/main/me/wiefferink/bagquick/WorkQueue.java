@@ -0,0 +1,262 @@
+package me.wiefferink.bagquick;
+
+import me.wiefferink.bagquick.BuildingStatusTracker.Status;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static me.wiefferink.bagquick.BagTrace.trace;
+
+/**
+ * Session queue of the BAG buildings that still need an update, to go through them one by one
+ * - Ordered along a Hilbert curve, so consecutive buildings are close to each other
+ * - Starts at the building closest to the center of the view, continues along the curve from there
+ * - Skips buildings that became up-to-date in the meantime (see BuildingStatusTracker)
+ * - Plans the next few buildings in the background, so applying them is only the commands
+ * - Collects the buildings once, buildings of later downloads are added when the end of the queue is reached
+ * - Should be used on the EDT
+ */
+public class WorkQueue {
+
+	/** Number of upcoming buildings to plan ahead of time */
+	private static final int PREFETCH_COUNT = 3;
+	/** Number of cells of the Hilbert curve along each axis (power of 2) */
+	private static final int HILBERT_SIZE = 1 << 16;
+
+	private final BagSession session;
+	private final BuildingStatusTracker statusTracker;
+
+	/** DataSet the queue has been built for, null when not built */
+	private DataSet bagDataSet;
+	/** BAG ways with a ref:bag, in order of the Hilbert curve */
+	private List<Way> queue = new ArrayList<>();
+	/** Position in queue of the current building, -1 when there is none */
+	private int position = -1;
+
+	/** Updates that are planned ahead of time, by BAG way */
+	private final Map<Way, PlannedUpdate> prefetched = new LinkedHashMap<>();
+
+	public WorkQueue(BagSession session, BuildingStatusTracker statusTracker) {
+		this.session = session;
+		this.statusTracker = statusTracker;
+	}
+
+	/** BAG way of the current building, null when there is none */
+	public Way getCurrent() {
+		return position < 0 ? null : queue.get(position);
+	}
+
+	/**
+	 * Take the update of the current building, planned in the background
+	 * @return Update of the current building, null when there is no current building
+	 */
+	public PlannedUpdate takeCurrentUpdate() {
+		Way current = getCurrent();
+		if (current == null) {
+			return null;
+		}
+
+		PlannedUpdate plannedUpdate = prefetched.remove(current);
+		return plannedUpdate == null ? prefetch(current) : plannedUpdate;
+	}
+
+	/**
+	 * Move to the next building that needs an update
+	 * @param bagDataSet DataSet of the BAG ODS layer
+	 * @param viewCenter Center of the map view, used to pick the first building
+	 * @return BAG way of the next building, null when all buildings are up-to-date
+	 */
+	public Way next(DataSet bagDataSet, LatLon viewCenter) {
+		if (this.bagDataSet != bagDataSet) {
+			clear();
+			this.bagDataSet = bagDataSet;
+		}
+
+		Way result = null;
+		if (position >= 0) {
+			result = findPending(position + 1);
+		}
+		if (result == null) {
+			// Start (again) at the building closest to the view, includes buildings downloaded since
+			rebuild();
+			int start = findClosest(viewCenter);
+			result = start < 0 ? null : findPending(start);
+		}
+		if (result == null) {
+			position = -1;
+			cancelPrefetched();
+			return null;
+		}
+
+		prefetchUpcoming();
+		return result;
+	}
+
+	/** Forget the queue and cancel the updates that are planned ahead of time */
+	public void clear() {
+		cancelPrefetched();
+		bagDataSet = null;
+		queue = new ArrayList<>();
+		position = -1;
+	}
+
+	/**
+	 * Find the first building from a position onwards that still needs an update, and make it the current one
+	 * @return BAG way of the building, or null when there is none
+	 */
+	private Way findPending(int from) {
+		for (int index = from; index < queue.size(); index++) {
+			if (isPending(queue.get(index))) {
+				position = index;
+				return queue.get(index);
+			}
+		}
+		return null;
+	}
+
+	/** Check if a building still needs an update, buildings that are not classified yet are included */
+	private boolean isPending(Way bagWay) {
+		return bagWay.getDataSet() == bagDataSet && bagWay.isUsable() && statusTracker.getStatus(bagWay) != Status.UP_TO_DATE;
+	}
+
+	/** Collect the BAG buildings and sort them along the Hilbert curve */
+	private void rebuild() {
+		cancelPrefetched();
+		position = -1;
+
+		List<Way> bagWays = new ArrayList<>();
+		double minLat = Double.POSITIVE_INFINITY;
+		double minLon = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		Map<Way, LatLon> centers = new HashMap<>();
+		for (Way bagWay : bagDataSet.getWays()) {
+			String bagRef = bagWay.get("ref:bag");
+			if (bagRef == null || bagRef.isEmpty() || !bagWay.isUsable() || !bagWay.isClosed() || !bagWay.getBBox().isValid()) {
+				continue;
+			}
+
+			LatLon center = bagWay.getBBox().getCenter();
+			centers.put(bagWay, center);
+			bagWays.add(bagWay);
+			minLat = Math.min(minLat, center.lat());
+			minLon = Math.min(minLon, center.lon());
+			maxLat = Math.max(maxLat, center.lat());
+			maxLon = Math.max(maxLon, center.lon());
+		}
+
+		// Scale the centers to the grid of the curve, keeping the aspect ratio the same
+		double originLat = minLat;
+		double originLon = minLon;
+		double scale = (HILBERT_SIZE - 1) / Math.max(Math.max(maxLat - minLat, maxLon - minLon), 1e-9);
+		Map<Way, Long> curveIndices = new HashMap<>();
+		for (Map.Entry<Way, LatLon> center : centers.entrySet()) {
+			int x = (int) ((center.getValue().lon() - originLon) * scale);
+			int y = (int) ((center.getValue().lat() - originLat) * scale);
+			curveIndices.put(center.getKey(), hilbertIndex(x, y));
+		}
+		bagWays.sort(Comparator.comparingLong(curveIndices::get));
+		queue = bagWays;
+		trace("WorkQueue rebuilt with {0} buildings", queue.size());
+	}
+
+	/**
+	 * Position of a grid cell along the Hilbert curve
+	 * - Cells that are close on the curve are close on the map as well
+	 * @param x Column of the cell, 0 to HILBERT_SIZE - 1
+	 * @param y Row of the cell, 0 to HILBERT_SIZE - 1
+	 */
+	static long hilbertIndex(int x, int y) {
+		long result = 0;
+		for (int size = HILBERT_SIZE / 2; size > 0; size /= 2) {
+			int rx = (x & size) > 0 ? 1 : 0;
+			int ry = (y & size) > 0 ? 1 : 0;
+			result += (long) size * size * ((3 * rx) ^ ry);
+
+			// Rotate the quadrant, so the curve stays connected
+			if (ry == 0) {
+				if (rx == 1) {
+					x = size - 1 - x;
+					y = size - 1 - y;
+				}
+				int swap = x;
+				x = y;
+				y = swap;
+			}
+		}
+		return result;
+	}
+
+	/** Find the position in the queue of the building closest to a point, -1 when the queue is empty */
+	private int findClosest(LatLon point) {
+		int result = -1;
+		double closestDistance = Double.POSITIVE_INFINITY;
+		for (int index = 0; index < queue.size(); index++) {
+			Way bagWay = queue.get(index);
+			if (!isPending(bagWay)) {
+				continue;
+			}
+			LatLon center = bagWay.getBBox().getCenter();
+			double distance = point == null ? index : point.distanceSq(center);
+			if (distance < closestDistance) {
+				closestDistance = distance;
+				result = index;
+			}
+		}
+		return result;
+	}
+
+	/** Plan the current building and the ones after it in the background, drop the plans that are not upcoming anymore */
+	private void prefetchUpcoming() {
+		List<Way> upcoming = new ArrayList<>();
+		for (int index = position; index < queue.size() && upcoming.size() < PREFETCH_COUNT; index++) {
+			Way bagWay = queue.get(index);
+			if (isPending(bagWay)) {
+				upcoming.add(bagWay);
+			}
+		}
+
+		Iterator<Map.Entry<Way, PlannedUpdate>> iterator = prefetched.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Way, PlannedUpdate> entry = iterator.next();
+			if (!upcoming.contains(entry.getKey())) {
+				entry.getValue().cancel();
+				iterator.remove();
+			}
+		}
+
+		for (Way bagWay : upcoming) {
+			if (!prefetched.containsKey(bagWay)) {
+				PlannedUpdate plannedUpdate = prefetch(bagWay);
+				if (plannedUpdate != null) {
+					prefetched.put(bagWay, plannedUpdate);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prepare the update of a building on the EDT and plan it in the background
+	 * @return The update being planned, null when the layers are not there
+	 */
+	private PlannedUpdate prefetch(Way bagWay) {
+		BuildingUpdate update = new BuildingUpdate(bagWay, session);
+		return update.prepare() ? PlannedUpdate.start(update) : null;
+	}
+
+	private void cancelPrefetched() {
+		for (PlannedUpdate plannedUpdate : prefetched.values()) {
+			plannedUpdate.cancel();
+		}
+		prefetched.clear();
+	}
+
+}
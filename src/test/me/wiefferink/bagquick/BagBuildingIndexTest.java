@@ -0,0 +1,153 @@
+package me.wiefferink.bagquick;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.command.AddCommand;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.DeleteCommand;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hit tests of the building index after DataSet changes and their undo
+ */
+public class BagBuildingIndexTest {
+
+	/** Inside the building, but outside of it after it moved 30 meters east */
+	private static final LatLon INSIDE = TestJosm.toLatLon(5, 4);
+	/** Inside the building after it moved 30 meters east */
+	private static final LatLon INSIDE_MOVED = TestJosm.toLatLon(35, 4);
+
+	private DataSet dataSet;
+	private Way way;
+	private BagBuildingIndex index;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		TestJosm.init();
+	}
+
+	@Before
+	public void setUp() {
+		dataSet = new DataSet();
+		way = TestJosm.addWay(dataSet, new double[] {0, 10, 10, 0}, new double[] {0, 0, 8, 8}, Collections.singletonMap("building", "house"));
+		index = new BagBuildingIndex();
+		index.bind(dataSet);
+	}
+
+	@After
+	public void tearDown() {
+		index.unbind();
+	}
+
+	private List<Way> findContaining(LatLon latLon) {
+		return index.findContaining(latLon.lat(), latLon.lon());
+	}
+
+	@Test
+	public void findsExistingBuildings() {
+		assertEquals(1, index.size());
+		assertEquals(Collections.singletonList(way), findContaining(INSIDE));
+		assertTrue(findContaining(INSIDE_MOVED).isEmpty());
+	}
+
+	@Test
+	public void findsNearestOutline() {
+		LatLon outside = TestJosm.toLatLon(12, 4);
+		assertSame(way, index.findNearest(outside.lat(), outside.lon(), 3));
+		assertNull(index.findNearest(outside.lat(), outside.lon(), 1));
+	}
+
+	@Test
+	public void wayMovedAndUndone() {
+		List<Node> nodes = new ArrayList<>(way.getNodes().subList(0, way.getNodesCount() - 1));
+		List<LatLon> targets = new ArrayList<>();
+		for (Node node : nodes) {
+			targets.add(new LatLon(node.lat(), node.lon() + PlanarProjection.metersToDegreesLon(30, node.lat())));
+		}
+		Command command = new MoveNodesCommand(dataSet, nodes, targets);
+		command.executeCommand();
+		assertTrue(findContaining(INSIDE).isEmpty());
+		assertEquals(Collections.singletonList(way), findContaining(INSIDE_MOVED));
+
+		command.undoCommand();
+		assertEquals(Collections.singletonList(way), findContaining(INSIDE));
+		assertTrue(findContaining(INSIDE_MOVED).isEmpty());
+	}
+
+	@Test
+	public void nodeMovedAndUndone() {
+		// Stretch the building to the east by moving its two eastern nodes
+		List<Node> nodes = new ArrayList<>();
+		nodes.add(way.getNode(1));
+		nodes.add(way.getNode(2));
+		List<LatLon> targets = new ArrayList<>();
+		targets.add(TestJosm.toLatLon(40, 0));
+		targets.add(TestJosm.toLatLon(40, 8));
+		Command command = new MoveNodesCommand(dataSet, nodes, targets);
+		command.executeCommand();
+		assertEquals(Collections.singletonList(way), findContaining(INSIDE_MOVED));
+
+		command.undoCommand();
+		assertTrue(findContaining(INSIDE_MOVED).isEmpty());
+	}
+
+	@Test
+	public void wayDeletedAndUndone() {
+		Command command = new DeleteCommand(way);
+		command.executeCommand();
+		assertTrue(findContaining(INSIDE).isEmpty());
+		assertEquals(0, index.size());
+
+		command.undoCommand();
+		assertEquals(Collections.singletonList(way), findContaining(INSIDE));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void buildingTagRemovedAndUndone() {
+		Command command = new ChangePropertyCommand(way, "building", null);
+		command.executeCommand();
+		assertTrue(findContaining(INSIDE).isEmpty());
+
+		command.undoCommand();
+		assertEquals(Collections.singletonList(way), findContaining(INSIDE));
+	}
+
+	@Test
+	public void wayAddedAndUndone() {
+		List<Node> nodes = new ArrayList<>();
+		for (LatLon corner : Arrays.asList(TestJosm.toLatLon(30, 0), TestJosm.toLatLon(40, 0), TestJosm.toLatLon(40, 8), TestJosm.toLatLon(30, 8))) {
+			Node node = new Node(corner);
+			dataSet.addPrimitive(node);
+			nodes.add(node);
+		}
+		nodes.add(nodes.get(0));
+		Way addedWay = new Way();
+		addedWay.setNodes(nodes);
+		addedWay.setKeys(Collections.singletonMap("building", "garage"));
+
+		Command command = new AddCommand(dataSet, addedWay);
+		command.executeCommand();
+		assertEquals(Collections.singletonList(addedWay), findContaining(INSIDE_MOVED));
+
+		command.undoCommand();
+		assertTrue(findContaining(INSIDE_MOVED).isEmpty());
+	}
+
+}
@@ -0,0 +1,140 @@
+package me.wiefferink.bagquick;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.command.AddCommand;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.DeleteCommand;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookups of the ref:bag index after DataSet changes and their undo
+ */
+public class BagRefIndexTest {
+
+	private DataSet dataSet;
+	private Way way;
+	private BagRefIndex index;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		TestJosm.init();
+	}
+
+	@Before
+	public void setUp() {
+		dataSet = new DataSet();
+		way = TestJosm.addWay(dataSet, new double[] {0, 10, 10, 0}, new double[] {0, 0, 8, 8}, tags("0123"));
+		index = new BagRefIndex();
+		index.bind(dataSet);
+	}
+
+	@After
+	public void tearDown() {
+		index.unbind();
+	}
+
+	private static Map<String, String> tags(String bagRef) {
+		Map<String, String> tags = new LinkedHashMap<>();
+		tags.put("building", "house");
+		tags.put("ref:bag", bagRef);
+		return tags;
+	}
+
+	@Test
+	public void findsExistingWays() {
+		assertEquals(Collections.singletonList(way), index.getWays("0123"));
+		assertTrue(index.getWays("0456").isEmpty());
+	}
+
+	@Test
+	public void refChangedAndUndone() {
+		Command command = new ChangePropertyCommand(way, "ref:bag", "0456");
+		command.executeCommand();
+		assertTrue(index.getWays("0123").isEmpty());
+		assertEquals(Collections.singletonList(way), index.getWays("0456"));
+
+		command.undoCommand();
+		assertEquals(Collections.singletonList(way), index.getWays("0123"));
+		assertTrue(index.getWays("0456").isEmpty());
+	}
+
+	@Test
+	public void refRemovedAndUndone() {
+		Command command = new ChangePropertyCommand(way, "ref:bag", null);
+		command.executeCommand();
+		assertTrue(index.getWays("0123").isEmpty());
+
+		command.undoCommand();
+		assertEquals(Collections.singletonList(way), index.getWays("0123"));
+	}
+
+	@Test
+	public void refAddedAndUndone() {
+		Way otherWay = TestJosm.addWay(dataSet, new double[] {20, 30, 30, 20}, new double[] {0, 0, 8, 8}, Collections.singletonMap("building", "house"));
+		Command command = new ChangePropertyCommand(otherWay, "ref:bag", "0123");
+		command.executeCommand();
+		assertEquals(2, index.getWays("0123").size());
+		assertTrue(index.getWays("0123").containsAll(Arrays.asList(way, otherWay)));
+
+		command.undoCommand();
+		assertEquals(Collections.singletonList(way), index.getWays("0123"));
+	}
+
+	@Test
+	public void wayDeletedAndUndone() {
+		Command command = new DeleteCommand(way);
+		command.executeCommand();
+		assertTrue(index.getWays("0123").isEmpty());
+
+		command.undoCommand();
+		assertEquals(Collections.singletonList(way), index.getWays("0123"));
+	}
+
+	@Test
+	public void wayAddedAndUndone() {
+		Way newWay = new Way();
+		newWay.setNodes(way.getNodes());
+		newWay.setKeys(tags("0789"));
+		Command command = new AddCommand(dataSet, newWay);
+		command.executeCommand();
+		assertEquals(Collections.singletonList(newWay), index.getWays("0789"));
+
+		command.undoCommand();
+		assertTrue(index.getWays("0789").isEmpty());
+	}
+
+	@Test
+	public void bundledChanges() {
+		// Several changes in one DataSet update, listeners get them as a single DataChangedEvent
+		dataSet.beginUpdate();
+		try {
+			new ChangePropertyCommand(way, "ref:bag", "0456").executeCommand();
+			new ChangePropertyCommand(way, "ref:bag", "0789").executeCommand();
+		} finally {
+			dataSet.endUpdate();
+		}
+		assertTrue(index.getWays("0123").isEmpty());
+		assertTrue(index.getWays("0456").isEmpty());
+		assertEquals(Collections.singletonList(way), index.getWays("0789"));
+	}
+
+	@Test
+	public void ignoresOtherDataSets() {
+		TestJosm.addWay(new DataSet(), new double[] {0, 10, 10, 0}, new double[] {0, 0, 8, 8}, tags("0456"));
+		assertTrue(index.getWays("0456").isEmpty());
+	}
+
+}
@@ -0,0 +1,153 @@
+package me.wiefferink.bagquick;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.command.AddCommand;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Execute, undo and redo of the commands bundled in a BagUpdateCommand
+ */
+public class BagUpdateCommandTest {
+
+	private DataSet dataSet;
+	private Way way;
+	private List<Node> nodes;
+	private List<LatLon> originals;
+	private List<LatLon> targets;
+	private Node addedNode;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		TestJosm.init();
+	}
+
+	@Before
+	public void setUp() {
+		dataSet = new DataSet();
+		way = TestJosm.addWay(dataSet, new double[] {0, 10, 10, 0}, new double[] {0, 0, 8, 8}, Collections.singletonMap("building", "house"));
+		nodes = new ArrayList<>(way.getNodes().subList(0, way.getNodesCount() - 1));
+		originals = new ArrayList<>();
+		targets = new ArrayList<>();
+		for (Node node : nodes) {
+			originals.add(node.getCoor());
+			targets.add(new LatLon(node.lat() + PlanarProjection.metersToDegreesLat(0.5), node.lon()));
+		}
+		addedNode = new Node(TestJosm.toLatLon(5, 4));
+	}
+
+	/** Bundle an AddCommand, MoveNodesCommand and ChangePropertyCommand, like a building update does */
+	private BagUpdateCommand executeUpdate() {
+		BagUpdateCommand command = new BagUpdateCommand(dataSet, "BAG update of test building");
+		dataSet.beginUpdate();
+		try {
+			command.executeAndAdd(new AddCommand(dataSet, addedNode));
+			command.executeAndAdd(new MoveNodesCommand(dataSet, nodes, targets));
+			command.executeAndAdd(new ChangePropertyCommand(way, "start_date", "1975"));
+		} finally {
+			dataSet.endUpdate();
+		}
+		return command;
+	}
+
+	@Test
+	public void executeUndoRedo() {
+		BagUpdateCommand command = executeUpdate();
+		checkUpdated();
+
+		command.undoCommand();
+		checkOriginal();
+
+		assertTrue(command.executeCommand());
+		checkUpdated();
+
+		command.undoCommand();
+		checkOriginal();
+
+		assertTrue(command.executeCommand());
+		checkUpdated();
+	}
+
+	@Test
+	public void undoAndRedoFireOneEvent() {
+		BagUpdateCommand command = executeUpdate();
+		CountingListener listener = new CountingListener();
+		dataSet.addDataSetListener(listener);
+
+		command.undoCommand();
+		assertEquals(1, listener.dataChangedEvents);
+		assertEquals(0, listener.otherEvents);
+
+		command.executeCommand();
+		assertEquals(2, listener.dataChangedEvents);
+		assertEquals(0, listener.otherEvents);
+		dataSet.removeDataSetListener(listener);
+	}
+
+	@Test
+	public void bundledInABatch() {
+		BagUpdateCommand batch = new BagUpdateCommand(dataSet, "BAG update of 1 building");
+		batch.addExecuted(executeUpdate());
+		CountingListener listener = new CountingListener();
+		dataSet.addDataSetListener(listener);
+
+		batch.undoCommand();
+		checkOriginal();
+		assertEquals(1, listener.dataChangedEvents);
+
+		batch.executeCommand();
+		checkUpdated();
+		assertEquals(2, listener.dataChangedEvents);
+		assertEquals(0, listener.otherEvents);
+		dataSet.removeDataSetListener(listener);
+	}
+
+	@Test
+	public void listsTheBundledChanges() {
+		BagUpdateCommand command = executeUpdate();
+		Set<OsmPrimitive> modified = new HashSet<>();
+		Set<OsmPrimitive> deleted = new HashSet<>();
+		Set<OsmPrimitive> added = new HashSet<>();
+		command.fillModifiedData(modified, deleted, added);
+		assertTrue(modified.containsAll(nodes));
+		assertTrue(modified.contains(way));
+		assertTrue(deleted.isEmpty());
+		assertTrue(added.contains(addedNode));
+		assertEquals(3, command.getChildren().size());
+	}
+
+	private void checkUpdated() {
+		assertSame(dataSet, addedNode.getDataSet());
+		for (int i = 0; i < nodes.size(); i++) {
+			assertEquals("Node " + i, targets.get(i), nodes.get(i).getCoor());
+		}
+		assertEquals("1975", way.get("start_date"));
+	}
+
+	private void checkOriginal() {
+		assertNull(addedNode.getDataSet());
+		for (int i = 0; i < nodes.size(); i++) {
+			assertEquals("Node " + i, originals.get(i), nodes.get(i).getCoor());
+		}
+		assertNull(way.get("start_date"));
+		assertEquals("house", way.get("building"));
+	}
+
+}
@@ -0,0 +1,59 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListener;
+import org.openstreetmap.josm.data.osm.event.NodeMovedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesAddedEvent;
+import org.openstreetmap.josm.data.osm.event.PrimitivesRemovedEvent;
+import org.openstreetmap.josm.data.osm.event.RelationMembersChangedEvent;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+
+/**
+ * Counts the bundled events of DataSet updates separately from the other events
+ */
+class CountingListener implements DataSetListener {
+	int dataChangedEvents = 0;
+	int otherEvents = 0;
+
+	@Override
+	public void dataChanged(DataChangedEvent event) {
+		dataChangedEvents++;
+	}
+
+	@Override
+	public void primitivesAdded(PrimitivesAddedEvent event) {
+		otherEvents++;
+	}
+
+	@Override
+	public void primitivesRemoved(PrimitivesRemovedEvent event) {
+		otherEvents++;
+	}
+
+	@Override
+	public void tagsChanged(TagsChangedEvent event) {
+		otherEvents++;
+	}
+
+	@Override
+	public void nodeMoved(NodeMovedEvent event) {
+		otherEvents++;
+	}
+
+	@Override
+	public void wayNodesChanged(WayNodesChangedEvent event) {
+		otherEvents++;
+	}
+
+	@Override
+	public void relationMembersChanged(RelationMembersChangedEvent event) {
+		otherEvents++;
+	}
+
+	@Override
+	public void otherDatasetChange(AbstractDatasetChangedEvent event) {
+		otherEvents++;
+	}
+}
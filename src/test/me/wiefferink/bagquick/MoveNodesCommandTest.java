@@ -0,0 +1,116 @@
+package me.wiefferink.bagquick;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Execute, undo and redo of a MoveNodesCommand
+ */
+public class MoveNodesCommandTest {
+
+	private DataSet dataSet;
+	private List<Node> nodes;
+	private List<LatLon> originals;
+	private List<LatLon> targets;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		TestJosm.init();
+	}
+
+	@Before
+	public void setUp() {
+		dataSet = new DataSet();
+		nodes = new ArrayList<>();
+		originals = new ArrayList<>();
+		targets = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			LatLon original = TestJosm.toLatLon(i * 5, 0);
+			Node node = new Node(original);
+			dataSet.addPrimitive(node);
+			nodes.add(node);
+			originals.add(original);
+			targets.add(TestJosm.toLatLon(i * 5 + 0.3, 0.4));
+		}
+		// Already modified before the move, should stay modified after undo
+		nodes.get(1).setModified(true);
+	}
+
+	@Test
+	public void executeUndoRedo() {
+		MoveNodesCommand command = new MoveNodesCommand(dataSet, nodes, targets);
+
+		assertTrue(command.executeCommand());
+		checkMoved();
+
+		command.undoCommand();
+		checkOriginal();
+
+		assertTrue(command.executeCommand());
+		checkMoved();
+
+		command.undoCommand();
+		checkOriginal();
+	}
+
+	@Test
+	public void onlyFiresOneEvent() {
+		CountingListener listener = new CountingListener();
+		dataSet.addDataSetListener(listener);
+		MoveNodesCommand command = new MoveNodesCommand(dataSet, nodes, targets);
+
+		command.executeCommand();
+		assertEquals(1, listener.dataChangedEvents);
+		assertEquals(0, listener.otherEvents);
+
+		command.undoCommand();
+		assertEquals(2, listener.dataChangedEvents);
+		assertEquals(0, listener.otherEvents);
+		dataSet.removeDataSetListener(listener);
+	}
+
+	@Test
+	public void listsTheMovedNodes() {
+		MoveNodesCommand command = new MoveNodesCommand(dataSet, nodes, targets);
+		Set<OsmPrimitive> modified = new HashSet<>();
+		Set<OsmPrimitive> deleted = new HashSet<>();
+		Set<OsmPrimitive> added = new HashSet<>();
+		command.fillModifiedData(modified, deleted, added);
+		assertEquals(new HashSet<>(nodes), modified);
+		assertTrue(deleted.isEmpty());
+		assertTrue(added.isEmpty());
+		assertEquals(new HashSet<OsmPrimitive>(nodes), new HashSet<>(command.getParticipatingPrimitives()));
+	}
+
+	private void checkMoved() {
+		for (int i = 0; i < nodes.size(); i++) {
+			assertEquals("Node " + i, targets.get(i), nodes.get(i).getCoor());
+			assertTrue("Node " + i, nodes.get(i).isModified());
+		}
+	}
+
+	private void checkOriginal() {
+		for (int i = 0; i < nodes.size(); i++) {
+			assertEquals("Node " + i, originals.get(i), nodes.get(i).getCoor());
+		}
+		assertFalse(nodes.get(0).isModified());
+		assertTrue(nodes.get(1).isModified());
+		assertFalse(nodes.get(2).isModified());
+	}
+
+}
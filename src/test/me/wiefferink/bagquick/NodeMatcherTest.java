@@ -0,0 +1,183 @@
+package me.wiefferink.bagquick;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Matching of the nodes of a BAG building to the nodes of an OSM building
+ */
+public class NodeMatcherTest {
+
+	/** Difference allowed between the projected distances and the great circle distances */
+	private static final double GREAT_CIRCLE_TOLERANCE_METERS = 0.001;
+
+	private static final double[] XS = {0, 10, 10, 0};
+	private static final double[] YS = {0, 0, 8, 8};
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		TestJosm.init();
+	}
+
+	@Test
+	public void matchesTheSameNodes() {
+		Way bagWay = TestJosm.addWay(new DataSet(), XS, YS, Collections.emptyMap());
+		Way osmWay = TestJosm.addWay(new DataSet(), XS, YS, Collections.emptyMap());
+		NodeMatcher.Result result = NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay));
+		assertFalse(result.isBudgetExceeded());
+		assertEquals(4, result.getBagNodeCount());
+		for (int bagIndex = 0; bagIndex < result.getBagNodeCount(); bagIndex++) {
+			assertSame(osmWay.getNode(bagIndex), result.getMatchedOsmNode(bagIndex));
+			assertEquals(0, result.getDistance(bagIndex), 1e-6);
+		}
+	}
+
+	@Test
+	public void matchesShiftedNodes() {
+		Way bagWay = TestJosm.addWay(new DataSet(), XS, YS, Collections.emptyMap());
+		Way osmWay = TestJosm.addWay(new DataSet(), new double[] {0.6, 10, 10, 0}, new double[] {0.8, 0, 8, 8}, Collections.emptyMap());
+		NodeMatcher.Result result = NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay));
+		assertSame(osmWay.getNode(0), result.getMatchedOsmNode(0));
+		assertEquals(1, result.getDistance(0), 1e-6);
+	}
+
+	@Test
+	public void doesNotMoveTaggedNodesFar() {
+		Way bagWay = TestJosm.addWay(new DataSet(), XS, YS, Collections.emptyMap());
+		Way osmWay = TestJosm.addWay(new DataSet(), new double[] {0.6, 10, 10, 0}, new double[] {0.8, 0, 8, 8}, Collections.emptyMap());
+		osmWay.getNode(0).put("entrance", "yes");
+		NodeMatcher.Result result = NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay));
+		assertNull(result.getMatchedOsmNode(0));
+		assertFalse(result.isOsmMatched(0));
+		assertSame(osmWay.getNode(1), result.getMatchedOsmNode(1));
+	}
+
+	@Test
+	public void leavesExtraNodesOver() {
+		Way bagWay = TestJosm.addWay(new DataSet(), XS, YS, Collections.emptyMap());
+		Way osmWay = TestJosm.addWay(new DataSet(), new double[] {0, 10, 10, 0, 0}, new double[] {0, 0, 8, 8, 4}, Collections.emptyMap());
+		NodeMatcher.Result result = NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay));
+		assertEquals(5, result.getOsmNodeCount());
+		for (int bagIndex = 0; bagIndex < result.getBagNodeCount(); bagIndex++) {
+			assertSame(osmWay.getNode(bagIndex), result.getMatchedOsmNode(bagIndex));
+		}
+		Node extraNode = osmWay.getNode(4);
+		assertSame(extraNode, result.getOsmNode(4));
+		assertFalse(result.isOsmMatched(4));
+	}
+
+	/**
+	 * Projected distances and the matches based on them should be the same as with great circle distances
+	 * - Uses the buildings of the fixtures, with the OSM nodes shifted by up to 3 meters in random directions
+	 */
+	@Test
+	public void agreesWithGreatCircleDistances() throws Exception {
+		Random random = new Random(1);
+		for (int run = 0; run < 50; run++) {
+			DataSet bagDataSet = TestJosm.loadFixture("BAG ODS.osm");
+			DataSet osmDataSet = TestJosm.loadFixture("BAG OSM.osm");
+			for (Way bagWay : getBuildings(bagDataSet)) {
+				for (Way osmWay : getBuildings(osmDataSet)) {
+					// First run on the fixture as it is
+					if (run > 0) {
+						for (Node node : new HashSet<>(osmWay.getNodes())) {
+							double angle = random.nextDouble() * 2 * Math.PI;
+							double meters = random.nextDouble() * 3;
+							node.setCoor(new LatLon(
+									node.lat() + PlanarProjection.metersToDegreesLat(Math.sin(angle) * meters),
+									node.lon() + PlanarProjection.metersToDegreesLon(Math.cos(angle) * meters, node.lat())));
+						}
+					}
+					checkGreatCircle(NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay)), "run " + run);
+				}
+			}
+		}
+	}
+
+	/** Compare the distances and matches of a result with a matching based on great circle distances */
+	private static void checkGreatCircle(NodeMatcher.Result result, String description) {
+		int bagCount = result.getBagNodeCount();
+		int osmCount = result.getOsmNodeCount();
+		int[] edgeStart = new int[bagCount + 1];
+		int[] edgeOsm = new int[bagCount * osmCount];
+		double[] edgeCost = new double[bagCount * osmCount];
+		int edgeCount = 0;
+		for (int bagIndex = 0; bagIndex < bagCount; bagIndex++) {
+			edgeStart[bagIndex] = edgeCount;
+			for (int osmIndex = 0; osmIndex < osmCount; osmIndex++) {
+				Node osmNode = result.getOsmNode(osmIndex);
+				double distance = result.getBagNode(bagIndex).getCoor().greatCircleDistance(osmNode.getCoor());
+				boolean pinned = osmNode.isTagged() || osmNode.isReferredByWays(2);
+				if (distance < (pinned ? NodeMatcher.MAX_NODE_MOVE_METERS_TAGGED : NodeMatcher.MAX_NODE_MOVE_METERS_UNTAGGED)) {
+					edgeOsm[edgeCount] = osmIndex;
+					edgeCost[edgeCount] = distance;
+					edgeCount++;
+				}
+			}
+		}
+		edgeStart[bagCount] = edgeCount;
+		SparseAssignment assignment = new SparseAssignment();
+		assignment.reset(bagCount, osmCount, edgeStart, edgeOsm, edgeCost);
+		int[] expected = assignment.solve(Long.MAX_VALUE / 2);
+
+		boolean sameMatches = true;
+		double expectedCost = 0;
+		double actualCost = 0;
+		for (int bagIndex = 0; bagIndex < bagCount; bagIndex++) {
+			Node bagNode = result.getBagNode(bagIndex);
+			Node expectedNode = expected[bagIndex] == -1 ? null : result.getOsmNode(expected[bagIndex]);
+			Node actualNode = result.getMatchedOsmNode(bagIndex);
+			sameMatches &= expectedNode == actualNode;
+			if (expectedNode != null) {
+				expectedCost += bagNode.getCoor().greatCircleDistance(expectedNode.getCoor());
+			}
+			if (actualNode != null) {
+				double greatCircleDistance = bagNode.getCoor().greatCircleDistance(actualNode.getCoor());
+				assertEquals("Distance of BAG node " + bagIndex + " in " + description, greatCircleDistance, result.getDistance(bagIndex), GREAT_CIRCLE_TOLERANCE_METERS);
+				actualCost += greatCircleDistance;
+			}
+		}
+
+		// Only pairs that are equally good could be swapped
+		if (!sameMatches) {
+			assertEquals("Cost of the matches in " + description, expectedCost, actualCost, GREAT_CIRCLE_TOLERANCE_METERS);
+		}
+	}
+
+	private static List<Way> getBuildings(DataSet dataSet) {
+		List<Way> result = new ArrayList<>();
+		for (Way way : dataSet.getWays()) {
+			if (way.hasKey("building")) {
+				result.add(way);
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void snapshotNoticesMovedNodes() {
+		Way bagWay = TestJosm.addWay(new DataSet(), XS, YS, Collections.emptyMap());
+		Way osmWay = TestJosm.addWay(new DataSet(), XS, YS, Collections.emptyMap());
+		NodeMatcher.Input input = NodeMatcher.Input.of(bagWay, osmWay);
+		assertTrue(input.isCurrent(bagWay, osmWay));
+		osmWay.getNode(2).setCoor(TestJosm.toLatLon(11, 8));
+		assertFalse(input.isCurrent(bagWay, osmWay));
+	}
+
+}
@@ -0,0 +1,216 @@
+package me.wiefferink.bagquick;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Indexing an extract into a .bagidx file, and loading and removing the tiles of it
+ */
+public class OfflineBagSourceTest {
+
+	/** Corner of the building with ref:bag 0001 */
+	private static final double LAT = 52.4051;
+	private static final double LON = 6.9051;
+	/** Size of the test buildings in degrees */
+	private static final double SIZE = 0.0002;
+	/** Distance between the areas that are loaded, 10 tiles */
+	private static final double AREA_DISTANCE = 0.1;
+
+	private File directory;
+	private File osmFile;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		TestJosm.init();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("bag-quick-offline").toFile();
+		osmFile = new File(directory, "bag.osm");
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void loadsTheBuildingsOfAnArea() throws IOException {
+		writeExtract(osmFile, false, "0001", "0002");
+		OfflineBagSource source = OfflineBagSource.open(osmFile);
+		assertNull(source.getIndexingError());
+		assertTrue(source.isReady());
+		assertTrue(new File(osmFile.getPath() + ".bagidx").isFile());
+
+		source.load(LAT, LON, LAT, LON);
+		Way way = findBuilding(source, "0001");
+		assertNotNull(way);
+		assertEquals("house", way.get("building"));
+		assertEquals("1975", way.get("start_date"));
+		assertTrue(way.isClosed());
+		assertEquals(5, way.getNodesCount());
+		assertEquals(LAT, way.getNode(0).lat(), 1e-7);
+		assertEquals(LON, way.getNode(0).lon(), 1e-7);
+
+		// Far away, and the ways without ref:bag or that are not closed are not indexed
+		assertNull(findBuilding(source, "0002"));
+		assertEquals(1, source.getDataSet().getWays().size());
+	}
+
+	@Test
+	public void removesLeastRecentlyUsedTiles() throws IOException {
+		writeExtract(osmFile, false, "0001", "0002");
+		OfflineBagSource source = OfflineBagSource.open(osmFile);
+		source.load(LAT, LON, LAT, LON);
+		Way first = findBuilding(source, "0001");
+		List<Node> firstNodes = first.getNodes();
+
+		// Each area loads 3 by 3 tiles, the 7th one goes over the limit of 64 tiles
+		for (int area = 1; area <= 6; area++) {
+			loadArea(source, area);
+		}
+		assertNotNull(findBuilding(source, "0001"));
+		loadArea(source, 7);
+		assertNull(findBuilding(source, "0001"));
+		assertNull(first.getDataSet());
+		for (Node node : firstNodes) {
+			assertNull(node.getDataSet());
+		}
+		// The building of the first area after it has been used more recently
+		assertNotNull(findBuilding(source, "0002"));
+
+		// Loading the area again brings it back
+		source.load(LAT, LON, LAT, LON);
+		assertNotNull(findBuilding(source, "0001"));
+	}
+
+	@Test
+	public void indexesAgainWhenTheExtractChanged() throws IOException {
+		writeExtract(osmFile, false, "0001", "0002");
+		OfflineBagSource.open(osmFile);
+		File indexFile = new File(osmFile.getPath() + ".bagidx");
+
+		writeExtract(osmFile, false, "0003", "0002");
+		assertTrue(osmFile.setLastModified(indexFile.lastModified() + 10_000));
+		OfflineBagSource source = OfflineBagSource.open(osmFile);
+		source.load(LAT, LON, LAT, LON);
+		assertNull(findBuilding(source, "0001"));
+		assertNotNull(findBuilding(source, "0003"));
+	}
+
+	@Test
+	public void indexesAgainWhenWrittenByAnotherVersion() throws IOException {
+		writeExtract(osmFile, false, "0001", "0002");
+		File indexFile = new File(osmFile.getPath() + ".bagidx");
+		try (DataOutputStream output = new DataOutputStream(new FileOutputStream(indexFile))) {
+			output.writeInt(0x42414749);
+			output.writeInt(0);
+			output.writeInt(0);
+		}
+		assertTrue(indexFile.setLastModified(osmFile.lastModified() + 10_000));
+
+		OfflineBagSource source = OfflineBagSource.open(osmFile);
+		assertNull(source.getIndexingError());
+		source.load(LAT, LON, LAT, LON);
+		assertNotNull(findBuilding(source, "0001"));
+	}
+
+	@Test
+	public void readsExtractsWithUnorderedNodes() throws IOException {
+		writeExtract(osmFile, true, "0001", "0002");
+		OfflineBagSource source = OfflineBagSource.open(osmFile);
+		source.load(LAT, LON, LAT, LON);
+		Way way = findBuilding(source, "0001");
+		assertNotNull(way);
+		assertEquals(LAT, way.getNode(0).lat(), 1e-7);
+		assertEquals(LON + SIZE, way.getNode(1).lon(), 1e-7);
+	}
+
+	@Test
+	public void reportsAMissingExtract() {
+		OfflineBagSource source = OfflineBagSource.open(osmFile);
+		assertFalse(source.isReady());
+		assertNotNull(source.getIndexingError());
+		source.load(LAT, LON, LAT, LON);
+		assertTrue(source.getDataSet().getWays().isEmpty());
+	}
+
+	/** Load an area far from the first one, and from each other */
+	private static void loadArea(OfflineBagSource source, int area) {
+		double lat = LAT + area * AREA_DISTANCE;
+		source.load(lat, LON, lat, LON);
+	}
+
+	private static Way findBuilding(OfflineBagSource source, String bagRef) {
+		for (Way way : source.getDataSet().getWays()) {
+			if (!way.isDeleted() && bagRef.equals(way.get("ref:bag"))) {
+				return way;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Write an extract with two buildings, in the first and the second loaded area
+	 * - Also has a building without ref:bag and a way that is not closed, next to the first building
+	 * @param unordered Write the nodes in descending order of their ids
+	 */
+	private static void writeExtract(File file, boolean unordered, String firstRef, String secondRef) throws IOException {
+		List<String> nodes = new ArrayList<>();
+		StringBuilder ways = new StringBuilder();
+		addBuilding(nodes, ways, 1, LAT, LON, "<tag k=\"building\" v=\"house\"/><tag k=\"ref:bag\" v=\"" + firstRef + "\"/><tag k=\"start_date\" v=\"1975\"/>", true);
+		addBuilding(nodes, ways, 2, LAT + AREA_DISTANCE, LON, "<tag k=\"building\" v=\"house\"/><tag k=\"ref:bag\" v=\"" + secondRef + "\"/>", true);
+		addBuilding(nodes, ways, 3, LAT + SIZE * 2, LON, "<tag k=\"building\" v=\"shed\"/>", true);
+		addBuilding(nodes, ways, 4, LAT + SIZE * 4, LON, "<tag k=\"building\" v=\"house\"/><tag k=\"ref:bag\" v=\"0004\"/>", false);
+
+		StringBuilder result = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n");
+		for (int index = 0; index < nodes.size(); index++) {
+			result.append(nodes.get(unordered ? nodes.size() - 1 - index : index));
+		}
+		result.append(ways).append("</osm>\n");
+		Files.write(file.toPath(), result.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Add a square building with its nodes, ids are based on the number of the building */
+	private static void addBuilding(List<String> nodes, StringBuilder ways, int number, double lat, double lon, String tags, boolean closed) {
+		double[] lats = {lat, lat, lat + SIZE, lat + SIZE};
+		double[] lons = {lon, lon + SIZE, lon + SIZE, lon};
+		ways.append("<way id=\"").append(number).append("\" version=\"1\">");
+		for (int corner = 0; corner < 4; corner++) {
+			long id = number * 10L + corner;
+			nodes.add("<node id=\"" + id + "\" version=\"1\" lat=\"" + lats[corner] + "\" lon=\"" + lons[corner] + "\"/>\n");
+			ways.append("<nd ref=\"").append(id).append("\"/>");
+		}
+		if (closed) {
+			ways.append("<nd ref=\"").append(number * 10L).append("\"/>");
+		}
+		ways.append(tags).append("</way>\n");
+	}
+
+}
@@ -0,0 +1,122 @@
+package me.wiefferink.bagquick;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the sparse assignment with trying all assignments, on small random problems
+ */
+public class SparseAssignmentTest {
+
+	private static final long BUDGET_NANOS = 1_000_000_000L;
+
+	@Test
+	public void matchesBruteForce() {
+		Random random = new Random(1);
+		SparseAssignment assignment = new SparseAssignment();
+		for (int problem = 0; problem < 2000; problem++) {
+			int leftCount = random.nextInt(7);
+			int rightCount = random.nextInt(7);
+			double density = 0.2 + random.nextDouble() * 0.8;
+
+			// Candidate pairs grouped by left index, like NodeMatcher collects them
+			int[] edgeStart = new int[leftCount + 1];
+			int[] edgeRight = new int[leftCount * rightCount];
+			double[] edgeCost = new double[leftCount * rightCount];
+			double[][] costs = new double[leftCount][rightCount];
+			int edgeCount = 0;
+			for (int left = 0; left < leftCount; left++) {
+				edgeStart[left] = edgeCount;
+				for (int right = 0; right < rightCount; right++) {
+					costs[left][right] = Double.NaN;
+					if (random.nextDouble() < density) {
+						costs[left][right] = random.nextInt(4) == 0 ? 0 : random.nextDouble() * 5;
+						edgeRight[edgeCount] = right;
+						edgeCost[edgeCount] = costs[left][right];
+						edgeCount++;
+					}
+				}
+			}
+			edgeStart[leftCount] = edgeCount;
+
+			assignment.reset(leftCount, rightCount, edgeStart, edgeRight, edgeCost);
+			int[] leftToRight = assignment.solve(BUDGET_NANOS);
+			assertFalse(assignment.isBudgetExceeded());
+
+			// Valid: only candidate pairs, each right index used once
+			boolean[] rightUsed = new boolean[rightCount];
+			int pairs = 0;
+			double cost = 0;
+			for (int left = 0; left < leftCount; left++) {
+				int right = leftToRight[left];
+				if (right == -1) {
+					continue;
+				}
+				assertFalse("Pair that is not a candidate in problem " + problem, Double.isNaN(costs[left][right]));
+				assertFalse("Right index used twice in problem " + problem, rightUsed[right]);
+				rightUsed[right] = true;
+				pairs++;
+				cost += costs[left][right];
+			}
+
+			// Optimal: most pairs, and the lowest cost for that number of pairs
+			double[] best = {0, 0};
+			bruteForce(costs, 0, new boolean[rightCount], 0, 0, best);
+			assertEquals("Number of pairs in problem " + problem, (long) best[0], pairs);
+			assertEquals("Cost in problem " + problem, best[1], cost, 1e-9);
+		}
+	}
+
+	@Test
+	public void reusesBuffersForLargerProblems() {
+		SparseAssignment assignment = new SparseAssignment();
+		assignment.reset(1, 1, new int[] {0, 1}, new int[] {0}, new double[] {1});
+		assertEquals(0, assignment.solve(BUDGET_NANOS)[0]);
+
+		// Left 0 can only go to right 0, so left 1 has to take the more expensive right 1
+		assignment.reset(2, 2, new int[] {0, 1, 3}, new int[] {0, 0, 1}, new double[] {2, 1, 3});
+		int[] leftToRight = assignment.solve(BUDGET_NANOS);
+		assertEquals(0, leftToRight[0]);
+		assertEquals(1, leftToRight[1]);
+	}
+
+	@Test
+	public void stopsWhenTheBudgetRunsOut() {
+		SparseAssignment assignment = new SparseAssignment();
+		assignment.reset(2, 2, new int[] {0, 1, 2}, new int[] {0, 1}, new double[] {1, 1});
+		int[] leftToRight = assignment.solve(-1);
+		assertTrue(assignment.isBudgetExceeded());
+		assertEquals(-1, leftToRight[0]);
+		assertEquals(-1, leftToRight[1]);
+	}
+
+	/**
+	 * Try all assignments of the left indexes from a certain one
+	 * @param best Number of pairs and cost of the best assignment so far, updated when a better one is found
+	 */
+	private static void bruteForce(double[][] costs, int left, boolean[] rightUsed, int pairs, double cost, double[] best) {
+		if (left == costs.length) {
+			if (pairs > best[0] || pairs == best[0] && cost < best[1]) {
+				best[0] = pairs;
+				best[1] = cost;
+			}
+			return;
+		}
+
+		bruteForce(costs, left + 1, rightUsed, pairs, cost, best);
+		for (int right = 0; right < rightUsed.length; right++) {
+			if (rightUsed[right] || Double.isNaN(costs[left][right])) {
+				continue;
+			}
+			rightUsed[right] = true;
+			bruteForce(costs, left + 1, rightUsed, pairs + 1, cost + costs[left][right], best);
+			rightUsed[right] = false;
+		}
+	}
+
+}
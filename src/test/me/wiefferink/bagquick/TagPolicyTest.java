@@ -0,0 +1,84 @@
+package me.wiefferink.bagquick;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tag changes of the default rules, and of rules that have their own keys
+ */
+public class TagPolicyTest {
+
+	/** Same as the defaults of the preferences */
+	private final TagPolicy defaults = new TagPolicy(
+			Collections.singletonList("|ODS"),
+			Collections.singletonList("building"),
+			Arrays.asList("source:date", "start_date"),
+			Arrays.asList("note", "note:bag", "fixme"));
+
+	@Test
+	public void newBuildingGetsAllTagsExceptIgnoredOnes() {
+		Map<String, String> bagTags = tags("building", "house", "ref:bag", "0123", "|ODS:status", "in use", "start_date", "1975");
+		Map<String, String> changes = defaults.computeChanges(bagTags, Collections.emptyMap());
+		assertEquals(tags("building", "house", "ref:bag", "0123", "start_date", "1975"), changes);
+	}
+
+	@Test
+	public void keepsMoreSpecificBuildingType() {
+		Map<String, String> bagTags = tags("building", "house", "source:date", "2022-01-01");
+		Map<String, String> osmTags = tags("building", "detached", "source:date", "2015-01-01");
+		assertEquals(tags("source:date", "2022-01-01"), defaults.computeChanges(bagTags, osmTags));
+	}
+
+	@Test
+	public void skipsEmptyAndEqualValues() {
+		Map<String, String> bagTags = tags("building", "house", "start_date", "", "ref:bag", "0123");
+		Map<String, String> osmTags = tags("building", "house", "ref:bag", "0123");
+		assertTrue(defaults.computeChanges(bagTags, osmTags).isEmpty());
+	}
+
+	@Test
+	public void keepsTheOrderOfTheBagTags() {
+		Map<String, String> bagTags = tags("start_date", "1975", "building", "house", "ref:bag", "0123");
+		Map<String, String> changes = defaults.computeChanges(bagTags, Collections.emptyMap());
+		assertEquals(Arrays.asList("start_date", "building", "ref:bag"), new ArrayList<>(changes.keySet()));
+	}
+
+	@Test
+	public void ownRuleWinsOverIgnoredPrefix() {
+		TagPolicy policy = new TagPolicy(
+				Collections.singletonList("source"),
+				Collections.singletonList("source:geometry"),
+				Collections.singletonList("source:date"),
+				Collections.emptyList());
+		Map<String, String> bagTags = tags("source", "BAG", "source:date", "2022-01-01", "source:geometry", "BAG");
+		Map<String, String> osmTags = tags("source:date", "2015-01-01", "source:geometry", "survey");
+		assertEquals(tags("source:date", "2022-01-01"), policy.computeChanges(bagTags, osmTags));
+		assertTrue(policy.isIgnored("source"));
+		assertTrue(policy.isIgnored("sources"));
+	}
+
+	@Test
+	public void warnsAboutNotesInPreferenceOrder() {
+		Map<String, String> osmTags = tags("fixme", "check", "building", "house", "note", "shed behind it", "note:bag", "");
+		assertEquals(tags("note", "shed behind it", "fixme", "check"), defaults.getWarnings(osmTags));
+		assertTrue(defaults.getWarnings(tags("building", "house")).isEmpty());
+	}
+
+	/** Tags from keys and values after each other, in that order */
+	private static Map<String, String> tags(String... keysAndValues) {
+		Map<String, String> result = new LinkedHashMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			result.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return result;
+	}
+
+}
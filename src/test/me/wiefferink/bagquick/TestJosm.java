@@ -0,0 +1,89 @@
+package me.wiefferink.bagquick;
+
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.preferences.JosmBaseDirectories;
+import org.openstreetmap.josm.data.preferences.JosmUrls;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.OsmReader;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JOSM setup and test data for the unit tests
+ * - Uses a temporary JOSM home directory, so the preferences of the user are not touched
+ * - Buildings are placed around the same area as the test fixtures
+ */
+final class TestJosm {
+
+	static final double ORIGIN_LAT = 52.40;
+	static final double ORIGIN_LON = 6.90;
+
+	private static boolean initialized = false;
+
+	private TestJosm() {
+	}
+
+	/** Set up preferences and projection, can be called by every test class */
+	static synchronized void init() throws Exception {
+		if (initialized) {
+			return;
+		}
+		System.setProperty("josm.home", Files.createTempDirectory("bag-quick-test").toString());
+
+		Preferences preferences = Preferences.main();
+		Config.setPreferencesInstance(preferences);
+		Config.setBaseDirectoriesProvider(JosmBaseDirectories.getInstance());
+		Config.setUrlsProvider(JosmUrls.getInstance());
+		preferences.enableSaveOnPut(false);
+		ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+		TagPolicy.init();
+		initialized = true;
+	}
+
+	/** Load one of the .osm files of src/test/resources */
+	static DataSet loadFixture(String name) throws Exception {
+		try (InputStream input = TestJosm.class.getResourceAsStream("/" + name)) {
+			if (input == null) {
+				throw new IllegalArgumentException("Missing test fixture " + name);
+			}
+			return OsmReader.parseDataSet(input, NullProgressMonitor.INSTANCE);
+		}
+	}
+
+	/**
+	 * Add a closed way to a DataSet
+	 * @param xs Meters east of the origin, of each distinct node
+	 * @param ys Meters north of the origin, of each distinct node
+	 */
+	static Way addWay(DataSet dataSet, double[] xs, double[] ys, Map<String, String> tags) {
+		List<Node> nodes = new ArrayList<>(xs.length + 1);
+		for (int i = 0; i < xs.length; i++) {
+			Node node = new Node(toLatLon(xs[i], ys[i]));
+			dataSet.addPrimitive(node);
+			nodes.add(node);
+		}
+		nodes.add(nodes.get(0));
+		Way way = new Way();
+		way.setNodes(nodes);
+		way.setKeys(tags);
+		dataSet.addPrimitive(way);
+		return way;
+	}
+
+	/** Location at some meters from the origin */
+	static LatLon toLatLon(double x, double y) {
+		return new LatLon(ORIGIN_LAT + PlanarProjection.metersToDegreesLat(y), ORIGIN_LON + PlanarProjection.metersToDegreesLon(x, ORIGIN_LAT));
+	}
+
+}
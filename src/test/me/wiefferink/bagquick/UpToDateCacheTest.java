@@ -0,0 +1,135 @@
+package me.wiefferink.bagquick;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.DeleteCommand;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Invalidation of the up-to-date pairs by DataSet events, and their fingerprints after an undo
+ */
+public class UpToDateCacheTest {
+
+	private DataSet bagDataSet;
+	private DataSet osmDataSet;
+	private Way bagWay;
+	private Way osmWay;
+	private UpToDateCache cache;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		TestJosm.init();
+	}
+
+	@Before
+	public void setUp() {
+		Map<String, String> tags = new LinkedHashMap<>();
+		tags.put("building", "house");
+		tags.put("ref:bag", "0123");
+		bagDataSet = new DataSet();
+		osmDataSet = new DataSet();
+		bagWay = TestJosm.addWay(bagDataSet, new double[] {0, 10, 10, 0}, new double[] {0, 0, 8, 8}, tags);
+		osmWay = TestJosm.addWay(osmDataSet, new double[] {0, 10, 10, 0}, new double[] {0, 0, 8, 8}, tags);
+		cache = new UpToDateCache();
+		cache.bind(bagDataSet, osmDataSet);
+		cache.put(bagWay, osmWay);
+	}
+
+	@After
+	public void tearDown() {
+		cache.unbind();
+	}
+
+	@Test
+	public void upToDateAfterPut() {
+		assertTrue(cache.isUpToDate(bagWay, osmWay));
+	}
+
+	@Test
+	public void osmTagsChangedAndUndone() {
+		Command command = new ChangePropertyCommand(osmWay, "note", "Check the shape on location");
+		command.executeCommand();
+		assertFalse(cache.isUpToDate(bagWay, osmWay));
+		command.undoCommand();
+		assertTrue(cache.isUpToDate(bagWay, osmWay));
+	}
+
+	@Test
+	public void bagNodeMovedAndUndone() {
+		Node node = bagWay.getNode(1);
+		Command command = new MoveNodesCommand(bagDataSet, Collections.singletonList(node), Collections.singletonList(new LatLon(node.lat() + 1e-5, node.lon())));
+		command.executeCommand();
+		assertFalse(cache.isUpToDate(bagWay, osmWay));
+		command.undoCommand();
+		assertTrue(cache.isUpToDate(bagWay, osmWay));
+	}
+
+	@Test
+	public void osmNodeMovedAndUndone() {
+		Node node = osmWay.getNode(2);
+		Command command = new MoveNodesCommand(osmDataSet, Collections.singletonList(node), Collections.singletonList(TestJosm.toLatLon(11, 8)));
+		command.executeCommand();
+		assertFalse(cache.isUpToDate(bagWay, osmWay));
+		command.undoCommand();
+		assertTrue(cache.isUpToDate(bagWay, osmWay));
+	}
+
+	@Test
+	public void ignoredBagTagsDoNotMatter() {
+		new ChangePropertyCommand(bagWay, "|ODS:status", "Pand in gebruik").executeCommand();
+		assertTrue(cache.isUpToDate(bagWay, osmWay));
+	}
+
+	@Test
+	public void forgetsDeletedWays() {
+		Command command = new DeleteCommand(osmWay);
+		command.executeCommand();
+		assertFalse(cache.isUpToDate(bagWay, osmWay));
+		// The deletion could have been followed by other changes, only a new update makes it up-to-date again
+		command.undoCommand();
+		assertFalse(cache.isUpToDate(bagWay, osmWay));
+	}
+
+	@Test
+	public void forgetsChangedRef() {
+		Command command = new ChangePropertyCommand(osmWay, "ref:bag", "0456");
+		command.executeCommand();
+		command.undoCommand();
+		assertFalse(cache.isUpToDate(bagWay, osmWay));
+	}
+
+	@Test
+	public void forgetsWhenTagRulesChange() {
+		try {
+			Config.getPref().putList(TagPolicy.KEEP_IF_PRESENT_PREFERENCE, Arrays.asList("building", "source:date"));
+			assertFalse(cache.isUpToDate(bagWay, osmWay));
+		} finally {
+			Config.getPref().putList(TagPolicy.KEEP_IF_PRESENT_PREFERENCE, null);
+		}
+	}
+
+	@Test
+	public void ignoresOtherDataSets() {
+		Way otherWay = TestJosm.addWay(new DataSet(), new double[] {0, 10, 10, 0}, new double[] {0, 0, 8, 8}, osmWay.getKeys());
+		assertFalse(cache.isUpToDate(bagWay, otherWay));
+		cache.put(bagWay, otherWay);
+		assertTrue(cache.isUpToDate(bagWay, osmWay));
+	}
+
+}
@@ -0,0 +1,109 @@
+package me.wiefferink.bagquick;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plans should only be applied when nothing they are based on changed in the meantime
+ */
+public class UpdatePlanTest {
+
+	private DataSet bagDataSet;
+	private Way bagWay;
+	private Way osmWay;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		TestJosm.init();
+	}
+
+	@Before
+	public void setUp() {
+		Map<String, String> tags = new LinkedHashMap<>();
+		tags.put("building", "house");
+		tags.put("ref:bag", "0123");
+		tags.put("source:date", "2022-01-01");
+		bagDataSet = new DataSet();
+		bagWay = TestJosm.addWay(bagDataSet, new double[] {0, 10, 10, 0}, new double[] {0, 0, 8, 8}, tags);
+		tags.put("source:date", "2015-01-01");
+		osmWay = TestJosm.addWay(new DataSet(), new double[] {0.5, 10, 10, 0}, new double[] {0, 0, 8, 8}, tags);
+	}
+
+	private UpdatePlan plan() {
+		return UpdatePlan.update(bagWay, osmWay, NodeMatcher.match(NodeMatcher.Input.of(bagWay, osmWay)));
+	}
+
+	@Test
+	public void currentWhenNothingChanged() {
+		assertTrue(plan().isCurrent());
+		assertTrue(UpdatePlan.create(bagWay).isCurrent());
+	}
+
+	@Test
+	public void staleWhenBagNodeMoved() {
+		UpdatePlan plan = plan();
+		UpdatePlan createPlan = UpdatePlan.create(bagWay);
+		bagWay.getNode(1).setCoor(TestJosm.toLatLon(11, 0));
+		assertFalse(plan.isCurrent());
+		assertFalse(createPlan.isCurrent());
+	}
+
+	@Test
+	public void staleWhenBagTagsChanged() {
+		UpdatePlan plan = plan();
+		bagWay.put("start_date", "1975");
+		assertFalse(plan.isCurrent());
+	}
+
+	@Test
+	public void staleWhenBagWayRemoved() {
+		UpdatePlan plan = plan();
+		bagDataSet.removePrimitive(bagWay);
+		assertFalse(plan.isCurrent());
+	}
+
+	@Test
+	public void staleWhenOsmNodeMoved() {
+		UpdatePlan plan = plan();
+		osmWay.getNode(2).setCoor(TestJosm.toLatLon(10, 9));
+		assertFalse(plan.isCurrent());
+	}
+
+	@Test
+	public void staleWhenOsmTagsChanged() {
+		UpdatePlan plan = plan();
+		osmWay.put("note", "Check the shape on location");
+		assertFalse(plan.isCurrent());
+	}
+
+	@Test
+	public void staleWhenOsmNodeAdded() {
+		UpdatePlan plan = plan();
+		osmWay.addNode(2, osmWay.getNode(1));
+		assertFalse(plan.isCurrent());
+	}
+
+	@Test
+	public void staleWhenTagRulesChanged() {
+		UpdatePlan plan = plan();
+		try {
+			Config.getPref().putList(TagPolicy.KEEP_IF_PRESENT_PREFERENCE, Arrays.asList("building", "source:date"));
+			assertFalse(plan.isCurrent());
+		} finally {
+			Config.getPref().putList(TagPolicy.KEEP_IF_PRESENT_PREFERENCE, null);
+		}
+		assertTrue(plan().isCurrent());
+	}
+
+}
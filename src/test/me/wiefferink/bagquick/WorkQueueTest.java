@@ -0,0 +1,51 @@
+package me.wiefferink.bagquick;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Order of the Hilbert curve the queue is sorted by
+ */
+public class WorkQueueTest {
+
+	/** Size of the block that is checked, the curve fills it before leaving it */
+	private static final int BLOCK_SIZE = 32;
+
+	@Test
+	public void startsInTheCorner() {
+		assertEquals(0, WorkQueue.hilbertIndex(0, 0));
+	}
+
+	@Test
+	public void visitsEachCellOfABlockOnce() {
+		boolean[] seen = new boolean[BLOCK_SIZE * BLOCK_SIZE];
+		for (int x = 0; x < BLOCK_SIZE; x++) {
+			for (int y = 0; y < BLOCK_SIZE; y++) {
+				long index = WorkQueue.hilbertIndex(x, y);
+				assertEquals("Cell " + x + "," + y + " outside of the start of the curve", index, Math.min(index, seen.length - 1));
+				assertFalse("Index " + index + " used twice", seen[(int) index]);
+				seen[(int) index] = true;
+			}
+		}
+	}
+
+	@Test
+	public void nextCellIsANeighbour() {
+		int[] xs = new int[BLOCK_SIZE * BLOCK_SIZE];
+		int[] ys = new int[BLOCK_SIZE * BLOCK_SIZE];
+		for (int x = 0; x < BLOCK_SIZE; x++) {
+			for (int y = 0; y < BLOCK_SIZE; y++) {
+				int index = (int) WorkQueue.hilbertIndex(x, y);
+				xs[index] = x;
+				ys[index] = y;
+			}
+		}
+		for (int index = 1; index < xs.length; index++) {
+			int steps = Math.abs(xs[index] - xs[index - 1]) + Math.abs(ys[index] - ys[index - 1]);
+			assertEquals("Step from index " + (index - 1) + " to " + index, 1, steps);
+		}
+	}
+
+}